@@ -34,8 +34,8 @@ async function checkDomain() {
     // Get the domain name from the input field
     const domain = document.getElementById("domain").value;
 
-    // Make a GET request to check if the domain is available
-    const response = await fetch(API_URI + "/domains/isAvailable?domain=" + domain, {
+    // Make a GET request to check if the domain is available; if it isn't, its owner is returned too
+    const response = await fetch(API_URI + "/domains/" + domain + "/owner", {
         method: 'GET',
         credentials: 'include'
     });
@@ -52,18 +52,13 @@ async function checkDomain() {
         alert(resultText);
     } else if (response.status == 200){
         const result = await response.json();
-        const response2 = await fetch(API_URI + "/users?email=" + result.owner, {
-            method: 'GET',
-            credentials: 'include'
-        });
-        const result2 = await response2.json();
         // If the domain is not available, display the current owner's details
         resultText = "Il dominio " + domain + " è già registrato. \n" +
             "Registrato da: " + "\n" +
-            "Nome: " + result2.name + "\n" +
-            "Cognome: " + result2.surname + "\n" +
-            "Email: " + result.owner + "\n" +
-            "Data di scadenza: " + result.expireDate + "\n";
+            "Nome: " + result.owner.name + "\n" +
+            "Cognome: " + result.owner.surname + "\n" +
+            "Email: " + result.owner.email + "\n" +
+            "Data di scadenza: " + result.domain.expireDate + "\n";
         document.getElementById("checkDomainResult").innerText = resultText;
     } else if(response.status == 400) {
         alert("La richiesta del client è malformata");
@@ -3,7 +3,9 @@ package it.unimib.sd2024;
 import java.net.*;
 
 import it.unimib.sd2024.R2dbServices.R2SetUp;
-import it.unimib.sd2024.communicationServices.Handler;
+import it.unimib.sd2024.communicationServices.ConnectionExecutor;
+import it.unimib.sd2024.communicationServices.NioServer;
+import it.unimib.sd2024.communicationServices.Replica;
 
 import java.io.*;
 
@@ -12,21 +14,23 @@ import java.io.*;
  */
 public class Main {
     /**
-     * Porta di ascolto.
+     * Porta di ascolto, configurabile con la proprietà di sistema
+     * {@code r2db.port}.
      */
-    public static final int PORT = 3030;
+    public static final int PORT = Integer.getInteger("r2db.port", 3030);
 
     /**
      * Avvia il database e l'ascolto di nuove connessioni.
      */
     public static void startServer() throws IOException {
         ServerSocket server = new ServerSocket(PORT);
+        ConnectionExecutor executor = ConnectionExecutor.getInstance();
 
-        System.out.println("Database listening at localhost Port : " + PORT);
+        System.out.println("Database listening at localhost Port : " + PORT + " (" + executor.getMode().toString().toLowerCase() + " executor)");
 
         try {
             while (true) {
-                new Handler(server.accept()).start();
+                executor.execute(server.accept());
             }
         } catch (IOException e) {
             System.err.println(e);
@@ -38,6 +42,10 @@ public class Main {
 
     /**
      * Metodo principale di avvio del database.
+     * Con la proprietà di sistema {@code r2db.frontend=nio} le connessioni
+     * vengono servite dal front end non bloccante {@link NioServer}; con
+     * {@code r2db.role=replica} il database replica il primario indicato da
+     * {@code r2db.primary} ({@link Replica}).
      *
      * @param args argomenti passati a riga di comando.
      *
@@ -45,7 +53,14 @@ public class Main {
      */
     public static void main(String[] args) throws IOException {
         R2SetUp.setUpR2db(args);
-        startServer();
+        if (Replica.isEnabled()) {
+            Replica.start();
+        }
+        if ("nio".equalsIgnoreCase(System.getProperty("r2db.frontend"))) {
+            new NioServer(PORT).serve();
+        } else {
+            startServer();
+        }
     }
 }
 
@@ -0,0 +1,232 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Aggregates of an AGGREGATE command, computed over the rows of a table that
+ * satisfy an optional predicate, possibly grouped by a field:
+ * <pre>
+ * AGGREGATE table count,sum:cost,min:date,max:date [WHERE predicate] [GROUP BY field|tld(field)|month(field)|year(field)]
+ * </pre>
+ * The rows are folded into the aggregates one at a time, as they are read, so
+ * that only the aggregates are kept. SUM adds the values of the field that are
+ * numbers or numeric strings, MIN and MAX compare numbers by value and every
+ * other value as a string, as ORDER BY does; COUNT with a field counts the
+ * rows having it. Rows without the field of GROUP BY are not aggregated.
+ * Dates are grouped by month or year by their yyyy-MM-dd prefix, domain names
+ * by their top level domain.
+ */
+final class R2Aggregate {
+
+    /**
+     * Aggregate function computed over a field of the rows.
+     */
+    private enum Function {
+        COUNT, SUM, MIN, MAX
+    }
+
+    final String table;
+    final R2Predicate where;
+    private final List<String> names = new ArrayList<>();
+    private final List<Function> functions = new ArrayList<>();
+    private final List<String> fields = new ArrayList<>();
+    private final String groupBy;
+    private final String grouping;
+    private final Map<String, Object[]> groups = new TreeMap<>();
+
+    private R2Aggregate(String table, R2Predicate where, String groupBy, String grouping) {
+        this.table = table;
+        this.where = where;
+        this.groupBy = groupBy;
+        this.grouping = grouping;
+    }
+
+    /**
+     * Parses the tokens of an AGGREGATE command.
+     *
+     * @param tokens Tokens of the command
+     * @return The aggregates to compute
+     * @throws R2dbErrorException If the command is malformed
+     */
+    static R2Aggregate parse(String[] tokens) throws R2dbErrorException {
+        if (tokens.length < 3) {
+            throw new R2dbErrorException();
+        }
+        int position = 3;
+
+        R2Predicate where = null;
+        if (position < tokens.length && tokens[position].equals("where")) {
+            R2Predicate.Parser parser = new R2Predicate.Parser(tokens, position + 1);
+            where = parser.or();
+            position = parser.position;
+        }
+
+        String groupBy = null;
+        String grouping = null;
+        if (position < tokens.length && tokens[position].equals("group")) {
+            if (position + 3 != tokens.length || !tokens[position + 1].equals("by")) {
+                throw new R2dbErrorException();
+            }
+            groupBy = tokens[position + 2];
+            int open = groupBy.indexOf('(');
+            if (open >= 0) {
+                // tld(field), month(field) or year(field)
+                grouping = groupBy.substring(0, open);
+                if (!groupBy.endsWith(")") || !(grouping.equals("tld") || grouping.equals("month")
+                        || grouping.equals("year"))) {
+                    throw new R2dbErrorException();
+                }
+                groupBy = groupBy.substring(open + 1, groupBy.length() - 1);
+            }
+            if (groupBy.isEmpty()) {
+                throw new R2dbErrorException();
+            }
+            position += 3;
+        }
+        if (position != tokens.length) {
+            throw new R2dbErrorException();
+        }
+
+        R2Aggregate aggregate = new R2Aggregate(tokens[1], where, groupBy, grouping);
+        for (String name : tokens[2].split(",")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            int colon = name.indexOf(':');
+            Function function;
+            try {
+                function = Function.valueOf((colon < 0 ? name : name.substring(0, colon)).toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new R2dbErrorException();
+            }
+            String field = colon < 0 ? null : name.substring(colon + 1);
+            if ((field == null && function != Function.COUNT) || (field != null && field.isEmpty())) {
+                throw new R2dbErrorException();
+            }
+            aggregate.names.add(name);
+            aggregate.functions.add(function);
+            aggregate.fields.add(field);
+        }
+        if (aggregate.functions.isEmpty()) {
+            throw new R2dbErrorException();
+        }
+        return aggregate;
+    }
+
+    /**
+     * Folds a row satisfying the predicate into the aggregates of its group.
+     *
+     * @param row The row
+     */
+    void accept(Object row) {
+        if (!(row instanceof Map)) {
+            return;
+        }
+        Map<?, ?> document = (Map<?, ?>) row;
+        String group = "";
+        if (groupBy != null) {
+            Object value = document.get(groupBy);
+            if (value == null) {
+                return;
+            }
+            group = group(value.toString());
+        }
+
+        Object[] values = groups.computeIfAbsent(group, g -> new Object[functions.size()]);
+        for (int i = 0; i < functions.size(); i++) {
+            Object value = fields.get(i) == null ? null : document.get(fields.get(i));
+            switch (functions.get(i)) {
+                case COUNT:
+                    if (fields.get(i) == null || value != null) {
+                        values[i] = values[i] == null ? 1L : (Long) values[i] + 1;
+                    }
+                    break;
+                case SUM:
+                    BigDecimal number = number(value);
+                    if (number != null) {
+                        values[i] = values[i] == null ? number : ((BigDecimal) values[i]).add(number);
+                    }
+                    break;
+                case MIN:
+                    if (value != null && (values[i] == null || R2TopK.compareValues(value, values[i]) < 0)) {
+                        values[i] = value;
+                    }
+                    break;
+                case MAX:
+                    if (value != null && (values[i] == null || R2TopK.compareValues(value, values[i]) > 0)) {
+                        values[i] = value;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the aggregates: a map from the name of each aggregate to its
+     * value or, with GROUP BY, a map from each group to its aggregates, in the
+     * order of the groups. Aggregates without any value are omitted, except
+     * COUNT, which is 0.
+     *
+     * @return The aggregates
+     */
+    Map<String, Object> result() {
+        if (groupBy == null) {
+            return aggregates(groups.getOrDefault("", new Object[functions.size()]));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Object[]> group : groups.entrySet()) {
+            result.put(group.getKey(), aggregates(group.getValue()));
+        }
+        return result;
+    }
+
+    private Map<String, Object> aggregates(Object[] values) {
+        Map<String, Object> aggregates = new LinkedHashMap<>();
+        for (int i = 0; i < functions.size(); i++) {
+            if (values[i] != null) {
+                aggregates.put(names.get(i), values[i]);
+            } else if (functions.get(i) == Function.COUNT) {
+                aggregates.put(names.get(i), 0L);
+            }
+        }
+        return aggregates;
+    }
+
+    /**
+     * Returns the group of a value of the field of GROUP BY.
+     */
+    private String group(String value) {
+        if (grouping == null) {
+            return value;
+        }
+        switch (grouping) {
+            case "tld":
+                return value.substring(value.lastIndexOf('.') + 1);
+            case "month":
+                return value.length() >= 7 ? value.substring(0, 7) : value;
+            default:
+                return value.length() >= 4 ? value.substring(0, 4) : value;
+        }
+    }
+
+    /**
+     * Returns the numeric value of a field, or null if it isn't a number.
+     */
+    private static BigDecimal number(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new BigDecimal(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
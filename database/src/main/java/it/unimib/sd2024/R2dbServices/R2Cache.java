@@ -0,0 +1,182 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the responses of read queries (SELECT, AGGREGATE, JOIN),
+ * keyed by the normalized query.
+ * Each response is stored together with the tables it was read from and
+ * their versions, taken before the query was executed; as every change to the
+ * rows of a table bumps its version after it becomes visible, a response is
+ * served only while the versions are unchanged, and never reflects rows older
+ * than the ones a new query would read. A deleted and re-created table is a
+ * different table, so its responses are never served either.
+ * The least recently used responses are evicted when the cache holds more
+ * than {@link #MAX_ENTRIES} responses or more than {@link #MAX_BYTES} bytes,
+ * estimated from the length of the queries and of the responses.
+ */
+final class R2Cache {
+    /**
+     * Maximum number of cached responses; 0 disables the cache.
+     */
+    static final int MAX_ENTRIES = Integer.getInteger("r2db.cache.entries", 1024);
+
+    /**
+     * Maximum size of the cached responses, in bytes.
+     */
+    static final long MAX_BYTES = Long.getLong("r2db.cache.maxBytes", 8L * 1024 * 1024);
+
+    /**
+     * Cached response of a query.
+     */
+    private static final class Entry {
+        final R2Table[] tables;
+        final long[] versions;
+        final String response;
+        final long bytes;
+
+        Entry(String query, R2Table[] tables, long[] versions, String response) {
+            this.tables = tables;
+            this.versions = versions;
+            this.response = response;
+            this.bytes = 2L * (query.length() + response.length());
+        }
+    }
+
+    private final R2db db;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    R2Cache(R2db db) {
+        this.db = db;
+    }
+
+    /**
+     * Checks whether the cache is enabled.
+     *
+     * @return true if responses can be cached
+     */
+    boolean isEnabled() {
+        return MAX_ENTRIES > 0 && MAX_BYTES > 0;
+    }
+
+    /**
+     * Returns the cached response of a query, if its tables haven't changed
+     * since it was cached.
+     *
+     * @param query The normalized query
+     * @return The response, or null if it isn't cached or is no longer valid
+     */
+    synchronized String get(String query) {
+        Entry entry = entries.get(query);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (!isValid(entry)) {
+            remove(query, entry);
+            invalidations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Takes the versions of the tables read by a query, before it is executed.
+     *
+     * @param names Names of the tables
+     * @return The tables, or null if one doesn't exist
+     */
+    R2Table[] tables(String... names) {
+        R2Table[] tables = new R2Table[names.length];
+        for (int i = 0; i < names.length; i++) {
+            tables[i] = db.getTable(names[i]);
+            if (tables[i] == null) {
+                return null;
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Returns the current versions of the given tables.
+     *
+     * @param tables The tables
+     * @return Their versions
+     */
+    static long[] versions(R2Table[] tables) {
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            versions[i] = tables[i].getVersion();
+        }
+        return versions;
+    }
+
+    /**
+     * Caches the response of a query, evicting the least recently used
+     * responses if the cache is full.
+     *
+     * @param query    The normalized query
+     * @param tables   Tables read by the query
+     * @param versions Versions of the tables, taken before the query was executed
+     * @param response The response
+     */
+    synchronized void put(String query, R2Table[] tables, long[] versions, String response) {
+        Entry entry = new Entry(query, tables, versions, response);
+        if (entry.bytes > MAX_BYTES) {
+            return;
+        }
+        Entry old = entries.put(query, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > MAX_ENTRIES || bytes > MAX_BYTES) && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= evicted.bytes;
+            evictions++;
+        }
+    }
+
+    /**
+     * Returns the counters of the cache.
+     *
+     * @return The counters, by name
+     */
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+
+    private boolean isValid(Entry entry) {
+        for (int i = 0; i < entry.tables.length; i++) {
+            R2Table table = entry.tables[i];
+            if (db.getTable(table.getName()) != table || table.getVersion() != entry.versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void remove(String query, Entry entry) {
+        entries.remove(query);
+        bytes -= entry.bytes;
+    }
+}
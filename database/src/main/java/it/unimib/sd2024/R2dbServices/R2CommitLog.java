@@ -0,0 +1,121 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Commit log of the MULTI/EXEC batches spanning several tables.
+ * Each table records its mutations of such a batch in its own write-ahead
+ * log, as a BATCH record keyed by the id of the batch. The batch is committed
+ * only once a COMMIT record with its id is forced to this log, after the
+ * BATCH record of every table: the tables replay the BATCH records whose id
+ * is committed and discard the others, so a batch interrupted before its
+ * commit, by a crash or by an error writing a log, is recovered by no table.
+ * The COMMIT records are dropped once no table keeps the BATCH records they
+ * commit in its log, when the log grows past {@link R2Table#SNAPSHOT_INTERVAL}
+ * records.
+ */
+final class R2CommitLog {
+    private final R2Wal wal;
+    private final Set<String> recovered;
+    private final AtomicLong ids;
+    private int threshold = R2Table.SNAPSHOT_INTERVAL;
+
+    /**
+     * Opens the commit log stored in the given file, reading the batches
+     * committed before the database was started.
+     *
+     * @param file File of the log
+     */
+    R2CommitLog(File file) {
+        this.wal = new R2Wal(file);
+        this.recovered = new HashSet<>();
+        long next = System.currentTimeMillis() * 1000;
+        try {
+            for (R2Wal.Record record : wal.read()) {
+                if (record.op == R2Wal.Op.COMMIT) {
+                    recovered.add(record.key);
+                    next = Math.max(next, Long.parseLong(record.key));
+                }
+            }
+        } catch (FileErrorException | NumberFormatException e) {
+            System.out.println("Failed to read the commit log: " + file.getName());
+        }
+
+        // Ids never repeat the ones of the batches recorded before a restart
+        this.ids = new AtomicLong(next);
+    }
+
+    /**
+     * Allocates the id of a new batch.
+     *
+     * @return The id of the batch
+     */
+    String nextId() {
+        return Long.toString(ids.incrementAndGet());
+    }
+
+    /**
+     * Checks whether a batch recorded before the database was started was
+     * committed, so that its BATCH records must be replayed.
+     *
+     * @param id Id of the batch
+     * @return true if the batch was committed
+     */
+    boolean isCommitted(String id) {
+        return recovered.contains(id);
+    }
+
+    /**
+     * Commits a batch, once the BATCH records of every table involved are on
+     * disk.
+     *
+     * @param id     Id of the batch
+     * @param tables Tables involved in the batch
+     * @throws FileErrorException If an error occurs while writing the log: the
+     *                            batch is not committed
+     */
+    synchronized void commit(String id, Collection<R2Table> tables) throws FileErrorException {
+        StringBuilder names = new StringBuilder();
+        for (R2Table table : tables) {
+            names.append(names.length() == 0 ? "" : ",").append(table.getName());
+        }
+        wal.append(R2Wal.Op.COMMIT, id, names.toString());
+    }
+
+    /**
+     * Drops the COMMIT records no table needs any more, if the log has grown
+     * past {@link R2Table#SNAPSHOT_INTERVAL} records, or twice the records
+     * kept by the last compaction. The log is rewritten atomically, so a crash
+     * never loses a record still needed.
+     *
+     * @param tables Tables of the database
+     * @throws FileErrorException If an error occurs while rewriting the log
+     */
+    synchronized void compact(Collection<R2Table> tables) throws FileErrorException {
+        if (wal.size() < threshold) {
+            return;
+        }
+
+        // A batch is added to its tables before it is committed, so none is missed
+        Set<String> live = new HashSet<>();
+        for (R2Table table : tables) {
+            live.addAll(table.getBatches());
+        }
+        List<R2Wal.Record> kept = new ArrayList<>();
+        for (R2Wal.Record record : wal.read()) {
+            if (live.contains(record.key)) {
+                kept.add(record);
+            }
+        }
+        wal.rewrite(kept);
+        threshold = Math.max(R2Table.SNAPSHOT_INTERVAL, kept.size() * 2);
+    }
+}
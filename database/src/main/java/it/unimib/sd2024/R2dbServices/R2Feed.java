@@ -0,0 +1,246 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.json.bind.Jsonb;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Feed of the changes committed to the rows of a table, read by the clients
+ * watching the table (WATCH).
+ * Every change is numbered by a sequence number, one greater than the one of
+ * the previous change, and kept in a ring of {@link #CAPACITY} changes shared
+ * by the watchers: publishing never waits for them, and each watcher reads
+ * the ring at its own pace, from the sequence number of the last change it
+ * received. A watcher that falls more than {@link #CAPACITY} changes behind
+ * finds its next change overwritten, and must read the table again.
+ * The sequence numbers of a new feed start from the current time in
+ * microseconds, so that they keep growing when the database is restarted or
+ * the table is re-created, and a watcher can't resume from a sequence number
+ * of a previous feed.
+ * Watchers wait on a {@link ReentrantLock} rather than on a monitor, so that
+ * the virtual threads serving them release their carrier while waiting.
+ * The same structure is used by {@link R2db} as the log of the changes of
+ * every table, streamed to the replicas (REPLICATE): its changes also carry
+ * the name of their table and the time they were committed.
+ */
+final class R2Feed {
+    /**
+     * Number of changes kept for the watchers.
+     */
+    static final int CAPACITY = Integer.getInteger("r2db.watch.buffer", 4096);
+
+    /**
+     * Milliseconds without changes after which a watcher is sent its position.
+     */
+    static final long HEARTBEAT = Long.getLong("r2db.watch.heartbeatMs", 10000);
+
+    /**
+     * Maximum number of changes handed to a watcher at once.
+     */
+    private static final int BATCH = 256;
+
+    /**
+     * Change committed to a row of the table.
+     */
+    static final class Event {
+        final long seq;
+        final String table;
+        final long time;
+        final String op;
+        final String key;
+        final Object value;
+        private volatile String json;
+
+        private Event(long seq, String table, String op, String key, Object value) {
+            this.seq = seq;
+            this.table = table;
+            this.time = System.currentTimeMillis();
+            this.op = op;
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * Returns the change as a JSON document with its sequence number,
+         * operation, key and new value, serialized once for every watcher.
+         * The changes of the log of the database also carry their table and
+         * the time they were committed, in milliseconds.
+         *
+         * @param jsonb JSON binding used to serialize the change
+         * @return The change, serialized as JSON
+         */
+        String toJson(Jsonb jsonb) {
+            String result = json;
+            if (result == null) {
+                Map<String, Object> event = new LinkedHashMap<>();
+                event.put("seq", seq);
+                if (table != null) {
+                    event.put("table", table);
+                    event.put("time", time);
+                }
+                event.put("op", op);
+                event.put("key", key);
+                if (value != null) {
+                    event.put("value", value);
+                }
+                result = jsonb.toJson(event);
+                json = result;
+            }
+            return result;
+        }
+    }
+
+    private final Event[] ring;
+    private long next = System.currentTimeMillis() * 1000;
+    private int size = 0;
+    private boolean closed = false;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+
+    /**
+     * Creates the feed of a table, which keeps {@link #CAPACITY} changes.
+     */
+    R2Feed() {
+        this(CAPACITY);
+    }
+
+    /**
+     * Creates a feed keeping the given number of changes.
+     *
+     * @param capacity Number of changes kept for the watchers
+     */
+    R2Feed(int capacity) {
+        this.ring = new Event[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Publishes a change, waking up the watchers. It must be called after the
+     * change is logged and visible, while still holding the lock of the
+     * changed key, so that the changes of a key are published in order.
+     *
+     * @param op    Operation of the change: CREATE_KEY, MODIFY, DELETE_KEY or
+     *              EXPIRE
+     * @param key   Key of the changed row
+     * @param value New value of the row, null if it was deleted
+     */
+    void publish(String op, String key, Object value) {
+        publish(null, op, key, value);
+    }
+
+    /**
+     * Publishes a change to the log of the database, recording the table it
+     * belongs to.
+     *
+     * @param table Name of the changed table
+     * @param op    Operation of the change: CREATE_KEY, MODIFY or DELETE_KEY
+     *              for the rows, CREATE, CREATE_INDEX or DELETE for the table
+     * @param key   Key of the changed row, the indexed field for CREATE_INDEX
+     *              or null for the table
+     * @param value New value of the row, the kind of index for CREATE_INDEX or
+     *              null
+     */
+    void publish(String table, String op, String key, Object value) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            ring[(int) (next % ring.length)] = new Event(next, table, op, key, value);
+            next++;
+            if (size < ring.length) {
+                size++;
+            }
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last change published.
+     *
+     * @return The sequence number
+     */
+    long position() {
+        lock.lock();
+        try {
+            return next - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the changes following a sequence number.
+     *
+     * @param after   Sequence number of the last change received
+     * @param timeout Maximum time to wait for a change, in milliseconds
+     * @return The following changes, in order, empty if none was published
+     *         before the timeout, or null if the table was deleted and every
+     *         change was received
+     * @throws FeedGapException     If the changes following the sequence
+     *                              number are no longer, or not yet, available
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    List<Event> poll(long after, long timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            check(after);
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (after == next - 1 && !closed && remaining > 0) {
+                remaining = published.awaitNanos(remaining);
+            }
+            check(after);
+            if (after == next - 1) {
+                return closed ? null : new ArrayList<>();
+            }
+            List<Event> events = new ArrayList<>();
+            for (long seq = after + 1; seq < next && events.size() < BATCH; seq++) {
+                events.add(ring[(int) (seq % ring.length)]);
+            }
+            return events;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks that the changes following a sequence number can be read.
+     *
+     * @param after Sequence number of the last change received
+     * @throws FeedGapException If the changes are no longer, or not yet,
+     *                          available
+     */
+    void check(long after) {
+        lock.lock();
+        try {
+            if (after < next - 1 - size || after > next - 1) {
+                throw new FeedGapException();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the feed of a deleted table: the watchers receive the changes
+     * already published, then their WATCH ends.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index on a field of the rows of a table.
+ * Maps every value of the field to the keys of the rows holding it, so that
+ * predicates on the field are answered without scanning the table:
+ * <ul>
+ * <li>HASH indexes answer equality comparisons in constant time;</li>
+ * <li>RANGE indexes keep the values sorted, as compared by the WHERE
+ * operators, and answer every comparison by visiting only the matching
+ * slice. They hold an entry per value and key, so adding and removing rows
+ * holding the same value never update a shared set of keys.</li>
+ * <li>EXPIRY indexes are RANGE indexes on the expiry date of the rows
+ * (yyyy-MM-dd): the rows whose date precedes the cutoff of the index, the
+ * current day, are expired. The sorted values are the queue of the rows yet
+ * to expire, so moving the cutoff to a new day finds the rows expiring in
+ * the slice between the two days, without any timer per row.</li>
+ * </ul>
+ * The entries of the old versions of a row are kept until the versions are
+ * reclaimed, so the index may return rows that no longer satisfy the
+ * comparison, but never misses a row a snapshot reads.
+ */
+class R2Index {
+
+    /**
+     * Kinds of index.
+     */
+    enum Type {
+        HASH,
+        RANGE,
+        EXPIRY
+    }
+
+    /**
+     * Entry of a sorted index: a value of the field and the key of a row
+     * holding it, sorted by value and then by key. A bound sorts before, or
+     * after, every key of its value.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final String value;
+        final String key;
+        final int bound;
+
+        Entry(String value, String key, int bound) {
+            this.value = value;
+            this.key = key;
+            this.bound = bound;
+        }
+
+        static Entry before(String value) {
+            return new Entry(value, null, -1);
+        }
+
+        static Entry after(String value) {
+            return new Entry(value, null, 1);
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int order = value.compareTo(other.value);
+            if (order != 0) {
+                return order;
+            }
+            if (bound != 0 || other.bound != 0) {
+                return Integer.compare(bound, other.bound);
+            }
+            return key.compareTo(other.key);
+        }
+    }
+
+    private final String field;
+    private final Type type;
+    private final Map<Object, Set<String>> entries;
+    private final ConcurrentSkipListSet<Entry> sorted;
+    private volatile String cutoff;
+
+    /**
+     * Creates an empty index on the given field.
+     *
+     * @param field Field of the rows to index
+     * @param type  Kind of index
+     */
+    R2Index(String field, Type type) {
+        this.field = field;
+        this.type = type;
+        if (type == Type.HASH) {
+            this.entries = new ConcurrentHashMap<>();
+            this.sorted = null;
+        } else {
+            this.entries = null;
+            this.sorted = new ConcurrentSkipListSet<>();
+        }
+        this.cutoff = LocalDate.now().toString();
+    }
+
+    /**
+     * Returns the indexed field.
+     *
+     * @return Field of the rows indexed
+     */
+    String getField() {
+        return field;
+    }
+
+    /**
+     * Returns the kind of the index.
+     *
+     * @return Kind of index
+     */
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * Checks whether the index can answer a comparison.
+     *
+     * @param op Operation (e.g., "e" for equals, "b" for greater than, etc.)
+     * @return true if the index can answer the comparison
+     */
+    boolean supports(String op) {
+        return op.equals("e") || type != Type.HASH;
+    }
+
+    /**
+     * Returns the first day whose rows are not expired, for EXPIRY indexes.
+     *
+     * @return The cutoff, as yyyy-MM-dd
+     */
+    String getCutoff() {
+        return cutoff;
+    }
+
+    /**
+     * Moves the cutoff of an EXPIRY index to a later day, expiring the rows
+     * whose date precedes it. It must be called while holding the write locks
+     * of every stripe of the table.
+     *
+     * @param day The new cutoff, as yyyy-MM-dd
+     * @return Keys of the rows expired, in order of expiry date
+     */
+    List<String> expire(String day) {
+        List<String> expired = new ArrayList<>();
+        if (day.compareTo(cutoff) <= 0) {
+            return expired;
+        }
+        for (Entry entry : sorted.subSet(Entry.before(cutoff), Entry.before(day))) {
+            expired.add(entry.key);
+        }
+        cutoff = day;
+        return expired;
+    }
+
+    /**
+     * Adds a row to the index.
+     *
+     * @param key Key of the row
+     * @param row Row to add
+     */
+    void add(String key, Object row) {
+        Object value = valueOf(row);
+        if (value == null) {
+            return;
+        }
+        if (sorted != null) {
+            sorted.add(new Entry(value.toString(), key, 0));
+            return;
+        }
+        entries.compute(value, (v, keys) -> {
+            if (keys == null) {
+                keys = ConcurrentHashMap.newKeySet();
+            }
+            keys.add(key);
+            return keys;
+        });
+    }
+
+    /**
+     * Removes a row from the index.
+     *
+     * @param key Key of the row
+     * @param row Row to remove
+     */
+    void remove(String key, Object row) {
+        Object value = valueOf(row);
+        if (value == null) {
+            return;
+        }
+        if (sorted != null) {
+            sorted.remove(new Entry(value.toString(), key, 0));
+            return;
+        }
+        entries.computeIfPresent(value, (v, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Returns the keys of the rows whose field satisfies a comparison. The rows
+     * must be checked again against the comparison, as the index may be updated
+     * while it is visited.
+     *
+     * @param op    Operation (e.g., "e" for equals, "b" for greater than, etc.)
+     * @param value Value to compare with
+     * @return Keys of the candidate rows
+     */
+    List<String> lookup(String op, String value) {
+        List<String> result = new ArrayList<>();
+        if (sorted == null) {
+            Set<String> keys = op.equals("e") ? entries.get(value) : null;
+            if (keys != null) {
+                result.addAll(keys);
+            }
+            return result;
+        }
+
+        // Visits only the slice of sorted values satisfying the comparison
+        NavigableSet<Entry> slice;
+        switch (op) {
+            case "e":
+                slice = sorted.subSet(Entry.before(value), Entry.after(value));
+                break;
+            case "b":
+                slice = sorted.tailSet(Entry.after(value));
+                break;
+            case "l":
+            case "s":
+                slice = sorted.headSet(Entry.before(value));
+                break;
+            case "be":
+                slice = sorted.tailSet(Entry.before(value));
+                break;
+            case "le":
+                slice = sorted.headSet(Entry.after(value));
+                break;
+            default:
+                return result;
+        }
+        for (Entry entry : slice) {
+            result.add(entry.key);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether two rows are indexed by the same entry, as they hold the
+     * same value of the field.
+     *
+     * @param row   Row of the table
+     * @param other Another row of the table
+     * @return true if the two rows have the same indexed value
+     */
+    boolean sameEntry(Object row, Object other) {
+        return Objects.equals(valueOf(row), valueOf(other));
+    }
+
+    /**
+     * Returns whether the indexed value of a row falls between two days, as
+     * the rows expired by moving the cutoff of an EXPIRY index from the first
+     * day to the second one do.
+     *
+     * @param row  Row of the table
+     * @param from The first day, included, as yyyy-MM-dd
+     * @param day  The last day, excluded, as yyyy-MM-dd
+     * @return true if the row expires between the two days
+     */
+    boolean expiresBetween(Object row, String from, String day) {
+        Object value = valueOf(row);
+        return value != null && value.toString().compareTo(from) >= 0 && value.toString().compareTo(day) < 0;
+    }
+
+    /**
+     * Extracts the indexed value of the field from a row. RANGE and EXPIRY
+     * indexes use the string representation of the value, as the WHERE
+     * operators do.
+     *
+     * @param row Row of the table
+     * @return Value of the field, or null if the row does not have it
+     */
+    private Object valueOf(Object row) {
+        if (!(row instanceof Map)) {
+            return null;
+        }
+        Object value = ((Map<?, ?>) row).get(field);
+        if (value != null && type != Type.HASH) {
+            return value.toString();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,112 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Clauses of a JOIN command, which selects rows of a table, as SELECT does,
+ * together with the rows of a second table whose field equals a field of
+ * theirs:
+ * <pre>
+ * JOIN Domain * User ON owner email [FIELDS name,expiredate,user.name,user.surname] [WHERE predicate]
+ * </pre>
+ * The predicate applies to the rows of the first table. Fields prefixed with
+ * the name of the second table select the fields of its rows; if either table
+ * has no fields, its rows are kept whole.
+ */
+final class R2Join {
+    final String left;
+    final String key;
+    final String right;
+    final String leftField;
+    final String rightField;
+    final List<String> leftFields;
+    final List<String> rightFields;
+    final R2Predicate where;
+
+    private R2Join(String left, String key, String right, String leftField, String rightField,
+            List<String> leftFields, List<String> rightFields, R2Predicate where) {
+        this.left = left;
+        this.key = key;
+        this.right = right;
+        this.leftField = leftField;
+        this.rightField = rightField;
+        this.leftFields = leftFields;
+        this.rightFields = rightFields;
+        this.where = where;
+    }
+
+    /**
+     * Returns the name of the field holding the matching rows of the second
+     * table in each result row: the name of the table, lowercased.
+     *
+     * @return Name of the field
+     */
+    String nested() {
+        return right.toLowerCase();
+    }
+
+    /**
+     * Parses the tokens of a JOIN command.
+     *
+     * @param tokens Tokens of the command
+     * @return The clauses of the command
+     * @throws R2dbErrorException If the command is malformed
+     */
+    static R2Join parse(String[] tokens) throws R2dbErrorException {
+        if (tokens.length < 7 || !tokens[4].equals("on")) {
+            throw new R2dbErrorException();
+        }
+        String right = table(tokens[3]);
+        String prefix = tokens[3] + ".";
+        int position = 7;
+
+        List<String> leftFields = null;
+        List<String> rightFields = null;
+        if (position < tokens.length && tokens[position].equals("fields")) {
+            if (position + 1 >= tokens.length) {
+                throw new R2dbErrorException();
+            }
+            for (String field : tokens[position + 1].split(",")) {
+                if (field.startsWith(prefix) && field.length() > prefix.length()) {
+                    rightFields = add(rightFields, field.substring(prefix.length()));
+                } else if (!field.isEmpty()) {
+                    leftFields = add(leftFields, field);
+                }
+            }
+            position += 2;
+        }
+
+        R2Predicate where = null;
+        if (position < tokens.length && tokens[position].equals("where")) {
+            R2Predicate.Parser parser = new R2Predicate.Parser(tokens, position + 1);
+            where = parser.or();
+            position = parser.position;
+        }
+        if (position != tokens.length) {
+            throw new R2dbErrorException();
+        }
+        return new R2Join(tokens[1], tokens[2], right, tokens[5], tokens[6], leftFields, rightFields, where);
+    }
+
+    /**
+     * Returns the name of the second table from its token, capitalized as the
+     * tokenizer does for the first one.
+     *
+     * @param token Token of the second table
+     * @return Name of the table
+     */
+    static String table(String token) {
+        return token.substring(0, 1).toUpperCase() + token.substring(1);
+    }
+
+    private static List<String> add(List<String> fields, String field) {
+        if (fields == null) {
+            fields = new ArrayList<>();
+        }
+        fields.add(field);
+        return fields;
+    }
+}
@@ -0,0 +1,205 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi-version concurrency control of the rows of the database.
+ * Every row of a table is a chain of versions, from the newest to the oldest.
+ * A writer installs a new version at the head of the chain while holding the
+ * write lock of the stripe of the key, as before, but the version stays
+ * pending, invisible to the readers, until it is committed: committing stamps
+ * the pending versions of a change, one or all the ones of a MULTI/EXEC
+ * batch, with the next number of the commit clock of the database, then
+ * publishes that number.
+ * A reader opens a {@link Snapshot} with the last number published and, for
+ * each row, reads the newest version committed up to it, without taking any
+ * lock: it sees the rows of every table as they were when the snapshot was
+ * opened, however long it takes to read them, and never waits for a writer.
+ * The versions no open snapshot can read any more are reclaimed: the oldest
+ * number any snapshot may read is the {@link #horizon()}, and only the newest
+ * version committed up to it, and the ones following it, are kept.
+ * The value of a version is never changed once installed: a change installs
+ * a new value rather than modifying the old one. The values read from a
+ * snapshot can therefore be kept, serialized or projected after the snapshot
+ * is closed, while the writers proceed.
+ */
+final class R2Mvcc {
+    /**
+     * Commit number of the versions not committed yet, which no snapshot reads.
+     */
+    static final long PENDING = Long.MAX_VALUE;
+
+    /**
+     * Version of a row.
+     */
+    static final class Version {
+        final Object value;
+        volatile long commit;
+        volatile Version previous;
+
+        /**
+         * Creates a pending version.
+         *
+         * @param value    Value of the row, null if the row is deleted
+         * @param previous Previous version of the row, or null
+         */
+        Version(Object value, Version previous) {
+            this.value = value;
+            this.commit = PENDING;
+            this.previous = previous;
+        }
+
+        /**
+         * Returns the newest version committed up to a commit number, starting
+         * from this one.
+         *
+         * @param seq Commit number; {@link #PENDING} also returns the pending
+         *            versions
+         * @return The version, or null if the row did not exist yet
+         */
+        Version at(long seq) {
+            Version version = this;
+            while (version != null && version.commit > seq) {
+                version = version.previous;
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Consistent view of the database at a commit number. It must be closed
+     * once read, so that the versions it reads can be reclaimed.
+     */
+    final class Snapshot implements AutoCloseable {
+        final long seq;
+        private final long id;
+
+        private Snapshot(long seq, long id) {
+            this.seq = seq;
+            this.id = id;
+        }
+
+        /**
+         * Closes the snapshot.
+         */
+        @Override
+        public void close() {
+            readers.remove(this);
+        }
+    }
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private volatile long committed = 0;
+    private final AtomicLong horizon = new AtomicLong();
+    private final AtomicLong ids = new AtomicLong();
+    private final ConcurrentSkipListSet<Snapshot> readers = new ConcurrentSkipListSet<>(
+            Comparator.<Snapshot>comparingLong(s -> s.seq).thenComparingLong(s -> s.id));
+    private final LongAdder opened = new LongAdder();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    /**
+     * Opens a snapshot of the last changes committed. It never waits for the
+     * writers.
+     *
+     * @return The snapshot, to be closed once read
+     */
+    Snapshot open() {
+        opened.increment();
+        while (true) {
+            Snapshot snapshot = new Snapshot(committed, ids.incrementAndGet());
+            readers.add(snapshot);
+
+            // Registered before the horizon is read: either the horizon includes it, or it is past it
+            if (snapshot.seq >= horizon.get()) {
+                return snapshot;
+            }
+
+            // Older than the horizon, whose versions may already be reclaimed: opens a newer one
+            readers.remove(snapshot);
+        }
+    }
+
+    /**
+     * Commits a change, making its pending versions visible to the snapshots
+     * opened from now on, all at once.
+     *
+     * @param versions Pending versions of the change
+     */
+    void commit(List<Version> versions) {
+        if (versions.isEmpty()) {
+            return;
+        }
+        commitLock.lock();
+        try {
+            long seq = committed + 1;
+            for (Version version : versions) {
+                version.commit = seq;
+            }
+            committed = seq;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the oldest commit number an open snapshot, or a snapshot opened
+     * from now on, may read: the versions older than the newest one committed
+     * up to it can be reclaimed.
+     *
+     * @return The commit number
+     */
+    long horizon() {
+        long oldest = oldest();
+        horizon.accumulateAndGet(oldest, Math::max);
+
+        // A snapshot registered meanwhile is either seen here or refused by open()
+        return Math.min(oldest, oldest());
+    }
+
+    /**
+     * Returns the commit number of the oldest open snapshot, or the last
+     * commit number if none is open.
+     */
+    private long oldest() {
+        long seq = committed;
+        Iterator<Snapshot> open = readers.iterator();
+        return open.hasNext() ? Math.min(seq, open.next().seq) : seq;
+    }
+
+    /**
+     * Counts versions reclaimed, for the statistics.
+     *
+     * @param count Number of versions reclaimed
+     */
+    void reclaimed(int count) {
+        reclaimed.addAndGet(count);
+    }
+
+    /**
+     * Returns the statistics of the multi-version concurrency control: the
+     * last commit number, the snapshots opened so far and the ones still
+     * open, the commit number of the oldest of them and the old versions
+     * reclaimed so far.
+     *
+     * @return The statistics, by name
+     */
+    Map<String, Object> getStats() {
+        long seq = committed;
+        Iterator<Snapshot> open = readers.iterator();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("committed", seq);
+        stats.put("snapshots", opened.sum());
+        stats.put("open", readers.size());
+        stats.put("oldest", open.hasNext() ? open.next().seq : seq);
+        stats.put("reclaimed", reclaimed.get());
+        return stats;
+    }
+}
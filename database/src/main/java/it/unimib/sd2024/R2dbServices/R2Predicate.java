@@ -0,0 +1,245 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Predicate of a WHERE clause: a comparison on a field of the rows, or a tree
+ * of comparisons combined with AND and OR.
+ * The clause is written as a sequence of comparisons, param op value,
+ * separated by AND or OR; AND binds tighter than OR, and a group can be
+ * enclosed between ( and ) tokens:
+ * <pre>
+ * WHERE owner E john@doe.com AND ( expiredate BE 2024-01-01 OR renew E true )
+ * </pre>
+ * The predicate is evaluated on each row in a single pass. When the indexes of
+ * the table can answer it, the candidate rows are found by intersecting (AND)
+ * or joining (OR) the keys returned by the indexes, without scanning the
+ * table.
+ */
+abstract class R2Predicate {
+
+    /**
+     * Checks whether a row satisfies the predicate.
+     *
+     * @param row Row to check
+     * @return true if the row satisfies the predicate
+     */
+    abstract boolean matches(Object row);
+
+    /**
+     * Looks up the keys of the rows that may satisfy the predicate in the
+     * indexes of a table. The rows must be checked again against the
+     * predicate, as the indexes may be updated while they are visited.
+     *
+     * @param table Table to look up
+     * @return Keys of the candidate rows, or null if the indexes can't answer
+     *         the predicate and the table must be scanned
+     */
+    abstract Set<String> candidates(R2Table table);
+
+    /**
+     * Creates a predicate made of a single comparison.
+     *
+     * @param param Parameter to compare
+     * @param op    Operation (e.g., "e" for equals, "b" for greater than, etc.)
+     * @param value Value to compare with
+     * @return The predicate
+     */
+    static R2Predicate comparison(String param, String op, String value) {
+        return new Comparison(param, op, value);
+    }
+
+    /**
+     * Creates the conjunction of two predicates.
+     *
+     * @param first  First predicate
+     * @param second Second predicate
+     * @return The predicate satisfied by the rows satisfying both
+     */
+    static R2Predicate and(R2Predicate first, R2Predicate second) {
+        return new And(List.of(first, second));
+    }
+
+    /**
+     * Recursive descent parser of a WHERE clause. The clause ends at the first
+     * token that can't continue it, where {@link #position} is left.
+     */
+    static final class Parser {
+        private final String[] tokens;
+        int position;
+
+        /**
+         * Creates a parser of the clause starting at the given position.
+         *
+         * @param tokens   Tokens of the command
+         * @param position Position of the first token after WHERE
+         */
+        Parser(String[] tokens, int position) {
+            this.tokens = tokens;
+            this.position = position;
+        }
+
+        /**
+         * Parses the clause.
+         *
+         * @return The predicate
+         * @throws R2dbErrorException If the clause is malformed
+         */
+        R2Predicate or() throws R2dbErrorException {
+            List<R2Predicate> terms = new ArrayList<>();
+            terms.add(and());
+            while (accept("or")) {
+                terms.add(and());
+            }
+            return terms.size() == 1 ? terms.get(0) : new Or(terms);
+        }
+
+        private R2Predicate and() {
+            List<R2Predicate> factors = new ArrayList<>();
+            factors.add(factor());
+            while (accept("and")) {
+                factors.add(factor());
+            }
+            return factors.size() == 1 ? factors.get(0) : new And(factors);
+        }
+
+        private R2Predicate factor() {
+            if (accept("(")) {
+                R2Predicate group = or();
+                if (!accept(")")) {
+                    throw new R2dbErrorException();
+                }
+                return group;
+            }
+            if (position + 3 > tokens.length) {
+                throw new R2dbErrorException();
+            }
+            R2Predicate comparison = new Comparison(tokens[position], tokens[position + 1], tokens[position + 2]);
+            position += 3;
+            return comparison;
+        }
+
+        private boolean accept(String token) {
+            if (position < tokens.length && tokens[position].equals(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Comparison of a field of the rows with a value.
+     */
+    private static final class Comparison extends R2Predicate {
+        private final String param;
+        private final String op;
+        private final String value;
+
+        Comparison(String param, String op, String value) {
+            this.param = param;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        boolean matches(Object row) {
+            return R2db.matches(row, param, op, value);
+        }
+
+        @Override
+        Set<String> candidates(R2Table table) {
+            R2Index index = table.getIndex(param);
+            if (index == null || !index.supports(op)) {
+                return null;
+            }
+            return new LinkedHashSet<>(index.lookup(op, value));
+        }
+    }
+
+    /**
+     * Conjunction of predicates.
+     */
+    private static final class And extends R2Predicate {
+        private final List<R2Predicate> factors;
+
+        And(List<R2Predicate> factors) {
+            this.factors = factors;
+        }
+
+        @Override
+        boolean matches(Object row) {
+            for (R2Predicate factor : factors) {
+                if (!factor.matches(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Set<String> candidates(R2Table table) {
+            // Intersects the keys of the factors answered by an index, always filtering the smaller set
+            Set<String> result = null;
+            for (R2Predicate factor : factors) {
+                Set<String> keys = factor.candidates(table);
+                if (keys == null) {
+                    continue;
+                }
+                if (result == null) {
+                    result = keys;
+                } else if (keys.size() < result.size()) {
+                    keys.retainAll(result);
+                    result = keys;
+                } else {
+                    result.retainAll(keys);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Disjunction of predicates.
+     */
+    private static final class Or extends R2Predicate {
+        private final List<R2Predicate> terms;
+
+        Or(List<R2Predicate> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        boolean matches(Object row) {
+            for (R2Predicate term : terms) {
+                if (term.matches(row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        Set<String> candidates(R2Table table) {
+            // Every term must be answered by an index, otherwise the table is scanned
+            Set<String> result = new HashSet<>();
+            for (R2Predicate term : terms) {
+                Set<String> keys = term.candidates(table);
+                if (keys == null) {
+                    return null;
+                }
+                result.addAll(keys);
+            }
+            return result;
+        }
+    }
+}
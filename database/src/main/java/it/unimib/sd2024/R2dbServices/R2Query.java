@@ -1,5 +1,11 @@
 package it.unimib.sd2024.R2dbServices;
 
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import javax.json.bind.Jsonb;
 import javax.json.bind.JsonbBuilder;
 
@@ -7,11 +13,13 @@ import it.unimib.sd2024.exceptions.*;
 
 public class R2Query {
     private final R2db db;
+    private final R2Cache cache;
     private static R2Query r2q = null;
     private static Jsonb jsonb = JsonbBuilder.create();
 
     private R2Query() {
         this.db = R2db.getInstance();
+        this.cache = new R2Cache(db);
     }
 
     public synchronized static R2Query getInstance() {
@@ -20,21 +28,55 @@ public class R2Query {
         return r2q;
     }
 
+    /**
+     * Executes a query and returns its response as a JSON string literal.
+     *
+     * @param query The query
+     * @return The response of the query, serialized as a JSON string
+     */
     public String query(String query)
             throws R2dbFileNotFoundException, TableIsEmptyException, R2dbErrorException,
             TableAlreadyExistsException, UndefinedKeyException, JsonBException, FileErrorException {
+        // Return the response in JSON format
+        return jsonb.toJson(execute(query));
+    }
+
+    /**
+     * Executes a query and returns its raw response, without any escaping.
+     *
+     * @param query The query
+     * @return The response of the query
+     */
+    public String execute(String query)
+            throws R2dbFileNotFoundException, TableIsEmptyException, R2dbErrorException,
+            TableAlreadyExistsException, UndefinedKeyException, JsonBException, FileErrorException {
         Object response = null;
-        String[] querySplit = query.split(" ");
-        
-        // Lowercase all the query
-        for(int i = 0; i < querySplit.length; i++) {
-            querySplit[i] = querySplit[i].toLowerCase();
+
+        // A MULTI/EXEC batch carries one command per line
+        if (query.regionMatches(true, 0, "multi", 0, 5) && (query.length() == 5 || query.charAt(5) == '\n')) {
+            return multi(query);
         }
+        String[] querySplit = parse(query);
         String command = querySplit[0];
 
-        // Capitalize the first letter of the table name
-        String tmp = querySplit[1];
-        querySplit[1] = tmp.substring(0, 1).toUpperCase() + tmp.substring(1);
+        // Read queries are answered from the cache while the tables they read are unchanged
+        String[] read = cache.isEnabled() ? readTables(querySplit) : null;
+        String cacheKey = null;
+        R2Table[] tables = null;
+        long[] versions = null;
+        if (read != null) {
+            // The key is the normalized query, not its text: the tokens, with the command and
+            // the table shared through the plan cache, joined by single spaces
+            cacheKey = String.join(" ", querySplit);
+            String cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+            tables = cache.tables(read);
+            if (tables != null) {
+                versions = R2Cache.versions(tables);
+            }
+        }
 
         // Switch statement to handle different query commands
         switch (command) {
@@ -51,6 +93,22 @@ public class R2Query {
                     response = "OK!";
                 }
                 break;
+            case "create_index":
+                try {
+                    db.create_index(querySplit[1], querySplit[2], querySplit.length > 3 ? querySplit[3] : "hash");
+                } catch (R2dbFileNotFoundException e) {
+                    throw new R2dbFileNotFoundException();
+                } catch (R2dbErrorException e) {
+                    throw new R2dbErrorException();
+                } catch (FileErrorException e) {
+                    throw new FileErrorException();
+                } catch (JsonBException e) {
+                    throw new JsonBException();
+                } catch (Exception e) {
+                    throw new R2dbErrorException();
+                }
+                response = "OK!";
+                break;
             case "create_key":
                 try {
                     db.create(querySplit[1], querySplit[2], querySplit[3]);
@@ -66,10 +124,23 @@ public class R2Query {
                     response = "OK!";
                 }
                 break;
+            case "insert":
+                try {
+                    response = db.insert(querySplit[1], querySplit[2], querySplit.length > 3 ? querySplit[3] : null);
+                } catch (R2dbFileNotFoundException e) {
+                    throw new R2dbFileNotFoundException();
+                } catch (JsonBException e) {
+                    throw new JsonBException();
+                } catch (Exception e) {
+                    throw new R2dbErrorException();
+                }
+                break;
             case "select":
-                if (querySplit.length == 3)
+                // Clauses after the key: FIELDS, WHERE, ORDER BY, LIMIT and OFFSET
+                R2Select select = R2Select.parse(querySplit);
+                if (select.where == null && !select.isOrdered())
                     try {
-                        response = db.select(querySplit[1], querySplit[2]);
+                        response = db.select(select.table, select.key, select.fields);
                     } catch (FileErrorException e) {
                         throw new FileErrorException();
                     } catch (R2dbFileNotFoundException e) {
@@ -83,7 +154,7 @@ public class R2Query {
                     }
                 else
                     try {
-                        response = db.select(querySplit[1], querySplit[2], querySplit[4], querySplit[5], querySplit[6]);
+                        response = db.select(select);
                     } catch (FileErrorException e) {
                         throw new FileErrorException();
                     } catch (R2dbFileNotFoundException e) {
@@ -97,6 +168,53 @@ public class R2Query {
                         throw new R2dbErrorException();
                     }
                 break;
+            case "active":
+                // Rows not expired, with the clauses of a SELECT: ACTIVE tab key [FIELDS] [WHERE] ...
+                R2Select active = R2Select.parse(querySplit);
+                try {
+                    response = db.active(active);
+                } catch (FileErrorException e) {
+                    throw new FileErrorException();
+                } catch (R2dbFileNotFoundException e) {
+                    throw new R2dbFileNotFoundException();
+                } catch (JsonBException e) {
+                    throw new JsonBException();
+                } catch (UndefinedKeyException e) {
+                    throw new UndefinedKeyException();
+                } catch (Exception e) {
+                    throw new R2dbErrorException();
+                }
+                break;
+            case "aggregate":
+                // Aggregates computed while the table is read: COUNT, SUM, MIN, MAX [WHERE] [GROUP BY]
+                R2Aggregate aggregate = R2Aggregate.parse(querySplit);
+                try {
+                    response = db.aggregate(aggregate);
+                } catch (R2dbFileNotFoundException e) {
+                    throw new R2dbFileNotFoundException();
+                } catch (JsonBException e) {
+                    throw new JsonBException();
+                } catch (UndefinedKeyException e) {
+                    throw new UndefinedKeyException();
+                } catch (Exception e) {
+                    throw new R2dbErrorException();
+                }
+                break;
+            case "join":
+                // Rows of a table joined with the rows of another one: JOIN tab key other ON field otherfield
+                R2Join join = R2Join.parse(querySplit);
+                try {
+                    response = db.join(join);
+                } catch (R2dbFileNotFoundException e) {
+                    throw new R2dbFileNotFoundException();
+                } catch (JsonBException e) {
+                    throw new JsonBException();
+                } catch (UndefinedKeyException e) {
+                    throw new UndefinedKeyException();
+                } catch (Exception e) {
+                    throw new R2dbErrorException();
+                }
+                break;
             case "modify":
                 try {
                     db.modify(querySplit[1], querySplit[2], querySplit[3], querySplit[4]);
@@ -161,11 +279,291 @@ public class R2Query {
                     throw new R2dbErrorException();
                 }
                 break;
+            case "indexes":
+                // Schema of a table, used to create it on another database
+                try {
+                    response = db.indexes(querySplit[1]);
+                } catch (R2dbFileNotFoundException e) {
+                    throw new R2dbFileNotFoundException();
+                } catch (JsonBException e) {
+                    throw new JsonBException();
+                } catch (Exception e) {
+                    throw new R2dbErrorException();
+                }
+                break;
             default:
                 throw new R2dbErrorException();
         }
-        
-        // Return the response in JSON format
-        return jsonb.toJson(response);
+
+        String result = response.toString();
+        if (versions != null) {
+            cache.put(cacheKey, tables, versions, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the counters of the result cache: the cached responses and their
+     * size in bytes, the hits and misses, the responses evicted to make room
+     * and the ones dropped because their tables changed.
+     *
+     * @return The counters, by name
+     */
+    public Map<String, Object> getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Returns the statistics of the replication of the database, as a
+     * primary.
+     *
+     * @return The statistics, by name
+     */
+    public Map<String, Object> getReplicationStats() {
+        return db.getReplicationStats();
+    }
+
+    /**
+     * Returns the statistics of the snapshots read by the queries and of the
+     * versions of the rows.
+     *
+     * @return The statistics, by name
+     */
+    public Map<String, Object> getMvccStats() {
+        return db.getMvccStats();
+    }
+
+    /**
+     * Checks whether a query changes the database, so that it can be refused
+     * by a replica, which is read-only.
+     *
+     * @param query The query
+     * @return true if the command of the query changes the tables, their rows
+     *         or their indexes
+     */
+    public static boolean isWrite(String query) {
+        int end = 0;
+        while (end < query.length() && query.charAt(end) != ' ' && query.charAt(end) != '\n') {
+            end++;
+        }
+        switch (query.substring(0, end).toLowerCase()) {
+            case "create":
+            case "create_index":
+            case "create_key":
+            case "insert":
+            case "modify":
+            case "delete":
+            case "delete_key":
+            case "multi":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the tables read by a query whose response can be cached.
+     *
+     * @param querySplit Tokens of the query
+     * @return Names of the tables, or null if the response can't be cached
+     */
+    private static String[] readTables(String[] querySplit) {
+        switch (querySplit[0]) {
+            case "select":
+            case "active":
+            case "aggregate":
+                return new String[] { querySplit[1] };
+            case "join":
+                return querySplit.length > 3 ? new String[] { querySplit[1], R2Join.table(querySplit[3]) } : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks whether a query is a streamed SELECT, to be executed with
+     * {@link #scan(String, RowConsumer)}.
+     *
+     * @param query The query
+     * @return true if the command of the query is SCAN
+     */
+    public static boolean isScan(String query) {
+        return query.regionMatches(true, 0, "scan ", 0, 5);
+    }
+
+    /**
+     * Executes a streamed SELECT, SCAN table key followed by the clauses of a
+     * SELECT,
+     * handing the selected rows to the consumer one at a time.
+     *
+     * @param query    The query
+     * @param consumer Consumer receiving the selected rows
+     * @throws IOException If the consumer fails to deliver a row
+     */
+    public void scan(String query, RowConsumer consumer)
+            throws R2dbFileNotFoundException, R2dbErrorException, JsonBException, IOException {
+        String[] querySplit = parse(query);
+        if (!querySplit[0].equals("scan")) {
+            throw new R2dbErrorException();
+        }
+        R2Select select = R2Select.parse(querySplit);
+        try {
+            db.scan(select, consumer);
+        } catch (R2dbFileNotFoundException e) {
+            throw new R2dbFileNotFoundException();
+        } catch (JsonBException e) {
+            throw new JsonBException();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new R2dbErrorException();
+        }
+    }
+
+    /**
+     * Checks whether a query is a WATCH, or a REPLICATE, which watches every
+     * table, to be executed with {@link #watch(String, RowConsumer, Flushable)}.
+     *
+     * @param query The query
+     * @return true if the command of the query is WATCH or REPLICATE
+     */
+    public static boolean isWatch(String query) {
+        return query.regionMatches(true, 0, "watch ", 0, 6) || isReplicate(query);
+    }
+
+    private static boolean isReplicate(String query) {
+        return query.regionMatches(true, 0, "replicate", 0, 9)
+                && (query.length() == 9 || query.charAt(9) == ' ');
+    }
+
+    /**
+     * Executes a WATCH, WATCH table [FROM seq], handing the changes committed
+     * to the table to the consumer until the table is deleted, the watcher
+     * falls behind or the consumer fails.
+     * A REPLICATE [FROM seq] streams the log of the database to a replica in
+     * the same way, see {@link R2db#replicate(Long, RowConsumer, Flushable)}.
+     *
+     * @param query    The query
+     * @param consumer Consumer receiving the changes
+     * @param flush    Flushes the changes handed to the consumer
+     * @throws FeedGapException If the changes following the sequence number
+     *                          are no longer, or not yet, available
+     * @throws IOException      If the consumer fails to deliver a change
+     */
+    public void watch(String query, RowConsumer consumer, Flushable flush)
+            throws R2dbFileNotFoundException, R2dbErrorException, FeedGapException, JsonBException, IOException {
+        if (isReplicate(query)) {
+            // REPLICATE has no table: its tokens are not capitalized
+            String[] tokens = query.trim().split(" +");
+            if (tokens.length != 1 && (tokens.length != 3 || !tokens[1].equalsIgnoreCase("from"))) {
+                throw new R2dbErrorException();
+            }
+            Long from = null;
+            if (tokens.length == 3) {
+                try {
+                    from = Long.parseLong(tokens[2]);
+                } catch (NumberFormatException e) {
+                    throw new R2dbErrorException();
+                }
+            }
+            db.replicate(from, consumer, flush);
+            return;
+        }
+        String[] querySplit = parse(query);
+        if (!querySplit[0].equals("watch") || (querySplit.length != 2
+                && (querySplit.length != 4 || !querySplit[2].equals("from")))) {
+            throw new R2dbErrorException();
+        }
+        Long from = null;
+        if (querySplit.length == 4) {
+            try {
+                from = Long.parseLong(querySplit[3]);
+            } catch (NumberFormatException e) {
+                throw new R2dbErrorException();
+            }
+        }
+        db.watch(querySplit[1], from, consumer, flush);
+    }
+
+    /**
+     * Executes a MULTI/EXEC batch: the first line is MULTI, the last one is
+     * EXEC and each line in between is a command. The commands are executed
+     * atomically by {@link R2db#exec(List)}.
+     *
+     * @param query The batch, one command per line
+     * @return A JSON array with the result of each command
+     */
+    private String multi(String query)
+            throws R2dbFileNotFoundException, TableIsEmptyException, R2dbErrorException,
+            UndefinedKeyException, JsonBException, FileErrorException {
+        String[] lines = query.split("\n");
+        List<String[]> commands = new ArrayList<>();
+        boolean exec = false;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (exec) {
+                // Nothing may follow EXEC
+                throw new R2dbErrorException();
+            }
+            if (line.equalsIgnoreCase("exec")) {
+                exec = true;
+                continue;
+            }
+            String[] command = parse(line);
+            switch (command[0]) {
+                case "create_key":
+                case "insert":
+                case "modify":
+                case "delete_key":
+                case "select":
+                case "get_last_index":
+                    commands.add(command);
+                    break;
+                default:
+                    // Changes to the set of tables and indexes are not allowed in a batch
+                    throw new R2dbErrorException();
+            }
+        }
+        if (!exec) {
+            throw new R2dbErrorException();
+        }
+        if (commands.isEmpty()) {
+            return "[]";
+        }
+
+        try {
+            return jsonb.toJson(db.exec(commands));
+        } catch (R2dbFileNotFoundException e) {
+            throw new R2dbFileNotFoundException();
+        } catch (UndefinedKeyException e) {
+            throw new UndefinedKeyException();
+        } catch (TableIsEmptyException e) {
+            throw new TableIsEmptyException();
+        } catch (FileErrorException e) {
+            throw new FileErrorException();
+        } catch (JsonBException e) {
+            throw new JsonBException();
+        } catch (Exception e) {
+            throw new R2dbErrorException();
+        }
+    }
+
+    /**
+     * Splits a command in its tokens, lowercasing them, except for the JSON
+     * documents, and capitalizing the first letter of the table name.
+     *
+     * @param query The command
+     * @return The tokens of the command
+     * @throws R2dbErrorException If the command has no table name
+     */
+    private String[] parse(String query) throws R2dbErrorException {
+        String[] querySplit = R2Tokenizer.tokenize(query);
+        if (querySplit.length < 2) {
+            throw new R2dbErrorException();
+        }
+        return querySplit;
     }
 }
@@ -0,0 +1,152 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Clauses of a SELECT or SCAN command, which follow the table and the key in
+ * this order, each of them optional:
+ * <pre>
+ * SELECT table key [FIELDS a,b,c] [WHERE predicate] [ORDER BY field [ASC|DESC]] [LIMIT n] [OFFSET m]
+ * </pre>
+ */
+final class R2Select {
+    final String table;
+    final String key;
+    final List<String> fields;
+    final R2Predicate where;
+    final String orderBy;
+    final boolean descending;
+    final int limit;
+    final int offset;
+
+    /**
+     * Creates a query with the given clauses.
+     *
+     * @param table      Name of the table
+     * @param key        Key to select, or "*" for every key
+     * @param fields     Fields to keep, or null to keep whole rows
+     * @param where      Predicate the rows must satisfy, or null
+     * @param orderBy    Field to order by, or null
+     * @param descending Whether the order is descending
+     * @param limit      Maximum number of rows, or -1 for no limit
+     * @param offset     Number of rows skipped
+     */
+    R2Select(String table, String key, List<String> fields, R2Predicate where, String orderBy, boolean descending,
+            int limit, int offset) {
+        this.table = table;
+        this.key = key;
+        this.fields = fields;
+        this.where = where;
+        this.orderBy = orderBy;
+        this.descending = descending;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /**
+     * Parses the tokens of a SELECT or SCAN command.
+     *
+     * @param tokens Tokens of the command
+     * @return The clauses of the command
+     * @throws R2dbErrorException If the command is malformed
+     */
+    static R2Select parse(String[] tokens) throws R2dbErrorException {
+        if (tokens.length < 3) {
+            throw new R2dbErrorException();
+        }
+        int position = 3;
+
+        List<String> fields = null;
+        if (is(tokens, position, "fields")) {
+            fields = new ArrayList<>();
+            for (String field : token(tokens, position + 1).split(",")) {
+                if (!field.isEmpty()) {
+                    fields.add(field);
+                }
+            }
+            position += 2;
+        }
+
+        R2Predicate where = null;
+        if (is(tokens, position, "where")) {
+            // The predicate ends at the first token that can't continue it
+            R2Predicate.Parser parser = new R2Predicate.Parser(tokens, position + 1);
+            where = parser.or();
+            position = parser.position;
+        }
+
+        String orderBy = null;
+        boolean descending = false;
+        if (is(tokens, position, "order")) {
+            if (!is(tokens, position + 1, "by")) {
+                throw new R2dbErrorException();
+            }
+            orderBy = token(tokens, position + 2);
+            position += 3;
+            if (is(tokens, position, "asc") || is(tokens, position, "desc")) {
+                descending = tokens[position].equals("desc");
+                position++;
+            }
+        }
+
+        int limit = -1;
+        if (is(tokens, position, "limit")) {
+            limit = number(token(tokens, position + 1));
+            position += 2;
+        }
+        int offset = 0;
+        if (is(tokens, position, "offset")) {
+            offset = number(token(tokens, position + 1));
+            position += 2;
+        }
+
+        if (position != tokens.length) {
+            throw new R2dbErrorException();
+        }
+        return new R2Select(tokens[1], tokens[2], fields, where, orderBy, descending, limit, offset);
+    }
+
+    /**
+     * Checks whether the rows must be ordered or limited.
+     *
+     * @return true if the query has an ORDER BY, LIMIT or OFFSET clause
+     */
+    boolean isOrdered() {
+        return orderBy != null || limit >= 0 || offset > 0;
+    }
+
+    /**
+     * Creates the collector of the rows of an ordered query.
+     *
+     * @return The collector, or null if the query is not ordered
+     */
+    R2TopK topK() {
+        return isOrdered() ? new R2TopK(orderBy, descending, limit, offset) : null;
+    }
+
+    private static boolean is(String[] tokens, int position, String token) {
+        return position < tokens.length && tokens[position].equals(token);
+    }
+
+    private static String token(String[] tokens, int position) {
+        if (position >= tokens.length) {
+            throw new R2dbErrorException();
+        }
+        return tokens[position];
+    }
+
+    private static int number(String token) {
+        try {
+            int value = Integer.parseInt(token);
+            if (value < 0) {
+                throw new R2dbErrorException();
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new R2dbErrorException();
+        }
+    }
+}
@@ -21,7 +21,12 @@ public class R2SetUp {
     public static void setUpR2db(String[] josns) {
         System.out.println("\nInitiated database setup...\n");
 
-        File folder = new File("./dbJsons/");
+        File folder = new File(R2db.DATA_DIR);
+
+        // A new folder, such as the one of a new replica, starts empty
+        if (!folder.exists() && folder.mkdirs()) {
+            System.out.println("Created the data folder " + folder.getPath());
+        }
 
         // Check if the directory exists and is valid
         if (!folder.exists() || !folder.isDirectory()) {
@@ -49,9 +54,8 @@ public class R2SetUp {
 
         // Process additional JSON files specified in the arguments
         for (String jsonFileName : josns) {
-            String path = "./dbJsons/" + jsonFileName;
             // Process the specified file
-            processFile(new File(path));
+            processFile(new File(folder, jsonFileName));
         }
 
         System.out.println("End of database setUp\n");
@@ -110,14 +114,13 @@ public class R2SetUp {
         // Create the database table
         db.create_tab(nomeTabella);
         if (json != null) {
-            for (Map.Entry<String, Object> entry : json.entrySet()) {
-                String key = entry.getKey();
-                Object value = entry.getValue();
-                
-                // Insert data into the table
-                db.create(nomeTabella, key, value);
-            }
+
+            // Load the data into the in-memory table
+            db.load(nomeTabella, json);
         }
+
+        // Replay the mutations logged after the last snapshot
+        db.recover(nomeTabella);
     }
 
     // Converts a file name to a database table name
@@ -0,0 +1,961 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbException;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Represents a table of the database kept resident in memory.
+ * The JSON file associated with the table is used only as the persistence layer:
+ * mutations are appended to a write-ahead log and periodically folded into a
+ * snapshot of the table written in the JSON file.
+ * Each table has its own set of locks, striped by key, so that writes to
+ * different tables, and to different keys of the same table, proceed in
+ * parallel. Every row is kept as a chain of versions (see {@link R2Mvcc}):
+ * readers read the versions of a snapshot without taking any lock, while
+ * writers take the write lock of the stripe of the key, install a new version
+ * and commit it. The old versions, and the index entries pointing to them, are
+ * reclaimed by the writer of the key as soon as no open snapshot can read
+ * them, or later by {@link #vacuum()}.
+ * The secondary indexes of the table are declared in a metadata file next to
+ * the JSON file and rebuilt in memory when the table is recovered. The same
+ * file persists the sequence used to allocate the keys of new rows.
+ * When the rows of a table are partitioned across several databases, each of
+ * them allocates only the keys with its own remainder modulo
+ * {@link #KEY_STRIDE}, so that the keys stay unique when rows are moved from
+ * one database to another.
+ */
+class R2Table {
+    /**
+     * Number of records in the log after which a snapshot is taken.
+     */
+    static final int SNAPSHOT_INTERVAL = Integer.getInteger("r2db.snapshotInterval", 1000);
+
+    /**
+     * Number of lock stripes of each table.
+     */
+    static final int STRIPES = 16;
+
+    /**
+     * Step between the keys allocated by the database, at least the number of
+     * databases sharing the tables (default 1, every key).
+     */
+    static final long KEY_STRIDE = Math.max(Long.getLong("r2db.keys.stride", 1), 1);
+
+    /**
+     * Remainder modulo {@link #KEY_STRIDE} of the keys allocated by the
+     * database, different for each database sharing the tables (default 0).
+     */
+    static final long KEY_OFFSET = Math.floorMod(Long.getLong("r2db.keys.offset", 0), KEY_STRIDE);
+
+    private final String name;
+    private final File file;
+    private final Map<String, R2Mvcc.Version> rows;
+    private final Set<String> garbage;
+    private final R2Mvcc mvcc;
+    private final R2Wal wal;
+    private final Set<String> batches;
+    private final File metaFile;
+    private final Map<String, R2Index> indexes;
+    private final AtomicLong sequence;
+    private final ReentrantReadWriteLock[] stripes;
+    private final AtomicLong version;
+    private final R2Feed feed;
+    private final R2Feed log;
+    private volatile R2Index expiry;
+    private volatile boolean dropped;
+
+    /**
+     * Creates an empty table backed by the given file.
+     *
+     * @param name Name of the table
+     * @param file JSON file used to persist the table
+     * @param log  Log of the changes of the database, which also receives the
+     *             changes of the table
+     * @param mvcc Commit clock and open snapshots of the database
+     */
+    R2Table(String name, File file, R2Feed log, R2Mvcc mvcc) {
+        this.name = name;
+        this.file = file;
+        this.rows = new ConcurrentHashMap<>();
+        this.garbage = ConcurrentHashMap.newKeySet();
+        this.mvcc = mvcc;
+        this.wal = new R2Wal(new File(file.getParentFile(), name + ".wal"));
+        this.batches = ConcurrentHashMap.newKeySet();
+        this.metaFile = new File(file.getParentFile(), name + ".meta");
+        this.indexes = new ConcurrentHashMap<>();
+        this.sequence = new AtomicLong(0);
+        this.stripes = new ReentrantReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.version = new AtomicLong(0);
+        this.feed = new R2Feed();
+        this.log = log;
+        this.dropped = false;
+    }
+
+    /**
+     * Returns the name of the table.
+     *
+     * @return Name of the table
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the JSON file used to persist the table.
+     *
+     * @return JSON file of the table
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the last value of a row, including the pending version of a
+     * change in progress. It must be called while holding the write lock of
+     * the stripe of the key.
+     *
+     * @param key Key of the row
+     * @return Value of the row, or null if the table doesn't have it
+     */
+    Object get(String key) {
+        return valueAt(rows.get(key), R2Mvcc.PENDING);
+    }
+
+    /**
+     * Returns the value of a row in a snapshot, without taking any lock.
+     *
+     * @param key      Key of the row
+     * @param snapshot Snapshot to read
+     * @return Value of the row, or null if the row didn't exist in the snapshot
+     */
+    Object get(String key, R2Mvcc.Snapshot snapshot) {
+        return valueAt(rows.get(key), snapshot.seq);
+    }
+
+    /**
+     * Returns whether the table has no rows, counting the pending versions of
+     * the changes in progress.
+     *
+     * @return true if the table is empty
+     */
+    boolean isEmpty() {
+        for (R2Mvcc.Version head : rows.values()) {
+            if (head.value != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the keys of the table, including the ones of the rows deleted
+     * whose versions are not reclaimed yet: the values must be read in a
+     * snapshot, or under the lock of their stripe.
+     *
+     * @return Keys of the table
+     */
+    Set<String> keys() {
+        return rows.keySet();
+    }
+
+    /**
+     * Visits the last value of every row, as {@link #get(String)} returns
+     * it. It must be called while holding the locks of every stripe.
+     *
+     * @param sink Receives the key and the value of each row
+     */
+    void forEach(BiConsumer<String, Object> sink) {
+        forEach(R2Mvcc.PENDING, sink);
+    }
+
+    /**
+     * Visits the rows of a snapshot, without taking any lock.
+     *
+     * @param snapshot Snapshot to read
+     * @param sink     Receives the key and the value of each row
+     */
+    void forEach(R2Mvcc.Snapshot snapshot, BiConsumer<String, Object> sink) {
+        forEach(snapshot.seq, sink);
+    }
+
+    private void forEach(long seq, BiConsumer<String, Object> sink) {
+        for (Map.Entry<String, R2Mvcc.Version> entry : rows.entrySet()) {
+            Object value = valueAt(entry.getValue(), seq);
+            if (value != null) {
+                sink.accept(entry.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the newest version of a row committed up to a
+     * commit number.
+     */
+    private static Object valueAt(R2Mvcc.Version head, long seq) {
+        R2Mvcc.Version version = head == null ? null : head.at(seq);
+        return version == null ? null : version.value;
+    }
+
+    /**
+     * Returns the secondary index on the given field.
+     *
+     * @param field Field of the rows
+     * @return Index on the field, or null if the field is not indexed
+     */
+    R2Index getIndex(String field) {
+        return indexes.get(field);
+    }
+
+    /**
+     * Updates a row and the secondary indexes of the table, committing the
+     * change at once. It must be called while holding the write lock of the
+     * stripe of the key.
+     *
+     * @param key   Key of the row
+     * @param value New value of the row, null to remove it
+     */
+    void put(String key, Object value) {
+        R2Mvcc.Version staged = stage(key, value);
+        if (staged != null) {
+            mvcc.commit(List.of(staged));
+        }
+        committed(key);
+    }
+
+    /**
+     * Installs a pending version of a row, which the snapshots don't read
+     * until it is committed by {@link R2Mvcc#commit(List)}. The value is
+     * added to the secondary indexes at once, while the entries of the
+     * previous versions are kept until the versions are reclaimed, so that
+     * the indexes return the rows of every open snapshot. It must be called
+     * while holding the write lock of the stripe of the key, then followed by
+     * {@link #committed(String)} or {@link #discard(String, R2Mvcc.Version)}.
+     *
+     * @param key   Key of the row
+     * @param value New value of the row, null to remove it
+     * @return The pending version, or null if a missing row is removed
+     */
+    R2Mvcc.Version stage(String key, Object value) {
+        R2Mvcc.Version head = rows.get(key);
+        if (value == null && (head == null || head.value == null)) {
+            return null;
+        }
+        R2Mvcc.Version staged = new R2Mvcc.Version(value, head);
+        rows.put(key, staged);
+        if (value != null) {
+            observeKey(key);
+            for (R2Index index : indexes.values()) {
+                index.add(key, value);
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Completes a change to a row once it is committed: reclaims the versions
+     * no snapshot reads any more and bumps the version of the table. It must
+     * be called while holding the write lock of the stripe of the key.
+     *
+     * @param key Key of the row
+     */
+    void committed(String key) {
+        reclaim(key, mvcc.horizon());
+
+        // Bumped after the change is visible, so a reader never pairs old rows with the new version
+        version.incrementAndGet();
+    }
+
+    /**
+     * Removes a pending version of a row, restoring the previous one, when
+     * the change it belongs to is rolled back. It must be called while holding
+     * the write lock of the stripe of the key.
+     *
+     * @param key    Key of the row
+     * @param staged Pending version, the newest one of the row
+     */
+    void discard(String key, R2Mvcc.Version staged) {
+        if (staged == null || rows.get(key) != staged) {
+            return;
+        }
+        R2Mvcc.Version previous = staged.previous;
+        if (previous == null) {
+            rows.remove(key);
+        } else {
+            rows.put(key, previous);
+        }
+        unindex(key, staged.value, previous);
+    }
+
+    /**
+     * Reclaims the versions of a row that no snapshot can read: the ones
+     * preceding the newest version committed up to the horizon. A deleted row
+     * is removed once its deletion is committed up to the horizon. It must be
+     * called while holding the write lock of the stripe of the key.
+     *
+     * @param key     Key of the row
+     * @param horizon Oldest commit number a snapshot may read
+     */
+    private void reclaim(String key, long horizon) {
+        R2Mvcc.Version head = rows.get(key);
+        R2Mvcc.Version visible = head == null ? null : head.at(horizon);
+        if (visible != null) {
+            R2Mvcc.Version dropped = visible.previous;
+            visible.previous = null;
+            int count = 0;
+            for (R2Mvcc.Version old = dropped; old != null; old = old.previous) {
+                unindex(key, old.value, head);
+                count++;
+            }
+            if (visible == head && head.value == null) {
+                rows.remove(key);
+                count++;
+            }
+            mvcc.reclaimed(count);
+        }
+
+        // Versions still read by an open snapshot are reclaimed later
+        if (rows.get(key) == head && head != null && (head.previous != null || head.value == null)) {
+            garbage.add(key);
+        } else {
+            garbage.remove(key);
+        }
+    }
+
+    /**
+     * Reclaims the versions left behind by the writers while they were read
+     * by open snapshots, once no snapshot reads them any more. It takes the
+     * write lock of the stripe of each key, one at a time.
+     *
+     * @return Number of rows whose versions are still read
+     */
+    int vacuum() {
+        long horizon = mvcc.horizon();
+        for (String key : garbage) {
+            ReentrantReadWriteLock stripe = stripe(key);
+            stripe.writeLock().lock();
+            try {
+                reclaim(key, horizon);
+            } finally {
+                stripe.writeLock().unlock();
+            }
+        }
+        return garbage.size();
+    }
+
+    /**
+     * Returns the number of rows with versions still read by open snapshots.
+     *
+     * @return Number of rows whose versions are not reclaimed yet
+     */
+    int getGarbage() {
+        return garbage.size();
+    }
+
+    /**
+     * Removes the entries of a value of a row from the secondary indexes,
+     * unless a version kept by the row holds the same indexed value.
+     *
+     * @param key   Key of the row
+     * @param value Value removed, or null
+     * @param kept  Newest version kept by the row, or null
+     */
+    private void unindex(String key, Object value, R2Mvcc.Version kept) {
+        if (value == null) {
+            return;
+        }
+        for (R2Index index : indexes.values()) {
+            boolean shared = false;
+            for (R2Mvcc.Version version = kept; version != null && !shared; version = version.previous) {
+                shared = version.value != null && index.sameEntry(version.value, value);
+            }
+            if (!shared) {
+                index.remove(key, value);
+            }
+        }
+    }
+
+    /**
+     * Returns the version of the rows of the table, which is bumped by every
+     * change to them.
+     *
+     * @return Version of the rows
+     */
+    long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns the feed of the changes committed to the rows of the table.
+     *
+     * @return Feed of the table
+     */
+    R2Feed getFeed() {
+        return feed;
+    }
+
+    /**
+     * Publishes a committed change to the watchers of the table and to the
+     * log of the database. It must be called after the change is logged and
+     * applied, while still holding the write lock of the stripe of the key.
+     *
+     * @param op    Operation of the change
+     * @param key   Key of the row
+     * @param value New value of the row, null if it was removed
+     */
+    void publish(R2Wal.Op op, String key, Object value) {
+        feed.publish(op.toString(), key, value);
+        log.publish(name, op.toString(), key, value);
+    }
+
+    /**
+     * Returns the EXPIRY index of the table, which tells the rows expired.
+     *
+     * @return The EXPIRY index, or null if the table has none
+     */
+    R2Index getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * Expires the rows whose expiry date precedes the given day, publishing
+     * an EXPIRE change with each of them to the watchers. The rows are kept:
+     * only the cutoff of the EXPIRY index moves. It must be called while
+     * holding the write locks of every stripe.
+     *
+     * @param day The first day whose rows are not expired, as yyyy-MM-dd
+     * @return Number of rows expired
+     */
+    int expire(String day) {
+        R2Index index = expiry;
+        if (index == null) {
+            return 0;
+        }
+        String from = index.getCutoff();
+        int expired = 0;
+        for (String key : new LinkedHashSet<>(index.expire(day))) {
+            // The index also returns the rows whose expiry date has changed since an open snapshot
+            Object row = get(key);
+            if (row != null && index.expiresBetween(row, from, day)) {
+                feed.publish("EXPIRE", key, row);
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            // The rows selected by ACTIVE have changed
+            version.incrementAndGet();
+        }
+        return expired;
+    }
+
+    /**
+     * Allocates the key of a new row from the sequence of the table: the
+     * smallest key following the sequence with the remainder
+     * {@link #KEY_OFFSET}. Keys are never reused, even after the rows holding
+     * them have been deleted.
+     *
+     * @return The allocated key
+     */
+    String nextKey() {
+        if (KEY_STRIDE == 1) {
+            return Long.toString(sequence.incrementAndGet());
+        }
+        return Long.toString(sequence.updateAndGet(last -> {
+            long next = last + 1;
+            return next + Math.floorMod(KEY_OFFSET - next, KEY_STRIDE);
+        }));
+    }
+
+    /**
+     * Advances the sequence of the table past a numeric key, so that it is never
+     * allocated again.
+     *
+     * @param key Key of a row
+     */
+    private void observeKey(String key) {
+        long value = numericKey(key);
+        if (value > sequence.get()) {
+            sequence.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Returns the numeric value of a key.
+     *
+     * @param key Key of a row
+     * @return Value of the key, or -1 if the key is not a non-negative number
+     */
+    static long numericKey(String key) {
+        if (key.isEmpty() || key.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(key);
+    }
+
+    /**
+     * Returns the greatest key of the table, comparing numeric keys by value so
+     * that "10" follows "9". It must be called while holding the locks of
+     * every stripe.
+     *
+     * @return The greatest key, or null if the table is empty
+     */
+    String lastKey() {
+        return lastKey(R2Mvcc.PENDING);
+    }
+
+    /**
+     * Returns the greatest key of the rows of a snapshot, without taking any
+     * lock.
+     *
+     * @param snapshot Snapshot to read
+     * @return The greatest key, or null if the table was empty
+     */
+    String lastKey(R2Mvcc.Snapshot snapshot) {
+        return lastKey(snapshot.seq);
+    }
+
+    private String lastKey(long seq) {
+        String max = null;
+        long maxValue = -1;
+        for (Map.Entry<String, R2Mvcc.Version> entry : rows.entrySet()) {
+            if (valueAt(entry.getValue(), seq) == null) {
+                continue;
+            }
+            String k = entry.getKey();
+            long value = numericKey(k);
+            if (max == null || value > maxValue || (value < 0 && maxValue < 0 && k.compareTo(max) > 0)) {
+                max = k;
+                maxValue = value;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Creates a secondary index on a field, building it from the rows of the
+     * table and recording it in the metadata file. It must be called while
+     * holding the write locks of every stripe.
+     *
+     * @param field Field of the rows to index
+     * @param type  Kind of index; an index of another kind on the same field is replaced
+     * @param jsonb JSON binding utility used for the serialization
+     * @throws JsonBException     If JSON serialization fails
+     * @throws FileErrorException If an error occurs while writing the metadata file
+     * @throws R2dbErrorException If the table already has an EXPIRY index on another field
+     */
+    void createIndex(String field, R2Index.Type type, Jsonb jsonb) throws JsonBException, FileErrorException {
+        R2Index existing = indexes.get(field);
+        if (existing != null && existing.getType() == type) {
+            return;
+        }
+        if (type == R2Index.Type.EXPIRY && expiry != null && !expiry.getField().equals(field)) {
+            throw new R2dbErrorException();
+        }
+        buildIndex(field, type);
+        writeMeta(jsonb);
+    }
+
+    /**
+     * Builds a secondary index on a field from the rows of the table.
+     *
+     * @param field Field of the rows to index
+     * @param type  Kind of index
+     */
+    private void buildIndex(String field, R2Index.Type type) {
+        R2Index index = new R2Index(field, type);
+
+        // Indexes every version kept, as the open snapshots may read any of them
+        for (Map.Entry<String, R2Mvcc.Version> entry : rows.entrySet()) {
+            for (R2Mvcc.Version version = entry.getValue(); version != null; version = version.previous) {
+                if (version.value != null) {
+                    index.add(entry.getKey(), version.value);
+                }
+            }
+        }
+        R2Index replaced = indexes.put(field, index);
+        if (type == R2Index.Type.EXPIRY) {
+            expiry = index;
+        } else if (replaced != null && replaced == expiry) {
+            expiry = null;
+        }
+    }
+
+    /**
+     * Returns the secondary indexes of the table, as declared in its metadata
+     * file.
+     *
+     * @return Kind of index ("hash", "range" or "expiry") of each indexed field
+     */
+    Map<String, String> getIndexTypes() {
+        Map<String, String> declared = new HashMap<>();
+        for (R2Index index : indexes.values()) {
+            declared.put(index.getField(), index.getType().toString().toLowerCase());
+        }
+        return declared;
+    }
+
+    /**
+     * Writes the metadata file of the table, declaring its secondary indexes
+     * and the current value of its sequence.
+     *
+     * @param jsonb JSON binding utility used for the serialization
+     * @throws JsonBException     If JSON serialization fails
+     * @throws FileErrorException If an error occurs while writing the file
+     */
+    private void writeMeta(Jsonb jsonb) throws JsonBException, FileErrorException {
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("indexes", getIndexTypes());
+        meta.put("sequence", sequence.get());
+        try {
+            writeAtomically(metaFile, jsonb.toJson(meta));
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
+    }
+
+    /**
+     * Reads the metadata file of the table, building the secondary indexes it
+     * declares and restoring the sequence of the table.
+     *
+     * @param jsonb JSON binding utility used for the deserialization
+     * @throws JsonBException     If the metadata file cannot be deserialized
+     * @throws FileErrorException If an error occurs while reading the file
+     */
+    private void readMeta(Jsonb jsonb) throws JsonBException, FileErrorException {
+        if (!metaFile.exists() || metaFile.length() == 0) {
+            return;
+        }
+        Map<String, Object> meta = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(metaFile))) {
+            meta = jsonb.fromJson(reader, new HashMap<String, Object>() {
+            }.getClass().getGenericSuperclass());
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+        Object declared = meta.get("indexes");
+        if (declared instanceof Map) {
+            for (Map.Entry<?, ?> index : ((Map<?, ?>) declared).entrySet()) {
+                try {
+                    buildIndex(index.getKey().toString(), R2Index.Type.valueOf(index.getValue().toString().toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    throw new JsonBException();
+                }
+            }
+        }
+        Object persisted = meta.get("sequence");
+        if (persisted instanceof Number) {
+            sequence.accumulateAndGet(((Number) persisted).longValue(), Math::max);
+        }
+    }
+
+    /**
+     * Returns the lock guarding the stripe the given key belongs to.
+     *
+     * @param key Key of the row
+     * @return Lock of the stripe of the key
+     */
+    ReentrantReadWriteLock stripe(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Acquires the locks of every stripe of the table, always in the same order.
+     *
+     * @param write true to acquire the write locks, false for the read locks
+     */
+    void lockAll(boolean write) {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            if (write) {
+                stripe.writeLock().lock();
+            } else {
+                stripe.readLock().lock();
+            }
+        }
+    }
+
+    /**
+     * Releases the locks of every stripe of the table.
+     *
+     * @param write true to release the write locks, false for the read locks
+     */
+    void unlockAll(boolean write) {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            if (write) {
+                stripes[i].writeLock().unlock();
+            } else {
+                stripes[i].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks that the table has not been deleted. It must be called while
+     * holding at least one lock of the table, or by a reader once it has
+     * opened its snapshot.
+     *
+     * @throws UndefinedKeyException If the table has been deleted
+     */
+    void checkNotDropped() throws UndefinedKeyException {
+        if (dropped) {
+            throw new UndefinedKeyException();
+        }
+    }
+
+    /**
+     * Returns whether the table has been deleted.
+     *
+     * @return true if the table has been deleted
+     */
+    boolean isDropped() {
+        return dropped;
+    }
+
+    /**
+     * Records a mutation of the table in the write-ahead log. It must be called
+     * before the mutation is applied to the rows of the table.
+     *
+     * @param op    Operation to record
+     * @param key   Key affected by the operation
+     * @param value New value of the key, null for deletions
+     * @param jsonb JSON binding utility used for the serialization
+     * @throws JsonBException     If JSON serialization fails
+     * @throws FileErrorException If an error occurs while writing the log
+     */
+    void log(R2Wal.Op op, String key, Object value, Jsonb jsonb) throws JsonBException, FileErrorException {
+        String payload = "";
+        if (value != null) {
+            try {
+                payload = jsonb.toJson(value);
+            } catch (JsonbException e) {
+                throw new JsonBException();
+            }
+        }
+        wal.append(op, key, payload);
+    }
+
+    /**
+     * Records the mutations of a MULTI/EXEC batch in the write-ahead log, as a
+     * single record forced to disk once. It must be called before the
+     * mutations are made visible, while holding the write locks of every stripe.
+     *
+     * @param id    "-" for a batch on this table only, otherwise the id of the
+     *              batch, which must then be committed in the commit log of
+     *              the database (see {@link R2CommitLog})
+     * @param ops   Mutations of the batch, each with the fields "op", "key" and "value"
+     * @param jsonb JSON binding utility used for the serialization
+     * @throws JsonBException     If JSON serialization fails
+     * @throws FileErrorException If an error occurs while writing the log
+     */
+    void logBatch(String id, List<Map<String, Object>> ops, Jsonb jsonb) throws JsonBException, FileErrorException {
+        String payload;
+        try {
+            payload = jsonb.toJson(ops);
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
+        if (!id.equals("-")) {
+            batches.add(id);
+        }
+        wal.append(R2Wal.Op.BATCH, id, payload);
+    }
+
+    /**
+     * Returns the ids of the batches spanning several tables recorded in the
+     * write-ahead log since the last snapshot, whose commits must be kept.
+     *
+     * @return Ids of the batches
+     */
+    Set<String> getBatches() {
+        return batches;
+    }
+
+    /**
+     * Takes a snapshot of the table if the log has grown past
+     * {@link #SNAPSHOT_INTERVAL} records. It must be called without holding
+     * any lock of the table.
+     *
+     * @param jsonb JSON binding utility used for the serialization
+     * @throws JsonBException     If JSON serialization fails
+     * @throws FileErrorException If an error occurs while writing the snapshot
+     */
+    void maybeSnapshot(Jsonb jsonb) throws JsonBException, FileErrorException {
+        if (wal.size() >= SNAPSHOT_INTERVAL) {
+            // Excludes the writers of every stripe while the snapshot is taken
+            lockAll(false);
+            try {
+                if (!dropped && wal.size() >= SNAPSHOT_INTERVAL) {
+                    snapshot(jsonb);
+                }
+            } finally {
+                unlockAll(false);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the secondary indexes and the sequence of the table, then replays
+     * the write-ahead log over the rows loaded from the last snapshot, folding
+     * them into a new snapshot.
+     *
+     * @param jsonb   JSON binding utility used for the deserialization
+     * @param commits Commit log of the database, telling the batches spanning
+     *                several tables to replay
+     * @throws JsonBException     If a record of the log cannot be deserialized
+     * @throws FileErrorException If an error occurs while accessing the files
+     */
+    void recover(Jsonb jsonb, R2CommitLog commits) throws JsonBException, FileErrorException {
+        // Rebuild the secondary indexes over the rows of the snapshot
+        readMeta(jsonb);
+
+        File log = new File(file.getParentFile(), name + ".wal");
+        if (log.exists() && log.length() > 0) {
+            replay(jsonb, commits);
+        }
+    }
+
+    /**
+     * Applies the records of the write-ahead log to the rows of the table, then
+     * folds them into a new snapshot. The records of the batches spanning
+     * several tables that were not committed are discarded.
+     *
+     * @param jsonb   JSON binding utility used for the deserialization
+     * @param commits Commit log of the database
+     * @throws JsonBException     If a record of the log cannot be deserialized
+     * @throws FileErrorException If an error occurs while accessing the files
+     */
+    private void replay(Jsonb jsonb, R2CommitLog commits) throws JsonBException, FileErrorException {
+        for (R2Wal.Record record : wal.read()) {
+            if (record.op == R2Wal.Op.BATCH && !record.key.equals("-")) {
+                if (!commits.isCommitted(record.key)) {
+                    System.out.println("Discarding batch " + record.key + " not committed: " + name);
+                    continue;
+                }
+
+                // Its commit is kept until the log is folded into a snapshot
+                batches.add(record.key);
+            }
+            try {
+                if (record.op == R2Wal.Op.BATCH) {
+                    List<Map<String, Object>> ops = jsonb.fromJson(record.payload,
+                            new ArrayList<Map<String, Object>>() {
+                            }.getClass().getGenericSuperclass());
+                    for (Map<String, Object> op : ops) {
+                        apply(R2Wal.Op.valueOf(op.get("op").toString()), op.get("key").toString(), op.get("value"));
+                    }
+                } else if (record.op == R2Wal.Op.DELETE_KEY) {
+                    apply(record.op, record.key, null);
+                } else {
+                    apply(record.op, record.key, jsonb.fromJson(record.payload, Object.class));
+                }
+            } catch (JsonbException | IllegalArgumentException | NullPointerException e) {
+                throw new JsonBException();
+            }
+        }
+        System.out.println("Replayed log of table " + name + ": " + wal.size() + " records");
+        snapshot(jsonb);
+    }
+
+    /**
+     * Applies a mutation read from the write-ahead log.
+     *
+     * @param op    Operation recorded
+     * @param key   Key affected by the operation
+     * @param value New value of the key, ignored for deletions
+     */
+    private void apply(R2Wal.Op op, String key, Object value) {
+        put(key, op == R2Wal.Op.DELETE_KEY ? null : value);
+    }
+
+    /**
+     * Writes the content of the table to its JSON file and truncates the log.
+     * The snapshot is written to a temporary file that atomically replaces the
+     * previous one, so a crash never leaves the table truncated.
+     *
+     * @param jsonb JSON binding utility used for the serialization
+     * @throws JsonBException     If JSON serialization fails
+     * @throws FileErrorException If an error occurs while writing the files
+     */
+    synchronized void snapshot(Jsonb jsonb) throws JsonBException, FileErrorException {
+        Map<String, Object> content = new HashMap<>();
+        forEach(content::put);
+        String fileJson = "";
+        try {
+            fileJson = jsonb.toJson(content);
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
+
+        // Write the table to a temporary file, then replace the JSON file with it
+        writeAtomically(file, fileJson);
+
+        // Persist the sequence, as the keys it allocated may no longer be in the table
+        writeMeta(jsonb);
+
+        // The snapshot now includes every record of the log
+        wal.truncate();
+        batches.clear();
+    }
+
+    /**
+     * Writes a file through a temporary file that atomically replaces it.
+     *
+     * @param target  File to write
+     * @param content Content of the file
+     * @throws FileErrorException If an error occurs while writing the file
+     */
+    private static void writeAtomically(File target, String content) throws FileErrorException {
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out))) {
+            writer.write(content);
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+    }
+
+    /**
+     * Deletes the files of the table. It must be called while holding the
+     * write locks of every stripe.
+     */
+    void drop() {
+        dropped = true;
+        version.incrementAndGet();
+        feed.close();
+        wal.delete();
+        metaFile.delete();
+        file.delete();
+    }
+}
@@ -0,0 +1,180 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.Arrays;
+
+/**
+ * Splits a command in its tokens with a single pass over the text.
+ * Tokens are separated by spaces, except for JSON objects and arrays, which
+ * are kept whole even if they contain spaces. The lines of a command are
+ * joined, so a new line doesn't separate tokens.
+ * Every token is lowercased and the first letter of the table name is
+ * capitalized, except for the JSON documents: they are the payload of the
+ * command and are kept as written, as slices of the command, since the
+ * lowercase form of a document would be a copy of it.
+ * The command and the table name, which make up the shape of the command, are
+ * resolved through a cache of prepared plans, so that repeated shapes reuse
+ * the same strings instead of lowercasing and capitalizing them again.
+ */
+final class R2Tokenizer {
+
+    /**
+     * Number of slots of the plan cache. A slot holds the last shape hashed to
+     * it, so the cache never grows.
+     */
+    private static final int PLANS = 256;
+
+    /**
+     * Prepared plan of a command shape: the command and the table name, as
+     * written in the command and as resolved.
+     */
+    private static final class Plan {
+        final String prefix;
+        final String command;
+        final String table;
+
+        Plan(String prefix, String command, String table) {
+            this.prefix = prefix;
+            this.command = command;
+            this.table = table;
+        }
+    }
+
+    private static final Plan[] plans = new Plan[PLANS];
+
+    private R2Tokenizer() {
+    }
+
+    /**
+     * Splits a command in its tokens.
+     *
+     * @param query The command
+     * @return The tokens of the command: the lowercased command, the
+     *         capitalized table name, the lowercased arguments and the JSON
+     *         documents as written
+     */
+    static String[] tokenize(String query) {
+        // Finds the boundaries of the tokens
+        int[] bounds = new int[16];
+        int count = 0;
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (c == ' ' || c == '\n') {
+                i++;
+                continue;
+            }
+            int start = i;
+            i = (c == '{' || c == '[') ? skipJson(query, i) : skipWord(query, i);
+            if (count * 2 == bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[count * 2] = start;
+            bounds[count * 2 + 1] = i;
+            count++;
+        }
+
+        String[] tokens = new String[count];
+        int first = 0;
+        if (count >= 2) {
+            Plan plan = plan(query, bounds[0], bounds[1], bounds[2], bounds[3]);
+            tokens[0] = plan.command;
+            tokens[1] = plan.table;
+            first = 2;
+        }
+        for (int t = first; t < count; t++) {
+            String token = slice(query, bounds[t * 2], bounds[t * 2 + 1]);
+            char c = query.charAt(bounds[t * 2]);
+
+            // toLowerCase returns the same string if it is already lowercase
+            tokens[t] = (c == '{' || c == '[') ? token : token.toLowerCase();
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns a region of a command, without the new lines joining its lines.
+     */
+    private static String slice(String query, int start, int end) {
+        int line = query.indexOf('\n', start);
+        if (line < 0 || line >= end) {
+            return query.substring(start, end);
+        }
+        StringBuilder token = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = query.charAt(i);
+            if (c != '\n') {
+                token.append(c);
+            }
+        }
+        return token.toString();
+    }
+
+    /**
+     * Returns the prepared plan of the command and table name found in the
+     * given regions of a command, preparing it on a miss.
+     */
+    private static Plan plan(String query, int commandStart, int commandEnd, int tableStart, int tableEnd) {
+        int hash = 0;
+        for (int i = commandStart; i < tableEnd; i++) {
+            hash = 31 * hash + query.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (PLANS - 1);
+
+        Plan plan = plans[slot];
+        int prefixLength = tableEnd - commandStart;
+        if (plan != null && plan.prefix.length() == prefixLength
+                && query.regionMatches(commandStart, plan.prefix, 0, prefixLength)) {
+            return plan;
+        }
+
+        String command = slice(query, commandStart, commandEnd).toLowerCase().intern();
+        String table = slice(query, tableStart, tableEnd).toLowerCase();
+        table = (table.substring(0, 1).toUpperCase() + table.substring(1)).intern();
+        plan = new Plan(query.substring(commandStart, tableEnd), command, table);
+        plans[slot] = plan;
+        return plan;
+    }
+
+    /**
+     * Returns the end of the word starting at the given position.
+     */
+    private static int skipWord(String query, int i) {
+        int length = query.length();
+        while (i < length && query.charAt(i) != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the end of the JSON object or array starting at the given
+     * position, skipping the brackets found in its strings. An unbalanced
+     * document extends to the end of the command.
+     */
+    private static int skipJson(String query, int i) {
+        int length = query.length();
+        int depth = 0;
+        boolean string = false;
+        for (; i < length; i++) {
+            char c = query.charAt(i);
+            if (string) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    string = false;
+                }
+            } else if (c == '"') {
+                string = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return length;
+    }
+}
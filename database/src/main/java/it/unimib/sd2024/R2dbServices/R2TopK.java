@@ -0,0 +1,134 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+
+/**
+ * Collects the rows of an ordered SELECT (ORDER BY, LIMIT, OFFSET).
+ * With a LIMIT only the first OFFSET + LIMIT rows are kept, in a bounded heap
+ * whose head is the worst row kept so far: every other row is compared with
+ * it once and either replaces it or is discarded, so the rows are never
+ * sorted nor held as a whole.
+ * Rows are ordered by the value of a field, comparing numbers by value and
+ * every other value as a string, as the WHERE operators do; rows without the
+ * field follow the others. Ties, and queries without ORDER BY, are ordered
+ * by key, numeric keys by value.
+ */
+final class R2TopK {
+
+    /**
+     * Orders keys as {@link R2Table#lastKey()} does: numeric keys by value,
+     * before the others, which are ordered as strings.
+     */
+    private static final Comparator<String> KEYS = (a, b) -> {
+        long x = R2Table.numericKey(a);
+        long y = R2Table.numericKey(b);
+        if (x >= 0 && y >= 0) {
+            return Long.compare(x, y);
+        }
+        if (x >= 0 || y >= 0) {
+            return x >= 0 ? -1 : 1;
+        }
+        return a.compareTo(b);
+    };
+
+    private final Comparator<Entry<String, Object>> order;
+    private final int offset;
+    private final int capacity;
+    private final PriorityQueue<Entry<String, Object>> heap;
+    private final List<Entry<String, Object>> all;
+
+    /**
+     * Creates a collector of ordered rows.
+     *
+     * @param field      Field to order by, or null to order by key
+     * @param descending Whether the order of the field is descending
+     * @param limit      Maximum number of rows returned, or -1 for no limit
+     * @param offset     Number of rows skipped
+     */
+    R2TopK(String field, boolean descending, int limit, int offset) {
+        Comparator<Entry<String, Object>> byKey = (a, b) -> KEYS.compare(a.getKey(), b.getKey());
+        if (field == null) {
+            this.order = descending ? byKey.reversed() : byKey;
+        } else {
+            Comparator<Entry<String, Object>> byField = (a, b) -> compare(a.getValue(), b.getValue(), field, descending);
+            this.order = byField.thenComparing(byKey);
+        }
+        this.offset = offset;
+        if (limit >= 0) {
+            this.capacity = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+            // The head of the heap is the worst row kept
+            this.heap = new PriorityQueue<>(Math.max(1, Math.min(capacity, 1024)), order.reversed());
+            this.all = null;
+        } else {
+            this.capacity = -1;
+            this.heap = null;
+            this.all = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Offers a row satisfying the query.
+     *
+     * @param key Key of the row
+     * @param row The row
+     */
+    void offer(String key, Object row) {
+        Entry<String, Object> entry = new SimpleImmutableEntry<>(key, row);
+        if (all != null) {
+            all.add(entry);
+        } else if (heap.size() < capacity) {
+            heap.add(entry);
+        } else if (capacity > 0 && order.compare(entry, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(entry);
+        }
+    }
+
+    /**
+     * Returns the rows of the result, in order, without the skipped ones.
+     *
+     * @return Rows of the result
+     */
+    List<Entry<String, Object>> result() {
+        List<Entry<String, Object>> rows = all != null ? all : new ArrayList<>(heap);
+        rows.sort(order);
+        return offset >= rows.size() ? new ArrayList<>() : rows.subList(offset, rows.size());
+    }
+
+    /**
+     * Compares the values of a field in two rows.
+     */
+    private static int compare(Object a, Object b, String field, boolean descending) {
+        Object x = a instanceof Map ? ((Map<?, ?>) a).get(field) : null;
+        Object y = b instanceof Map ? ((Map<?, ?>) b).get(field) : null;
+        if (x == null || y == null) {
+            // Rows without the field follow the others in both directions
+            return x == null ? (y == null ? 0 : 1) : -1;
+        }
+        int result = compareValues(x, y);
+        return descending ? -result : result;
+    }
+
+    /**
+     * Compares two values of a field: numbers by value, every other value as
+     * a string.
+     *
+     * @param x First value
+     * @param y Second value
+     * @return A negative number, zero or a positive number if the first value
+     *         precedes, equals or follows the second one
+     */
+    static int compareValues(Object x, Object y) {
+        if (x instanceof Number && y instanceof Number) {
+            return new BigDecimal(x.toString()).compareTo(new BigDecimal(y.toString()));
+        }
+        return x.toString().compareTo(y.toString());
+    }
+}
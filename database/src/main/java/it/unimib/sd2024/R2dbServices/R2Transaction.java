@@ -0,0 +1,276 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbException;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Executes a MULTI/EXEC batch of commands atomically.
+ * The write locks of every table involved are acquired once for the whole
+ * batch. Commands are applied in memory one after the other, as pending
+ * versions of the rows (see {@link R2Mvcc}), so that each of them sees the
+ * effects of the previous ones while the snapshots of the readers don't. If a
+ * command fails, the pending versions are discarded and the batch has no
+ * effect; otherwise the mutations of each table are recorded in its
+ * write-ahead log as a single record, forced to disk once, and the pending
+ * versions of every table are committed together.
+ * A batch spanning several tables is durable only once it is committed in the
+ * commit log of the database, after the record of every table (see
+ * {@link R2CommitLog}): if any of the writes fails, the batch has no effect,
+ * in memory and after a restart.
+ */
+class R2Transaction {
+
+    /**
+     * Pending version of a key changed by the batch.
+     */
+    private static final class Staged {
+        final R2Table table;
+        final String key;
+        final R2Mvcc.Version version;
+
+        Staged(R2Table table, String key, R2Mvcc.Version version) {
+            this.table = table;
+            this.key = key;
+            this.version = version;
+        }
+    }
+
+    private final Map<String, R2Table> tables;
+    private final R2Mvcc mvcc;
+    private final R2CommitLog commits;
+    private final Jsonb jsonb;
+    private final List<Staged> staged = new ArrayList<>();
+    private final Map<R2Table, List<Map<String, Object>>> ops = new LinkedHashMap<>();
+
+    /**
+     * Creates a batch over the given tables.
+     *
+     * @param tables  Tables involved in the batch, sorted by name
+     * @param mvcc    Commit clock of the database
+     * @param commits Commit log of the batches spanning several tables
+     * @param jsonb   JSON binding utility used for the serialization
+     */
+    R2Transaction(Map<String, R2Table> tables, R2Mvcc mvcc, R2CommitLog commits, Jsonb jsonb) {
+        this.tables = tables;
+        this.mvcc = mvcc;
+        this.commits = commits;
+        this.jsonb = jsonb;
+    }
+
+    /**
+     * Executes the commands of the batch. It must be called while holding the
+     * write locks of every stripe of the tables involved.
+     *
+     * @param commands Commands of the batch, already tokenized
+     * @return The result of each command: "OK!" for the mutations, the
+     *         allocated key for INSERT, the selected rows for SELECT and the
+     *         greatest key for GET_LAST_INDEX
+     * @throws R2dbErrorException     If a command is not allowed in a batch
+     * @throws UndefinedKeyException  If a SELECT finds no key
+     * @throws TableIsEmptyException  If a command needs a non-empty table
+     * @throws JsonBException         If JSON serialization or deserialization
+     *                                fails
+     * @throws FileErrorException     If an error occurs while writing the log
+     */
+    List<Object> run(List<String[]> commands)
+            throws TableIsEmptyException, JsonBException, FileErrorException {
+        List<Object> results = new ArrayList<>();
+        try {
+            for (String[] command : commands) {
+                results.add(execute(command));
+            }
+
+            // Makes the batch durable: one record per table, forced once, then the commit if there are several
+            String id = ops.size() > 1 ? commits.nextId() : "-";
+            for (Entry<R2Table, List<Map<String, Object>>> entry : ops.entrySet()) {
+                entry.getKey().logBatch(id, entry.getValue(), jsonb);
+            }
+            if (ops.size() > 1) {
+                commits.commit(id, ops.keySet());
+            }
+        } catch (TableIsEmptyException | FileErrorException | RuntimeException e) {
+            rollback();
+            throw e;
+        }
+
+        // Makes the whole batch visible to the readers at once
+        List<R2Mvcc.Version> versions = new ArrayList<>();
+        for (Staged change : staged) {
+            versions.add(change.version);
+        }
+        mvcc.commit(versions);
+        for (Staged change : staged) {
+            change.table.committed(change.key);
+        }
+
+        // Publishes the committed mutations to the watchers of each table
+        for (Entry<R2Table, List<Map<String, Object>>> entry : ops.entrySet()) {
+            for (Map<String, Object> record : entry.getValue()) {
+                entry.getKey().publish(R2Wal.Op.valueOf((String) record.get("op")), (String) record.get("key"),
+                        record.get("value"));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Executes a single command of the batch.
+     *
+     * @param command Command, already tokenized
+     * @return The result of the command
+     */
+    private Object execute(String[] command) throws TableIsEmptyException {
+        if (command.length < 2) {
+            throw new R2dbErrorException();
+        }
+        R2Table table = tables.get(command[1]);
+        switch (command[0]) {
+            case "create_key": {
+                argc(command, 4);
+                change(table, R2Wal.Op.CREATE_KEY, command[2], parse(command[3]));
+                return "OK!";
+            }
+            case "insert": {
+                argc(command, 3);
+                Map<String, Object> document = parse(command[2]);
+                String key = table.nextKey();
+                if (command.length > 3) {
+                    document.put(command[3], key);
+                }
+                change(table, R2Wal.Op.CREATE_KEY, key, document);
+                return key;
+            }
+            case "modify": {
+                argc(command, 5);
+                if (table.isEmpty()) {
+                    throw new TableIsEmptyException();
+                }
+                Object row = table.get(command[2]);
+                if (row instanceof Map && ((Map<?, ?>) row).containsKey(command[3])) {
+                    Map<String, Object> modified = R2db.copy((Map<?, ?>) row);
+                    modified.put(command[3], command[4].replaceAll("\"", ""));
+                    change(table, R2Wal.Op.MODIFY, command[2], modified);
+                }
+                return "OK!";
+            }
+            case "delete_key": {
+                argc(command, 3);
+                if (table.get(command[2]) != null) {
+                    change(table, R2Wal.Op.DELETE_KEY, command[2], null);
+                }
+                return "OK!";
+            }
+            case "select": {
+                argc(command, 3);
+                R2Select select = R2Select.parse(command);
+                Map<String, Object> result = select.isOrdered() ? new LinkedHashMap<>() : new HashMap<>();
+                collect(table, select, result);
+                if (select.where == null && result.isEmpty()) {
+                    throw new UndefinedKeyException();
+                }
+                return result;
+            }
+            case "get_last_index": {
+                String max = table.lastKey();
+                if (max == null) {
+                    throw new TableIsEmptyException();
+                }
+                return max;
+            }
+            default:
+                // Changes to the set of tables and indexes are not allowed in a batch
+                throw new R2dbErrorException();
+        }
+    }
+
+    /**
+     * Collects the rows selected by a SELECT command. The rows of an ordered
+     * SELECT are collected by {@link R2TopK} and put in the result in order.
+     *
+     * @param table   Table to read
+     * @param select  Clauses of the command
+     * @param result  Map receiving the selected rows
+     */
+    private void collect(R2Table table, R2Select select, Map<String, Object> result) {
+        R2Predicate where = select.where;
+        R2TopK top = select.topK();
+        BiConsumer<String, Object> sink = (key, row) -> {
+            if (where == null || where.matches(row)) {
+                if (top != null) {
+                    top.offer(key, row);
+                } else {
+                    result.put(key, R2db.project(row, select.fields));
+                }
+            }
+        };
+        if (select.key.equals("*")) {
+            table.forEach(sink);
+        } else if (table.get(select.key) != null) {
+            sink.accept(select.key, table.get(select.key));
+        }
+        if (top != null) {
+            for (Entry<String, Object> entry : top.result()) {
+                result.put(entry.getKey(), R2db.project(entry.getValue(), select.fields));
+            }
+        }
+    }
+
+    /**
+     * Applies a mutation in memory as a pending version of the key, keeping
+     * the mutation in the batch record of the table.
+     */
+    private void change(R2Table table, R2Wal.Op op, String key, Object value) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("op", op.toString());
+        record.put("key", key);
+        record.put("value", value);
+        ops.computeIfAbsent(table, t -> new ArrayList<>()).add(record);
+        R2Mvcc.Version version = table.stage(key, value);
+        if (version != null) {
+            staged.add(new Staged(table, key, version));
+        }
+    }
+
+    /**
+     * Discards the pending versions of every key changed by the batch, in
+     * reverse order. Keys allocated by INSERT are not returned to the sequence.
+     */
+    private void rollback() {
+        for (int i = staged.size() - 1; i >= 0; i--) {
+            Staged change = staged.get(i);
+            change.table.discard(change.key, change.version);
+        }
+        staged.clear();
+    }
+
+    /**
+     * Parses a JSON document.
+     */
+    private Map<String, Object> parse(String value) {
+        try {
+            return jsonb.fromJson(value, new HashMap<String, Object>() {
+            }.getClass().getGenericSuperclass());
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
+    }
+
+    /**
+     * Checks that a command has at least the given number of tokens.
+     */
+    private static void argc(String[] command, int count) {
+        if (command.length < count) {
+            throw new R2dbErrorException();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Append-only write-ahead log of the mutations of a table, or of the commits
+ * of the batches spanning several tables (see {@link R2CommitLog}).
+ * Every record is stored on its own line as
+ * {@code <CRC32>\t<OPERATION>\t<KEY>\t<PAYLOAD>}, where the checksum covers
+ * the rest of the line. Records are forced to disk before the mutation is
+ * applied in memory.
+ */
+class R2Wal {
+
+    /**
+     * Operations recorded in the log.
+     */
+    enum Op {
+        CREATE_KEY,
+        MODIFY,
+        DELETE_KEY,
+        /**
+         * Mutations of a MULTI/EXEC batch on a table, stored as a single record
+         * so that they are replayed all together or not at all. Its key is "-",
+         * or the id of the batch if the batch spans several tables: the record
+         * is then replayed only if the batch is committed.
+         */
+        BATCH,
+        /**
+         * Commit of a batch spanning several tables, keyed by its id.
+         */
+        COMMIT
+    }
+
+    /**
+     * A single record of the log.
+     */
+    static final class Record {
+        final Op op;
+        final String key;
+        final String payload;
+
+        Record(Op op, String key, String payload) {
+            this.op = op;
+            this.key = key;
+            this.payload = payload;
+        }
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private int records;
+
+    /**
+     * Creates the log stored in the given file.
+     *
+     * @param file File of the log
+     */
+    R2Wal(File file) {
+        this.file = file;
+        this.records = 0;
+    }
+
+    /**
+     * Returns the number of records appended since the last truncation.
+     *
+     * @return Number of records in the log
+     */
+    synchronized int size() {
+        return records;
+    }
+
+    /**
+     * Appends a record to the log and forces it to disk.
+     *
+     * @param op      Operation to record
+     * @param key     Key affected by the operation
+     * @param payload New JSON document of the key, empty for deletions
+     * @throws FileErrorException If an error occurs while writing the log
+     */
+    synchronized void append(Op op, String key, String payload) throws FileErrorException {
+        String body = op + "\t" + key + "\t" + payload;
+        String line = checksum(body) + "\t" + body + "\n";
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            records++;
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+    }
+
+    /**
+     * Reads the valid records of the log. Reading stops at the first record
+     * that is malformed or whose checksum does not match, as it can only be
+     * the result of an interrupted write.
+     *
+     * @return Records of the log, in the order they were appended
+     * @throws FileErrorException If an error occurs while reading the log
+     */
+    synchronized List<Record> read() throws FileErrorException {
+        List<Record> result = new ArrayList<>();
+        if (!file.exists()) {
+            return result;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4 || !fields[0].equals(checksum(line.substring(fields[0].length() + 1)))) {
+                    System.out.println("Discarding torn tail of the log: " + file.getName());
+                    break;
+                }
+                try {
+                    result.add(new Record(Op.valueOf(fields[1]), fields[2], fields[3]));
+                } catch (IllegalArgumentException e) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+        records = result.size();
+        return result;
+    }
+
+    /**
+     * Empties the log, once its records have been included in a snapshot.
+     *
+     * @throws FileErrorException If an error occurs while truncating the log
+     */
+    synchronized void truncate() throws FileErrorException {
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            channel.truncate(0);
+            channel.force(true);
+            records = 0;
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+    }
+
+    /**
+     * Replaces the records of the log with the given ones. The records are
+     * written to a temporary file that atomically replaces the log.
+     *
+     * @param kept Records to keep, in order
+     * @throws FileErrorException If an error occurs while writing the log
+     */
+    synchronized void rewrite(List<Record> kept) throws FileErrorException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Record record : kept) {
+                String body = record.op + "\t" + record.key + "\t" + record.payload;
+                ByteBuffer buffer = ByteBuffer.wrap((checksum(body) + "\t" + body + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(false);
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FileErrorException();
+        }
+        records = kept.size();
+    }
+
+    /**
+     * Closes and deletes the log.
+     */
+    synchronized void delete() {
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to close the log: " + file.getName());
+        }
+        file.delete();
+        records = 0;
+    }
+
+    /**
+     * Computes the checksum of the body of a record.
+     *
+     * @param body Body of the record
+     * @return CRC32 of the body, in hexadecimal
+     */
+    private static String checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
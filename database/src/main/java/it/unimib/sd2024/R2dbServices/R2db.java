@@ -1,11 +1,23 @@
 package it.unimib.sd2024.R2dbServices;
 
 import java.io.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 
 import javax.json.bind.Jsonb;
 import javax.json.bind.JsonbBuilder;
@@ -14,20 +26,90 @@ import javax.json.bind.JsonbException;
 import it.unimib.sd2024.exceptions.*;
 
 /**
- * Represents a JSON-based database service with file system persistence.
+ * Represents a JSON-based database service whose tables are kept in memory,
+ * with file system persistence.
+ * Every table is guarded by its own locks, striped by key: writes to a single
+ * key lock only the stripe of the key, while operations on the whole table
+ * lock every stripe of that table only. Reads take no lock: they read a
+ * snapshot of the database (see {@link R2Mvcc}), so they never wait for the
+ * writers, however many, and the writers never wait for them.
+ * The changes committed to every table are also published to a log of the
+ * database, which is streamed to the replicas (see
+ * {@link #replicate(Long, RowConsumer, Flushable)}).
  */
 public class R2db {
+    /**
+     * Folder holding the files of the tables (default ./dbJsons). Every
+     * process, such as a primary and its replicas, needs its own folder.
+     */
+    public static final String DATA_DIR = System.getProperty("r2db.dataDir", "./dbJsons");
+
+    /**
+     * File, in the data folder, of the commit log of the MULTI/EXEC batches
+     * spanning several tables.
+     */
+    static final String COMMIT_LOG = "r2db.commits";
+
+    /**
+     * Milliseconds between two checks for rows to expire.
+     */
+    static final long EXPIRY_CHECK = Long.getLong("r2db.expiry.checkMs", 60000);
+
+    /**
+     * Number of changes kept in the log of the database for the replicas.
+     */
+    static final int REPLICATION_BUFFER = Integer.getInteger("r2db.replication.buffer", 16384);
+
+    /**
+     * Milliseconds between two reclamations of the versions of the rows no
+     * longer read by any snapshot.
+     */
+    static final long VACUUM_INTERVAL = Long.getLong("r2db.mvcc.vacuumMs", 1000);
+
     private static R2db r2db = null;
     private Jsonb jsonb;
-    private final Map<String, File> db;
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, R2Table> db;
+    private final R2CommitLog commits;
+    private final R2Feed log;
+    private final R2Mvcc mvcc;
+    private final Set<AtomicLong> replicas;
 
     /**
      * Private constructor initializes the database map and JSON binding utility.
      */
     private R2db() {
         this.db = new ConcurrentHashMap<>();
+        this.commits = new R2CommitLog(new File(DATA_DIR, COMMIT_LOG));
+        this.log = new R2Feed(REPLICATION_BUFFER);
+        this.mvcc = new R2Mvcc();
+        this.replicas = ConcurrentHashMap.newKeySet();
         jsonb = JsonbBuilder.create();
+
+        // A single task expires the rows of every table, rather than a timer per row
+        ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "r2db-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                expire(LocalDate.now().toString());
+            } catch (RuntimeException e) {
+                // A failure must not cancel the following checks
+                System.out.println("Error expiring rows: " + e);
+            }
+        }, EXPIRY_CHECK, EXPIRY_CHECK, TimeUnit.MILLISECONDS);
+
+        // Another one reclaims the versions left behind by the writers while snapshots were reading them
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                for (R2Table table : db.values()) {
+                    table.vacuum();
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Error reclaiming versions: " + e);
+            }
+        }, VACUUM_INTERVAL, VACUUM_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -50,25 +132,118 @@ public class R2db {
      * @throws TableAlreadyExistsException If the table already exists
      */
     public void create_tab(String name_tab) throws FileErrorException, TableAlreadyExistsException {
-        // Acquires write lock for thread safety
-        lock.writeLock().lock();
-        try {
+        // Serializes the changes to the set of tables
+        synchronized (db) {
             if (db.containsKey(name_tab)) {
                 throw new TableAlreadyExistsException();
             }
             try {
-                File file = new File("./dbJsons/" + name_tab + ".json");
+                File file = new File(DATA_DIR, name_tab + ".json");
 
                 // Attempts to create the file
                 file.createNewFile();
 
                 // Adds table to the database map
-                db.put(name_tab, file);
+                db.put(name_tab, new R2Table(name_tab, file, log, mvcc));
+                log.publish(name_tab, "CREATE", null, null);
             } catch (Exception e) {
                 throw new FileErrorException();
             }
+        }
+    }
+
+    /**
+     * Creates a secondary index on a field of the specified table: "hash"
+     * indexes are used by the equality comparisons on that field, while "range"
+     * indexes are used by every comparison. An "expiry" index is a "range"
+     * index on the expiry date of the rows, which also tells the rows expired
+     * (see {@link #active(R2Select)}); a table has at most one. Creating an
+     * index that already exists has no effect.
+     * 
+     * @param name_tab Name of the table
+     * @param field    Field of the rows to index
+     * @param type     Kind of index, "hash", "range" or "expiry"
+     * @throws R2dbFileNotFoundException If the table does not exist
+     * @throws R2dbErrorException        If the kind of index is unknown, or
+     *                                   the table has an expiry index on
+     *                                   another field
+     * @throws JsonBException            If JSON serialization fails
+     * @throws FileErrorException        If an error occurs while writing the
+     *                                   metadata file of the table
+     */
+    public void create_index(String name_tab, String field, String type)
+            throws R2dbFileNotFoundException, R2dbErrorException, JsonBException, FileErrorException {
+        R2Index.Type indexType;
+        try {
+            indexType = R2Index.Type.valueOf(type.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new R2dbErrorException();
+        }
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+
+        // Acquires the write locks of the table while the index is built
+        table.lockAll(true);
+        try {
+            table.checkNotDropped();
+            table.createIndex(field, indexType, jsonb);
+            log.publish(name_tab, "CREATE_INDEX", field, indexType.toString().toLowerCase());
         } finally {
-            lock.writeLock().unlock();
+            table.unlockAll(true);
+        }
+    }
+
+    /**
+     * Loads the rows read from the JSON file of a table into memory, without
+     * writing them back to the file.
+     * 
+     * @param name_tab Name of the table
+     * @param rows     Rows of the table, indexed by key
+     * @throws UndefinedKeyException If the table does not exist
+     */
+    public void load(String name_tab, Map<String, Object> rows) throws UndefinedKeyException {
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new UndefinedKeyException();
+        }
+
+        // Acquires the write locks of the table for thread safety
+        table.lockAll(true);
+        try {
+            table.checkNotDropped();
+            for (Entry<String, Object> entry : rows.entrySet()) {
+                table.put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            table.unlockAll(true);
+        }
+    }
+
+    /**
+     * Replays the write-ahead log of a table over the rows loaded from its
+     * JSON file, recovering the mutations committed after the last snapshot,
+     * and rebuilds the secondary indexes of the table.
+     * 
+     * @param name_tab Name of the table
+     * @throws UndefinedKeyException If the table does not exist
+     * @throws JsonBException        If a record of the log cannot be deserialized
+     * @throws FileErrorException    If an error occurs while accessing the files
+     */
+    public void recover(String name_tab) throws UndefinedKeyException, JsonBException, FileErrorException {
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new UndefinedKeyException();
+        }
+
+        // Acquires the write locks of the table for thread safety
+        table.lockAll(true);
+        try {
+            table.checkNotDropped();
+            table.recover(jsonb, commits);
+        } finally {
+            table.unlockAll(true);
         }
     }
 
@@ -85,64 +260,165 @@ public class R2db {
      */
     public void create(String name_tab, String key, Object value)
             throws JsonBException, R2dbFileNotFoundException, UncheckedIOException {
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new UndefinedKeyException();
+        }
 
-        // Acquires write lock for thread safety
-        lock.writeLock().lock();
-        try {
-            if (!db.containsKey(name_tab)) {
-                throw new UndefinedKeyException();
+        // Handle JSON serialization based on value type
+        if (value.getClass().equals(String.class)) {
+            Map<String, Object> k = new HashMap<>();
+            String jString = value.toString();
+            try {
+                k = jsonb.fromJson(jString, jString.getClass().getGenericSuperclass());
+            } catch (JsonbException e) {
+                throw new JsonBException();
             }
 
-            // Read JSON file and convert to a Map
-            Map<String, Object> map = null;
-            if (db.get(name_tab).length() == 0) {
-                map = new HashMap<>();
-            } else {
-                try (BufferedReader reader = new BufferedReader(new FileReader("./dbJsons/" + name_tab + ".json"))) {
-                    map = jsonb.fromJson(reader,
-                            new HashMap<String, Object>() {
-                            }.getClass().getGenericSuperclass());
-                } catch (JsonbException e) {
-                    throw new JsonBException();
-                } catch (IOException e) {
-                    throw new R2dbFileNotFoundException();
-                }
-            }
+            value = k;
+        }
 
-            // Handle JSON serialization based on value type
-            if (value.getClass().equals(String.class)) {
-                Map<String, Object> k = new HashMap<>();
-                String jString = value.toString();
-                k = jsonb.fromJson(jString, jString.getClass().getGenericSuperclass());
+        // Acquires the write lock of the stripe of the key
+        ReentrantReadWriteLock stripe = table.stripe(key);
+        stripe.writeLock().lock();
+        try {
+            table.checkNotDropped();
+
+            // Records the key-value pair in the log, then adds it to the table
+            table.log(R2Wal.Op.CREATE_KEY, key, value, jsonb);
+            table.put(key, value);
+            table.publish(R2Wal.Op.CREATE_KEY, key, value);
+        } catch (FileErrorException e) {
+            throw new R2dbFileNotFoundException();
+        } finally {
+            // Releases write lock
+            stripe.writeLock().unlock();
+        }
 
-                // Adds key-value pair to map
-                map.put(key, k);
+        try {
+            table.maybeSnapshot(jsonb);
+        } catch (FileErrorException e) {
+            throw new R2dbFileNotFoundException();
+        }
+    }
 
-            } else {
+    /**
+     * Inserts a new value in the specified table, under a key allocated
+     * atomically from the sequence of the table.
+     * 
+     * @param name_tab  Name of the table
+     * @param value     JSON document to insert
+     * @param key_field Parameter of the document that receives the allocated
+     *                  key, or null
+     * @return The allocated key
+     * @throws R2dbFileNotFoundException If the table does not exist or the log
+     *                                   cannot be written
+     * @throws JsonBException            If JSON serialization or deserialization
+     *                                   fails
+     */
+    public String insert(String name_tab, String value, String key_field)
+            throws R2dbFileNotFoundException, JsonBException {
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        Map<String, Object> document;
+        try {
+            document = jsonb.fromJson(value, new HashMap<String, Object>() {
+            }.getClass().getGenericSuperclass());
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
 
-                // Adds key-value pair to map
-                map.put(key, value);
-            }
-            String fileJson = jsonb.toJson(map);
+        // Allocates the key, then stores the document under it
+        String key = table.nextKey();
+        if (key_field != null) {
+            document.put(key_field, key);
+        }
+        ReentrantReadWriteLock stripe = table.stripe(key);
+        stripe.writeLock().lock();
+        try {
+            table.checkNotDropped();
+
+            // Records the key-value pair in the log, then adds it to the table
+            table.log(R2Wal.Op.CREATE_KEY, key, document, jsonb);
+            table.put(key, document);
+            table.publish(R2Wal.Op.CREATE_KEY, key, document);
+        } catch (FileErrorException e) {
+            throw new R2dbFileNotFoundException();
+        } finally {
+            stripe.writeLock().unlock();
+        }
+
+        try {
+            table.maybeSnapshot(jsonb);
+        } catch (FileErrorException e) {
+            throw new R2dbFileNotFoundException();
+        }
+        return key;
+    }
 
-            // Write modified map back to JSON file
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("./dbJsons/" + name_tab + ".json"))) {
-                writer.write(fileJson);
-            } catch (IOException e) {
+    /**
+     * Executes a MULTI/EXEC batch of commands atomically: the write locks of
+     * the tables involved are acquired once, in the order of their names, and
+     * the batch either takes effect as a whole or, if a command fails, is
+     * rolled back.
+     * 
+     * @param commands Commands of the batch, already tokenized
+     * @return The result of each command
+     * @throws R2dbFileNotFoundException If a table does not exist
+     * @throws R2dbErrorException        If a command is not allowed in a batch
+     * @throws UndefinedKeyException     If a SELECT finds no key
+     * @throws TableIsEmptyException     If a command needs a non-empty table
+     * @throws JsonBException            If JSON serialization or deserialization
+     *                                   fails
+     * @throws FileErrorException        If an error occurs while writing the log
+     */
+    public List<Object> exec(List<String[]> commands)
+            throws R2dbFileNotFoundException, TableIsEmptyException, JsonBException, FileErrorException {
+        // Resolves the tables involved, sorted by name to avoid deadlocks between batches
+        Map<String, R2Table> tables = new TreeMap<>();
+        for (String[] command : commands) {
+            if (command.length < 2) {
+                throw new R2dbErrorException();
+            }
+            R2Table table = db.get(command[1]);
+            if (table == null) {
                 throw new R2dbFileNotFoundException();
             }
+            tables.put(command[1], table);
+        }
 
-            // Closes Jsonb resource
-            try {
-                jsonb.close();
-            } catch (Exception e) {
-                throw new JsonBException();
+        List<R2Table> locked = new ArrayList<>();
+        List<Object> results;
+        try {
+            for (R2Table table : tables.values()) {
+                table.lockAll(true);
+                locked.add(table);
+                try {
+                    table.checkNotDropped();
+                } catch (UndefinedKeyException e) {
+                    // The table was deleted while the batch was waiting for its locks
+                    throw new R2dbFileNotFoundException();
+                }
             }
+            results = new R2Transaction(tables, mvcc, commits, jsonb).run(commands);
         } finally {
-            // Releases write lock
-            lock.writeLock().unlock();
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                locked.get(i).unlockAll(true);
+            }
         }
 
+        for (R2Table table : tables.values()) {
+            table.maybeSnapshot(jsonb);
+        }
+        try {
+            commits.compact(db.values());
+        } catch (FileErrorException e) {
+            // The batch is committed: the next one compacts the log again
+            System.out.println("Failed to compact the commit log");
+        }
+        return results;
     }
 
     /**
@@ -151,7 +427,7 @@ public class R2db {
      * @param name_tab Name of the table
      * @param key      Key to retrieve data for
      * @return JSON string representing the retrieved data
-     * @throws R2dbFileNotFoundException If file is not found during operations
+     * @throws R2dbFileNotFoundException If the table doesn't exist
      * @throws JsonBException            If JSON serialization or deserialization
      *                                   fails
      * @throws FileErrorException        If an error occurs while accessing the file
@@ -159,70 +435,57 @@ public class R2db {
      */
     public Object select(String name_tab, String key)
             throws R2dbFileNotFoundException, JsonBException, FileErrorException, UndefinedKeyException {
+        return select(name_tab, key, (List<String>) null);
+    }
 
-        // Acquires read lock for thread safety
-        lock.readLock().lock();
-        try {
-            Map<String, Object> result = new HashMap<>();
-            String jString = "";
-
-            // Check if the database contains the specified table
-            if (db.containsKey(name_tab)) {
-                Map<String, Object> map = null;
-
-                // Try to read from the JSON file corresponding to the table
-                try (BufferedReader reader = new BufferedReader(new FileReader("./dbJsons/" + name_tab + ".json"))) {
-                    if (reader.ready()) {
-
-                        // Deserialize JSON content into a map
-                        map = jsonb.fromJson(reader,
-                                new HashMap<String, Object>() {
-                                }.getClass().getGenericSuperclass());
-                    }
-                } catch (JsonbException e) {
-                    throw new JsonBException();
-                } catch (IOException e) {
-                    throw new FileErrorException();
-                }
-
-                if (map != null) {
-                    // If key is "*", retrieve all entries from the map
-                    if (key.equals("*")) {
-                        for (Entry<String, Object> entry : map.entrySet()) {
-                            String k = entry.getKey();
-                            result.put(k, entry.getValue());
-                        }
-                    } else {
-                        // If key is specific, retrieve only that entry from the map
-                        for (Entry<String, Object> entry : map.entrySet()) {
-                            String k = entry.getKey();
-                            if (k.equals(key)) {
-                                result.put(k, entry.getValue());
-                            }
-                        }
+    /**
+     * Retrieves data from the specified table based on a key, keeping only the
+     * given fields of each row.
+     * 
+     * @param name_tab Name of the table
+     * @param key      Key to retrieve data for
+     * @param fields   Fields to keep, or null to keep whole rows
+     * @return JSON string representing the retrieved data
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws JsonBException            If JSON serialization or deserialization
+     *                                   fails
+     * @throws FileErrorException        If an error occurs while accessing the file
+     * @throws UndefinedKeyException     If the key is not found
+     */
+    public Object select(String name_tab, String key, List<String> fields)
+            throws R2dbFileNotFoundException, JsonBException, FileErrorException, UndefinedKeyException {
+        // Check if the database contains the specified table
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        Map<String, Object> result = new HashMap<>();
+        String jString = "";
 
-                    }
-                }
-            } else {
+        // Reads a snapshot of the table, without waiting for the writers
+        try (R2Mvcc.Snapshot snapshot = mvcc.open()) {
+            if (table.isDropped()) {
                 throw new R2dbFileNotFoundException();
             }
-
-            if (result.toString().equals("{}")) {
-                throw new UndefinedKeyException();
+            if (key.equals("*")) {
+                // If key is "*", retrieve all entries from the table
+                table.forEach(snapshot, (k, row) -> result.put(k, project(row, fields)));
+            } else {
+                // If key is specific, retrieve only that entry from the table
+                Object row = table.get(key, snapshot);
+                if (row != null) {
+                    result.put(key, project(row, fields));
+                }
             }
+        }
 
-            // Serialize the result map to JSON string
-            try {
-                jString = jsonb.toJson(result);
-            } catch (JsonbException e) {
-                throw new JsonBException();
-            }
-            return jString;
+        // Serialized once the snapshot is closed, see R2Mvcc
+        jString = toJson(result);
 
-        } finally {
-            // Release the read lock
-            lock.readLock().unlock();
+        if (result.isEmpty()) {
+            throw new UndefinedKeyException();
         }
+        return jString;
     }
 
     /**
@@ -235,7 +498,7 @@ public class R2db {
      * @param op       Operation (e.g., "e" for equals, "b" for greater than, etc.)
      * @param value    Value to compare with
      * @return JSON string representing the retrieved data
-     * @throws R2dbFileNotFoundException If file is not found during operations
+     * @throws R2dbFileNotFoundException If the table doesn't exist
      * @throws JsonBException            If JSON serialization or deserialization
      *                                   fails
      * @throws FileErrorException        If an error occurs while accessing the file
@@ -243,109 +506,739 @@ public class R2db {
      */
     public Object select(String name_tab, String key, String param, String op, String value)
             throws R2dbFileNotFoundException, JsonBException, FileErrorException, UndefinedKeyException {
-        // Acquires read lock for thread safety
-        lock.readLock().lock();
-        try {
-            Map<String, Object> result = new HashMap<>();
+        return select(name_tab, key, param, op, value, null);
+    }
 
-            // Checks if the specified table exists in the database
-            if (db.containsKey(name_tab)) {
-                Map<String, Object> map = null;
+    /**
+     * Retrieves data from the specified table based on key, parameter, operation,
+     * and value, keeping only the given fields of each row.
+     * 
+     * @param name_tab Name of the table
+     * @param key      Key to retrieve data for
+     * @param param    Parameter to filter by
+     * @param op       Operation (e.g., "e" for equals, "b" for greater than, etc.)
+     * @param value    Value to compare with
+     * @param fields   Fields to keep, or null to keep whole rows
+     * @return JSON string representing the retrieved data
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws JsonBException            If JSON serialization or deserialization
+     *                                   fails
+     * @throws FileErrorException        If an error occurs while accessing the file
+     * @throws UndefinedKeyException     If the key is not found
+     */
+    public Object select(String name_tab, String key, String param, String op, String value, List<String> fields)
+            throws R2dbFileNotFoundException, JsonBException, FileErrorException, UndefinedKeyException {
+        return select(name_tab, key, R2Predicate.comparison(param, op, value), fields);
+    }
 
-                // Attempts to read and parse JSON data from the corresponding file
-                try (BufferedReader reader = new BufferedReader(new FileReader("./dbJsons/" + name_tab + ".json"))) {
-                    if (reader.ready()) {
+    /**
+     * Retrieves data from the specified table based on key and a predicate,
+     * keeping only the given fields of each row.
+     * 
+     * @param name_tab Name of the table
+     * @param key      Key to retrieve data for
+     * @param where    Predicate the rows must satisfy
+     * @param fields   Fields to keep, or null to keep whole rows
+     * @return JSON string representing the retrieved data
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws JsonBException            If JSON serialization or deserialization
+     *                                   fails
+     * @throws FileErrorException        If an error occurs while accessing the file
+     * @throws UndefinedKeyException     If the key is not found
+     */
+    Object select(String name_tab, String key, R2Predicate where, List<String> fields)
+            throws R2dbFileNotFoundException, JsonBException, FileErrorException, UndefinedKeyException {
+        return select(new R2Select(name_tab, key, fields, where, null, false, -1, 0));
+    }
+
+    /**
+     * Retrieves the rows selected by a query that are not expired (ACTIVE):
+     * the rows whose expiry date, the field of the EXPIRY index of the table,
+     * is not earlier than the cutoff of the index. The condition is added to
+     * the predicate of the query, so it is answered by the indexes as well.
+     * 
+     * @param query The query
+     * @return JSON string representing the retrieved data
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws R2dbErrorException        If the table has no EXPIRY index
+     * @throws JsonBException            If JSON serialization fails
+     * @throws FileErrorException        If an error occurs while accessing the file
+     */
+    Object active(R2Select query)
+            throws R2dbFileNotFoundException, R2dbErrorException, JsonBException, FileErrorException {
+        R2Table table = db.get(query.table);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        R2Index expiry = table.getExpiry();
+        if (expiry == null) {
+            throw new R2dbErrorException();
+        }
+        R2Predicate active = R2Predicate.comparison(expiry.getField(), "be", expiry.getCutoff());
+        return select(new R2Select(query.table, query.key, query.fields,
+                query.where == null ? active : R2Predicate.and(query.where, active),
+                query.orderBy, query.descending, query.limit, query.offset));
+    }
 
-                        // Parses JSON data into a map
-                        map = jsonb.fromJson(reader,
-                                new HashMap<String, Object>() {
-                                }.getClass().getGenericSuperclass());
+    /**
+     * Expires the rows of every table with an EXPIRY index whose expiry date
+     * precedes the given day. A single task of the database calls it
+     * periodically with the current day; each table is locked only when the
+     * day has changed since its rows were last expired.
+     * 
+     * @param day The first day whose rows are not expired, as yyyy-MM-dd
+     */
+    void expire(String day) {
+        for (R2Table table : db.values()) {
+            R2Index expiry = table.getExpiry();
+            if (expiry == null || day.compareTo(expiry.getCutoff()) <= 0) {
+                continue;
+            }
+            table.lockAll(true);
+            try {
+                if (!table.isDropped()) {
+                    int expired = table.expire(day);
+                    if (expired > 0) {
+                        System.out.println("Expired " + expired + " rows of " + table.getName());
                     }
-                } catch (JsonbException e) {
-                    throw new JsonBException();
-                } catch (IOException e) {
-                    throw new FileErrorException();
                 }
-                if (map != null) {
-                    if (key.equals("*")) {
-
-                        // Iterates over entries in the map if key is "*"
-
-                        for (Entry<String, Object> entry : map.entrySet()) {
-
-                            String k = entry.getKey();
-                            Map<String, Object> iterable = (Map<String, Object>) entry.getValue();
-                            for (Entry iterable_element : iterable.entrySet()) {
-                                if (iterable_element.getKey().equals(param)) {
-                                    if (op.equals("e") && iterable_element.getValue().equals(value)) {
-                                        result.put(k, entry.getValue());
-                                    } else if (op.equals("b")
-                                            && value.compareTo(iterable_element.getValue().toString()) < 0) {
-                                        result.put(k, entry.getValue());
-                                    } else if (op.equals("l")
-                                            && value.compareTo(iterable_element.getValue().toString()) > 0) {
-                                        result.put(k, entry.getValue());
-                                    } else if (op.equals("be")
-                                            && value.compareTo(iterable_element.getValue().toString()) <= 0) {
-                                        result.put(k, entry.getValue());
-                                    } else if (op.equals("le")
-                                            && value.compareTo(iterable_element.getValue().toString()) >= 0) {
-                                        result.put(k, entry.getValue());
-                                    }
-
-                                }
-                            }
+            } finally {
+                table.unlockAll(true);
+            }
+        }
+    }
 
-                        }
-                    } else {
-                        // Processes specific key entries
-                        for (Entry<String, Object> entry : map.entrySet()) {
-                            String k = entry.getKey();
-
-                            if (k.equals(key)) {
-
-                                Map<String, Object> iterable = (Map<String, Object>) entry.getValue();
-                                for (Entry iterable_element : iterable.entrySet()) {
-                                    if (iterable_element.getKey().equals(param)) {
-                                        if (op.equals("e") && iterable_element.getValue().equals(value)) {
-                                            result.put(k, entry.getValue());
-                                        } else if (op.equals("b")
-                                                && value.compareTo(iterable_element.getValue().toString()) < 0) {
-                                            result.put(k, entry.getValue());
-                                        } else if (op.equals("l")
-                                                && value.compareTo(iterable_element.getValue().toString()) > 0) {
-                                            result.put(k, entry.getValue());
-                                        } else if (op.equals("be")
-                                                && value.compareTo(iterable_element.getValue().toString()) <= 0) {
-                                            result.put(k, entry.getValue());
-                                        } else if (op.equals("le")
-                                                && value.compareTo(iterable_element.getValue().toString()) >= 0) {
-                                            result.put(k, entry.getValue());
-                                        }
-                                    }
-                                }
-                            }
+    /**
+     * Retrieves the rows selected by a query. The predicate, if any, is
+     * evaluated on each row in a single pass; if the indexes of the table can
+     * answer it, only the rows they return are visited.
+     * If the query is ordered, the rows are collected by {@link R2TopK}, which
+     * with a LIMIT keeps only the first OFFSET + LIMIT of them, and only the
+     * rows returned are projected and serialized, in order.
+     * 
+     * @param query The query
+     * @return JSON string representing the retrieved data
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws JsonBException            If JSON serialization or deserialization
+     *                                   fails
+     * @throws FileErrorException        If an error occurs while accessing the file
+     */
+    Object select(R2Select query)
+            throws R2dbFileNotFoundException, JsonBException, FileErrorException {
+        // Checks if the specified table exists in the database
+        R2Table table = db.get(query.table);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        R2TopK top = query.topK();
+        Map<String, Object> result = new HashMap<>();
+        try (R2Mvcc.Snapshot snapshot = mvcc.open()) {
+            visit(table, snapshot, query.key, query.where, (k, row) -> collect(k, row, query, top, result));
+        }
+
+        if (top != null) {
+            // Projected once the snapshot is closed, see R2Mvcc
+            Map<String, Object> ordered = new LinkedHashMap<>();
+            for (Entry<String, Object> entry : top.result()) {
+                ordered.put(entry.getKey(), project(entry.getValue(), query.fields));
+            }
+            return toJson(ordered);
+        }
+
+        // Converts result map to JSON string
+        return toJson(result);
+    }
 
+    /**
+     * Computes the aggregates of the rows selected by a query. The rows are
+     * folded into the aggregates while the table, or the rows returned by the
+     * indexes, are visited, so that only the aggregates are serialized.
+     * 
+     * @param query The query
+     * @return JSON string representing the aggregates
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws JsonBException            If JSON serialization fails
+     */
+    Object aggregate(R2Aggregate query)
+            throws R2dbFileNotFoundException, JsonBException {
+        R2Table table = db.get(query.table);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        try (R2Mvcc.Snapshot snapshot = mvcc.open()) {
+            visit(table, snapshot, "*", query.where, (k, row) -> query.accept(row));
+        }
+        return toJson(query.result());
+    }
+
+    /**
+     * Joins the rows selected from a table with the rows of a second table
+     * whose field equals a field of theirs. The selected rows, usually a few,
+     * are hashed by the value of their field; the matching rows of the second
+     * table are then looked up in its index on the joined field, if any, or
+     * found by reading the second table once and probing the hash table with
+     * each of its rows. Rows without a match are omitted.
+     * Both tables are read in the same snapshot, so the rows joined are
+     * consistent with each other.
+     * 
+     * @param query The query
+     * @return JSON string representing the joined rows: each selected row has
+     *         a field, named after the second table, holding its matching rows
+     * @throws R2dbFileNotFoundException If a table doesn't exist
+     * @throws JsonBException            If JSON serialization fails
+     */
+    Object join(R2Join query)
+            throws R2dbFileNotFoundException, JsonBException {
+        R2Table left = db.get(query.left);
+        R2Table right = db.get(query.right);
+        if (left == null || right == null) {
+            throw new R2dbFileNotFoundException();
+        }
+
+        Map<String, Object> rows = new LinkedHashMap<>();
+        Map<String, Map<String, Object>> matches = new HashMap<>();
+        try (R2Mvcc.Snapshot snapshot = mvcc.open()) {
+            // Build side: the selected rows, hashed by the value of the joined field
+            visit(left, snapshot, query.key, query.where, rows::put);
+            for (Object row : rows.values()) {
+                Object value = ((Map<?, ?>) row).get(query.leftField);
+                if (value != null) {
+                    matches.putIfAbsent(value.toString(), new LinkedHashMap<>());
+                }
+            }
+
+            // Probe side: the rows of the second table with one of those values
+            R2Index index = right.getIndex(query.rightField);
+            if (matches.isEmpty()) {
+                // Nothing to probe
+            } else if (index != null && index.supports("e")) {
+                if (right.isDropped()) {
+                    throw new R2dbFileNotFoundException();
+                }
+                for (Entry<String, Map<String, Object>> match : matches.entrySet()) {
+                    for (String k : index.lookup("e", match.getKey())) {
+                        // Checks the row in the snapshot, as the index also returns the rows changed since
+                        Object row = right.get(k, snapshot);
+                        if (row != null && matches(row, query.rightField, "e", match.getKey())) {
+                            match.getValue().put(k, project(row, query.rightFields));
                         }
                     }
                 }
             } else {
-                throw new UndefinedKeyException();
+                visit(right, snapshot, "*", null, (k, row) -> {
+                    Object value = row instanceof Map ? ((Map<?, ?>) row).get(query.rightField) : null;
+                    Map<String, Object> match = value == null ? null : matches.get(value.toString());
+                    if (match != null) {
+                        match.put(k, project(row, query.rightFields));
+                    }
+                });
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Entry<String, Object> entry : rows.entrySet()) {
+            Object value = ((Map<?, ?>) entry.getValue()).get(query.leftField);
+            Map<String, Object> match = value == null ? null : matches.get(value.toString());
+            if (match != null && !match.isEmpty()) {
+                Map<String, Object> joined = new LinkedHashMap<>();
+                for (Entry<?, ?> field : ((Map<?, ?>) project(entry.getValue(), query.leftFields)).entrySet()) {
+                    joined.put(field.getKey().toString(), field.getValue());
+                }
+                joined.put(query.nested(), match);
+                result.put(entry.getKey(), joined);
+            }
+        }
+        return toJson(result);
+    }
+
+    /**
+     * Visits the rows of a table with the given key that satisfy a predicate,
+     * as they are in a snapshot, without taking any lock. If the indexes of
+     * the table can answer the predicate, only the rows they return are
+     * visited; otherwise the whole table is read.
+     * 
+     * @param table    Table to read
+     * @param snapshot Snapshot to read
+     * @param key      Key to visit, or "*" for every key
+     * @param where    Predicate the rows must satisfy, or null
+     * @param sink     Receives the key and the value of each row
+     * @throws R2dbFileNotFoundException If the table has been deleted
+     */
+    private void visit(R2Table table, R2Mvcc.Snapshot snapshot, String key, R2Predicate where,
+            BiConsumer<String, Object> sink) throws R2dbFileNotFoundException {
+        if (table.isDropped()) {
+            throw new R2dbFileNotFoundException();
+        }
+        Set<String> candidates = key.equals("*") && where != null ? where.candidates(table) : null;
+        if (candidates != null) {
+            // Visits only the keys returned by the indexes
+            for (String k : candidates) {
+                // Checks the row in the snapshot, as the indexes also return the rows changed since
+                Object row = table.get(k, snapshot);
+                if (row != null && where.matches(row)) {
+                    sink.accept(k, row);
+                }
+            }
+        } else if (key.equals("*")) {
+            // Iterates over entries in the table if key is "*"
+            table.forEach(snapshot, (k, row) -> {
+                if (where == null || where.matches(row)) {
+                    sink.accept(k, row);
+                }
+            });
+        } else {
+            // Processes the specific key entry
+            Object row = table.get(key, snapshot);
+            if (row != null && (where == null || where.matches(row))) {
+                sink.accept(key, row);
+            }
+        }
+    }
+
+    /**
+     * Adds a row selected by a query to its result, or offers it to the
+     * collector of an ordered query, which projects it only if it is kept.
+     */
+    private static void collect(String key, Object row, R2Select query, R2TopK top, Map<String, Object> result) {
+        if (top != null) {
+            top.offer(key, row);
+        } else {
+            result.put(key, project(row, query.fields));
+        }
+    }
+
+    /**
+     * Streams the rows selected by a query, handing each of them to the
+     * consumer as soon as it is read, so that the result is never
+     * materialized as a whole.
+     * The candidate keys are taken from the indexes that answer the
+     * predicate, if any, or from the table; each row is then read in a
+     * snapshot opened before the candidates are taken, so the rows streamed
+     * all belong to the same state of the table, however slow the consumer.
+     * If the query is ordered, the rows are collected by {@link R2TopK} first
+     * and streamed in order once every row has been read.
+     *
+     * @param query    The query
+     * @param consumer Consumer receiving the selected rows
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws JsonBException            If JSON serialization fails
+     * @throws IOException               If the consumer fails to deliver a row
+     */
+    void scan(R2Select query, RowConsumer consumer)
+            throws R2dbFileNotFoundException, JsonBException, IOException {
+        R2Table table = db.get(query.table);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        R2Predicate where = query.where;
+        R2TopK top = query.topK();
+
+        try (R2Mvcc.Snapshot snapshot = mvcc.open()) {
+            if (table.isDropped()) {
+                throw new R2dbFileNotFoundException();
+            }
+
+            // Takes the candidate keys, which include the rows of the snapshot
+            Iterable<String> keys = null;
+            if (!query.key.equals("*")) {
+                keys = List.of(query.key);
+            } else if (where != null) {
+                keys = where.candidates(table);
+            }
+            if (keys == null) {
+                keys = new ArrayList<>(table.keys());
+            }
+
+            for (String k : keys) {
+                // Serialized while other writers proceed, see R2Mvcc
+                Object row = table.get(k, snapshot);
+                if (row != null && (where == null || where.matches(row))) {
+                    if (top != null) {
+                        top.offer(k, row);
+                    } else {
+                        accept(consumer, k, row, query.fields);
+                    }
+                }
+            }
+        }
+
+        if (top != null) {
+            for (Entry<String, Object> entry : top.result()) {
+                accept(consumer, entry.getKey(), entry.getValue(), query.fields);
+            }
+        }
+    }
+
+    /**
+     * Streams the changes committed to the rows of a table, in order, handing
+     * each of them to the consumer as {@code seq {"seq":..,"op":..,"key":..,"value":..}}
+     * and flushing the consumer after each batch. The changes are preceded by
+     * a SYNC change carrying the sequence number they follow, which is sent
+     * again whenever no change is committed for {@link R2Feed#HEARTBEAT}
+     * milliseconds, so that the watcher knows the position it can resume from
+     * and a closed connection is noticed.
+     * The stream ends only when the table is deleted, the watcher falls behind
+     * the feed of the table or the consumer fails.
+     *
+     * @param name_tab Name of the table
+     * @param from     Sequence number of the last change already received, or
+     *                 null to receive only the changes committed from now on
+     * @param consumer Consumer receiving the changes
+     * @param flush    Flushes the changes handed to the consumer
+     * @throws R2dbFileNotFoundException If the table doesn't exist or is deleted
+     * @throws FeedGapException          If the changes following the sequence
+     *                                   number are no longer, or not yet,
+     *                                   available
+     * @throws IOException               If the consumer fails to deliver a change
+     */
+    void watch(String name_tab, Long from, RowConsumer consumer, Flushable flush)
+            throws R2dbFileNotFoundException, FeedGapException, IOException {
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        R2Feed feed = table.getFeed();
+        long position = from == null ? feed.position() : from;
+        feed.check(position);
+        sync(consumer, position);
+        flush.flush();
+
+        try {
+            while (true) {
+                List<R2Feed.Event> events = feed.poll(position, R2Feed.HEARTBEAT);
+                if (events == null) {
+                    // The table was deleted after every change was delivered
+                    throw new R2dbFileNotFoundException();
+                }
+                if (events.isEmpty()) {
+                    sync(consumer, position);
+                }
+                for (R2Feed.Event event : events) {
+                    consumer.accept(Long.toString(event.seq), event.toJson(jsonb));
+                    position = event.seq;
+                }
+                flush.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while watching " + name_tab);
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
+    }
+
+    private static void sync(RowConsumer consumer, long position) throws IOException {
+        consumer.accept(Long.toString(position), "{\"seq\":" + position + ",\"op\":\"SYNC\"}");
+    }
+
+    /**
+     * Streams the log of the database to a replica: the changes committed to
+     * every table, in order, as {@code seq {"seq":..,"table":..,"time":..,"op":..,"key":..,"value":..}}.
+     * If the changes following the given sequence number are still in the
+     * log, the stream resumes from there; otherwise it starts with a snapshot
+     * of the database: a SNAPSHOT change, then a CREATE change with the
+     * indexes of each table followed by a CREATE_KEY change for each of its
+     * rows, all numbered with the position of the log when the snapshot was
+     * taken. The changes following that position are then streamed as well,
+     * even if the snapshot already includes some of them: applying a change
+     * again has no further effect, so the replica converges to the primary.
+     * As for WATCH, a SYNC change carries the position of the stream, at the
+     * beginning, at the end of a snapshot and whenever the database is idle.
+     * The stream ends only when the replica falls behind the log or the
+     * consumer fails.
+     *
+     * @param from     Sequence number of the last change applied by the
+     *                 replica, or null to start with a snapshot
+     * @param consumer Consumer receiving the changes
+     * @param flush    Flushes the changes handed to the consumer
+     * @throws FeedGapException If the replica falls behind the log
+     * @throws JsonBException   If JSON serialization fails
+     * @throws IOException      If the consumer fails to deliver a change
+     */
+    void replicate(Long from, RowConsumer consumer, Flushable flush)
+            throws FeedGapException, JsonBException, IOException {
+        Long resume = from;
+        if (resume != null) {
+            try {
+                log.check(resume);
+            } catch (FeedGapException e) {
+                // The changes the replica is missing are no longer in the log
+                resume = null;
+            }
+        }
+        long position = resume != null ? resume : snapshot(consumer);
+        sync(consumer, position);
+        flush.flush();
+
+        // Tracks the position of the replica for the statistics
+        AtomicLong sent = new AtomicLong(position);
+        replicas.add(sent);
+        try {
+            while (true) {
+                List<R2Feed.Event> events = log.poll(position, R2Feed.HEARTBEAT);
+                if (events.isEmpty()) {
+                    sync(consumer, position);
+                }
+                for (R2Feed.Event event : events) {
+                    consumer.accept(Long.toString(event.seq), event.toJson(jsonb));
+                    position = event.seq;
+                }
+                flush.flush();
+                sent.set(position);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replicating");
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        } finally {
+            replicas.remove(sent);
+        }
+    }
+
+    /**
+     * Streams a snapshot of the database. The rows of each table are copied
+     * from a snapshot, without taking any lock, then serialized and sent
+     * once it is closed (see {@link R2Mvcc}).
+     *
+     * @param consumer Consumer receiving the snapshot
+     * @return Position of the log when the snapshot was taken
+     */
+    private long snapshot(RowConsumer consumer) throws JsonBException, IOException {
+        long position = log.position();
+        String seq = Long.toString(position);
+        consumer.accept(seq, "{\"seq\":" + position + ",\"op\":\"SNAPSHOT\"}");
+        for (R2Table table : new ArrayList<>(db.values())) {
+            Map<String, Object> rows = new HashMap<>();
+            Map<String, String> indexes;
+            try (R2Mvcc.Snapshot snapshot = mvcc.open()) {
+                if (table.isDropped()) {
+                    continue;
+                }
+                table.forEach(snapshot, rows::put);
+                indexes = table.getIndexTypes();
             }
-            String jString = "";
 
-            // Converts result map to JSON string
             try {
-                jString = jsonb.toJson(result);
+                Map<String, Object> create = new LinkedHashMap<>();
+                create.put("seq", position);
+                create.put("table", table.getName());
+                create.put("op", "CREATE");
+                create.put("indexes", indexes);
+                consumer.accept(seq, jsonb.toJson(create));
+                for (Entry<String, Object> entry : rows.entrySet()) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    row.put("seq", position);
+                    row.put("table", table.getName());
+                    row.put("op", R2Wal.Op.CREATE_KEY.toString());
+                    row.put("key", entry.getKey());
+                    row.put("value", entry.getValue());
+                    consumer.accept(seq, jsonb.toJson(row));
+                }
             } catch (JsonbException e) {
                 throw new JsonBException();
             }
-            return jString;
-        } finally {
-            // Releases read lock
-            lock.readLock().unlock();
         }
+        return position;
+    }
+
+    /**
+     * Returns the statistics of the replication of the database: the
+     * position of its log and, for each replica connected, the position of
+     * the last change sent to it and how many changes it is behind.
+     *
+     * @return The statistics, by name
+     */
+    public Map<String, Object> getReplicationStats() {
+        long position = log.position();
+        List<Map<String, Object>> connected = new ArrayList<>();
+        for (AtomicLong sent : replicas) {
+            Map<String, Object> replica = new LinkedHashMap<>();
+            replica.put("seq", sent.get());
+            replica.put("behind", position - sent.get());
+            connected.add(replica);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("role", "primary");
+        stats.put("seq", position);
+        stats.put("replicas", connected);
+        return stats;
+    }
+
+    /**
+     * Returns the statistics of the multi-version concurrency control of the
+     * database (see {@link R2Mvcc#getStats()}), with the number of rows whose
+     * old versions are still read by an open snapshot.
+     *
+     * @return The statistics, by name
+     */
+    public Map<String, Object> getMvccStats() {
+        Map<String, Object> stats = mvcc.getStats();
+        int pending = 0;
+        for (R2Table table : db.values()) {
+            pending += table.getGarbage();
+        }
+        stats.put("pendingRows", pending);
+        return stats;
+    }
+
+    /**
+     * Returns the secondary indexes of a table.
+     *
+     * @param name_tab Name of the table
+     * @return JSON object with the kind of index ("hash", "range" or "expiry")
+     *         of each indexed field
+     * @throws R2dbFileNotFoundException If the table doesn't exist
+     * @throws JsonBException            If JSON serialization fails
+     */
+    public String indexes(String name_tab) throws R2dbFileNotFoundException, JsonBException {
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new R2dbFileNotFoundException();
+        }
+        return toJson(new TreeMap<String, Object>(table.getIndexTypes()));
+    }
+
+    /**
+     * Returns the names of the tables of the database.
+     *
+     * @return Names of the tables
+     */
+    public Set<String> getTableNames() {
+        return new HashSet<>(db.keySet());
+    }
+
+    /**
+     * Deletes the rows of a table whose key is not among the given ones, as
+     * a replica does at the end of a snapshot.
+     *
+     * @param name_tab Name of the table
+     * @param keys     Keys of the rows to keep
+     * @throws UndefinedKeyException If the table doesn't exist
+     * @throws FileErrorException    If an error occurs while writing the log
+     * @throws JsonBException        If JSON serialization fails
+     */
+    public void retain(String name_tab, Set<String> keys)
+            throws UndefinedKeyException, FileErrorException, JsonBException {
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new UndefinedKeyException();
+        }
+        for (String key : new ArrayList<>(table.keys())) {
+            if (!keys.contains(key)) {
+                try {
+                    delete(name_tab, key);
+                } catch (TableIsEmptyException e) {
+                    // Nothing left to delete
+                }
+            }
+        }
+    }
 
+    /**
+     * Projects a row, serializes it and hands it to the consumer.
+     */
+    private void accept(RowConsumer consumer, String key, Object row, List<String> fields)
+            throws JsonBException, IOException {
+        String json;
+        try {
+            json = jsonb.toJson(project(row, fields));
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
+        consumer.accept(key, json);
+    }
+
+    /**
+     * Returns the table with the given name.
+     * 
+     * @param name_tab Name of the table
+     * @return The table, or null if it doesn't exist
+     */
+    R2Table getTable(String name_tab) {
+        return db.get(name_tab);
+    }
+
+    /**
+     * Checks whether a parameter of a row satisfies a comparison.
+     * 
+     * @param row   Row to check
+     * @param param Parameter to compare
+     * @param op    Operation (e.g., "e" for equals, "b" for greater than, etc.)
+     * @param value Value to compare with
+     * @return true if the parameter of the row satisfies the comparison
+     */
+    static boolean matches(Object row, String param, String op, String value) {
+        Map<?, ?> iterable = (Map<?, ?>) row;
+        Object element = iterable.get(param);
+        if (element == null) {
+            return false;
+        }
+        if (op.equals("e")) {
+            return element.equals(value);
+        } else if (op.equals("b")) {
+            return value.compareTo(element.toString()) < 0;
+        } else if (op.equals("l") || op.equals("s")) {
+            return value.compareTo(element.toString()) > 0;
+        } else if (op.equals("be")) {
+            return value.compareTo(element.toString()) <= 0;
+        } else if (op.equals("le")) {
+            return value.compareTo(element.toString()) >= 0;
+        }
+        return false;
+    }
+
+    /**
+     * Copies a row to change some of its fields. Rows are JSON objects, whose
+     * field names are strings.
+     * 
+     * @param row Row to copy
+     * @return A mutable copy of the row
+     */
+    static Map<String, Object> copy(Map<?, ?> row) {
+        Map<String, Object> copy = new HashMap<>();
+        for (Entry<?, ?> field : row.entrySet()) {
+            copy.put(field.getKey().toString(), field.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * Keeps only the given fields of a row. Fields missing from the row are
+     * omitted.
+     * 
+     * @param row    Row to project
+     * @param fields Fields to keep, or null to keep the whole row
+     * @return The projected row, or the row itself if there are no fields
+     */
+    static Object project(Object row, List<String> fields) {
+        if (fields == null || !(row instanceof Map)) {
+            return row;
+        }
+        Map<?, ?> document = (Map<?, ?>) row;
+        Map<String, Object> projected = new LinkedHashMap<>();
+        for (String field : fields) {
+            Object value = document.get(field);
+            if (value != null) {
+                projected.put(field, value);
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * Serializes a result map to a JSON string.
+     * 
+     * @param result Result map to serialize
+     * @return JSON string representing the result
+     * @throws JsonBException If JSON serialization fails
+     */
+    private String toJson(Map<String, Object> result) throws JsonBException {
+        try {
+            return jsonb.toJson(result);
+        } catch (JsonbException e) {
+            throw new JsonBException();
+        }
     }
 
     /**
@@ -362,73 +1255,48 @@ public class R2db {
      */
     public void modify(String name_tab, String key, String param, Object new_value)
             throws UndefinedKeyException, FileErrorException, TableIsEmptyException, JsonBException {
-        lock.writeLock().lock();
-        try {
-            if (db.containsKey(name_tab)) {
-
-                // Lettura del file JSON e conversione in una Map
-                Map<String, Object> map = null;
-                try (BufferedReader reader = new BufferedReader(new FileReader("./dbJsons/" + name_tab + ".json"))) {
-                    map = jsonb.fromJson(reader,
-                            new HashMap<String, Object>() {
-                            }.getClass().getGenericSuperclass());
-                } catch (JsonbException e) {
-                    throw new JsonBException();
-                } catch (IOException e) {
-                    throw new FileErrorException();
-                }
-
-                if (map != null) {
-                    if (new_value.getClass().equals(String.class)) {
-                        // If the new_value is of type String, update a specific nested parameter in the
-                        // map
-                        // Clean the input:
-                        String new_value_str = (String)new_value;
-                        new_value_str = new_value_str.replaceAll("\"", "");
-                        for (Entry<String, Object> entry : map.entrySet()) {
-                            if (entry.getKey().equals(key)) {
-
-                                Map<String, Object> itemEntry = (Map<String, Object>) entry.getValue();
-                                for (Entry<String, Object> item : itemEntry.entrySet()) {
-                                    if (item.getKey().equals(param)) {
-                                        itemEntry.put(param, new_value_str);
-                                        map.put(key, itemEntry);
-                                    }
-                                }
-                            }
-                        }
-                    } else {
-                        map.put(key, new_value);
-                    }
-
-                    // Convert the updated map back to JSON format
-                    String fileJson = "";
-                    try {
-                        fileJson = jsonb.toJson(map);
-                    } catch (JsonbException e) {
-                        throw new JsonBException();
-                    }
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new UndefinedKeyException();
+        }
+        if (table.isEmpty()) {
+            throw new TableIsEmptyException();
+        }
 
-                    // Write the modified map to the JSON file
-                    try (BufferedWriter writer = new BufferedWriter(
-                            new FileWriter("./dbJsons/" + name_tab + ".json"))) {
-                        writer.write(fileJson);
-                        writer.close();
-                    } catch (IOException e) {
-                        throw new FileErrorException();
+        // Acquires the write lock of the stripe of the key
+        ReentrantReadWriteLock stripe = table.stripe(key);
+        stripe.writeLock().lock();
+        try {
+            table.checkNotDropped();
+            if (new_value.getClass().equals(String.class)) {
+                // If the new_value is of type String, update a specific nested parameter in the
+                // map
+                // Clean the input:
+                String new_value_str = (String)new_value;
+                new_value_str = new_value_str.replaceAll("\"", "");
+                Map<?, ?> itemEntry = (Map<?, ?>) table.get(key);
+                if (itemEntry != null) {
+                    if (itemEntry.containsKey(param)) {
+                        Map<String, Object> modified = copy(itemEntry);
+                        modified.put(param, new_value_str);
+
+                        // Records the modified key in the log, then updates the table
+                        table.log(R2Wal.Op.MODIFY, key, modified, jsonb);
+                        table.put(key, modified);
+                        table.publish(R2Wal.Op.MODIFY, key, modified);
                     }
-
-                } else {
-                    throw new TableIsEmptyException();
                 }
             } else {
-                throw new UndefinedKeyException();
+                table.log(R2Wal.Op.MODIFY, key, new_value, jsonb);
+                table.put(key, new_value);
+                table.publish(R2Wal.Op.MODIFY, key, new_value);
             }
         } finally {
             // Releases the write lock
-            lock.writeLock().unlock();
+            stripe.writeLock().unlock();
         }
 
+        table.maybeSnapshot(jsonb);
     }
 
     /**
@@ -442,52 +1310,29 @@ public class R2db {
      */
     public void delete(String name_tab, String key)
             throws UndefinedKeyException, FileErrorException, TableIsEmptyException, JsonBException {
-        lock.writeLock().lock();
-        try {
-            if (!db.containsKey(name_tab)) {
-                throw new UndefinedKeyException();
-            }
-            // Lettura del file JSON e conversione in una Map
-            Map<String, Object> map = null;
-
-            // Read the JSON file and convert it to a Map
-            try (BufferedReader reader = new BufferedReader(new FileReader("./dbJsons/" + name_tab + ".json"))) {
-                map = jsonb.fromJson(reader,
-                        new HashMap<String, Object>() {
-                        }.getClass().getGenericSuperclass());
-            } catch (JsonbException e) {
-                throw new JsonBException();
-            } catch (IOException e) {
-                throw new R2dbFileNotFoundException();
-            }
-
-            // Check if the map is not empty
-            if (map != null) {
-
-                // Remove the specified key from the map
-                map.remove(key);
-                String fileJson = "";
-                try {
-                    fileJson = jsonb.toJson(map);
-                } catch (JsonbException e) {
-                    throw new JsonBException();
-                }
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new UndefinedKeyException();
+        }
 
-                // Write the modified map back to the JSON file
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter("./dbJsons/" + name_tab + ".json"))) {
-                    writer.write(fileJson);
-                } catch (IOException e) {
-                    throw new R2dbFileNotFoundException();
-                }
+        // Acquires the write lock of the stripe of the key
+        ReentrantReadWriteLock stripe = table.stripe(key);
+        stripe.writeLock().lock();
+        try {
+            table.checkNotDropped();
 
-            } else {
-                throw new TableIsEmptyException();
+            // Records the deletion in the log, then removes the key from the table
+            if (table.get(key) != null) {
+                table.log(R2Wal.Op.DELETE_KEY, key, null, jsonb);
+                table.put(key, null);
+                table.publish(R2Wal.Op.DELETE_KEY, key, null);
             }
         } finally {
             // releases the write lock
-            lock.writeLock().unlock();
+            stripe.writeLock().unlock();
         }
 
+        table.maybeSnapshot(jsonb);
     }
 
     /**
@@ -498,22 +1343,27 @@ public class R2db {
      * @throws FileErrorException        If an error occurs while accessing the file
      */
     public void delete_tab(String name_tab) throws UndefinedKeyException, FileErrorException {
-        lock.writeLock().lock();
-        try {
+        // Serializes the changes to the set of tables
+        synchronized (db) {
             // Checks if the database contains the specified table name
-            if (!db.containsKey(name_tab)) {
+            R2Table table = db.get(name_tab);
+            if (table == null) {
                 throw new UndefinedKeyException();
             }
+
+            // Waits for the operations in progress on the table
+            table.lockAll(true);
             try {
-                // Deletes the table file and removes it from the database map
-                db.get(name_tab).delete();
+                // Deletes the table files and removes it from the database map
+                table.drop();
                 db.remove(name_tab);
+                log.publish(name_tab, "DELETE", null, null);
             } catch (Exception e) {
                 throw new R2dbFileNotFoundException();
+            } finally {
+                // Releases the write locks
+                table.unlockAll(true);
             }
-        } finally {
-            // Releases the write lock
-            lock.writeLock().unlock();
         }
     }
 
@@ -528,47 +1378,24 @@ public class R2db {
      */
     public Object LastIndex(String name_tab)
             throws R2dbFileNotFoundException, TableIsEmptyException, UndefinedKeyException, JsonBException {
+        // Checks if the database contains the specified table name
+        R2Table table = db.get(name_tab);
+        if (table == null) {
+            throw new UndefinedKeyException();
+        }
 
-        // Acquires a read lock
-        lock.readLock().lock();
-        try {
-
-             // Checks if the database contains the specified table name
-            if (!db.containsKey(name_tab)) {
-                throw new UndefinedKeyException();
-            }
-            // Checks if the table is not empty
-            if (!(db.get(name_tab).length() == 0)) {
-                Map<String, Object> map = null;
-
-                // Reads the JSON file associated with the table and converts it into a Map
-                try (BufferedReader reader = new BufferedReader(new FileReader("./dbJsons/" + name_tab + ".json"))) {
-                    map = jsonb.fromJson(reader,
-                            new HashMap<String, Object>() {
-                            }.getClass().getGenericSuperclass());
-
-                } catch (JsonbException e) {
-                    throw new JsonBException();
-                } catch (IOException e) {
-                    throw new R2dbFileNotFoundException();
-                }
-
-                // Finds the maximum key (last index) in the map
-                String max = "";
-                for (Entry<String, Object> entry : map.entrySet()) {
-                    String k = entry.getKey();
-                    if (k.compareTo(max) > 0)
-                        max = k;
-                }
+        // Reads a snapshot of the table, without waiting for the writers
+        try (R2Mvcc.Snapshot snapshot = mvcc.open()) {
+            table.checkNotDropped();
 
-                // Returns the last index (maximum key) as a JSON string
-                return max;
-            } else {
+            // Finds the maximum key (last index) in the table
+            String max = table.lastKey(snapshot);
+            if (max == null) {
                 throw new TableIsEmptyException();
             }
-        } finally {
-            // Releases the read lock
-            lock.readLock().unlock();
+
+            // Returns the last index (maximum key) as a JSON string
+            return max;
         }
     }
-}
\ No newline at end of file
+}
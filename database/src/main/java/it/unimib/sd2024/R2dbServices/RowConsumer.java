@@ -0,0 +1,20 @@
+package it.unimib.sd2024.R2dbServices;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a streamed SELECT ({@link R2db#scan}), one at a time,
+ * as soon as each of them is read from the table.
+ */
+@FunctionalInterface
+public interface RowConsumer {
+
+    /**
+     * Receives a row of the result.
+     *
+     * @param key Key of the row
+     * @param row The row, serialized as JSON
+     * @throws IOException If the row can't be delivered, which stops the scan
+     */
+    void accept(String key, String row) throws IOException;
+}
@@ -0,0 +1,184 @@
+package it.unimib.sd2024.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import it.unimib.sd2024.R2dbServices.R2db;
+
+/**
+ * Contention benchmark of the R2db locking.
+ * Writers insert keys in an Order-like table while readers look up rows of
+ * Domain-like and User-like tables. The workload is run twice: once wrapping
+ * every operation in a single global ReentrantReadWriteLock in front of R2db,
+ * and once relying only on the per-table striped locks of R2db. The first run
+ * reproduces how the old global lock serialized the operations, but not the
+ * rewrite of the whole table file the writers used to do while holding it,
+ * which the write-ahead log has removed: it measures the cost of the
+ * serialization alone.
+ * The tables are created in a temporary folder, deleted at the end, never in
+ * the data folder of the database.
+ *
+ * Run it from the database folder with:
+ * mvn compile exec:java -Dexec.mainClass=it.unimib.sd2024.benchmarks.LockContentionBenchmark
+ */
+public class LockContentionBenchmark {
+    private static final String ORDER = "Benchorder";
+    private static final String DOMAIN = "Benchdomain";
+    private static final String USER = "Benchuser";
+    private static final int ROWS = 2000;
+    private static final int WRITERS = Integer.getInteger("bench.writers", 4);
+    private static final int READERS = Integer.getInteger("bench.readers", 8);
+    private static final long DURATION_MS = Long.getLong("bench.durationMs", 5000);
+
+    private static final ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+    private static R2db db;
+
+    public static void main(String[] args) throws Exception {
+        File dataDir = Files.createTempDirectory("r2db-bench").toFile();
+        System.setProperty("r2db.dataDir", dataDir.getPath());
+        db = R2db.getInstance();
+        try {
+            setUp();
+            run("global lock", true);
+            run("striped locks", false);
+        } finally {
+            tearDown();
+            delete(dataDir);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Creates and fills the tables used by the benchmark.
+     */
+    private static void setUp() throws Exception {
+        db.create_tab(ORDER);
+        db.create_tab(DOMAIN);
+        db.create_tab(USER);
+        for (int i = 1; i <= ROWS; i++) {
+            db.create(DOMAIN, Integer.toString(i),
+                    "{\"name\":\"domain" + i + ".it\",\"owner\":\"user" + i + "@unimib.it\"}");
+            db.create(USER, Integer.toString(i),
+                    "{\"id\":\"" + i + "\",\"email\":\"user" + i + "@unimib.it\"}");
+        }
+    }
+
+    /**
+     * Deletes the tables used by the benchmark.
+     */
+    private static void tearDown() {
+        for (String tab : new String[] { ORDER, DOMAIN, USER }) {
+            try {
+                db.delete_tab(tab);
+            } catch (Exception e) {
+                System.out.println("Failed to delete table " + tab);
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary data folder and the files left in it.
+     */
+    static void delete(File dataDir) {
+        File[] files = dataDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDir.delete();
+    }
+
+    /**
+     * Runs the mixed workload and prints the throughput of readers and writers.
+     *
+     * @param label  Label of the run
+     * @param global true to guard every operation with a single global lock
+     */
+    private static void run(String label, boolean global) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong reads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        AtomicLong orderKeys = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] maxReadNanos = new long[READERS];
+
+        for (int w = 0; w < WRITERS; w++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                while (!stop.get()) {
+                    String key = Long.toString(orderKeys.incrementAndGet());
+                    if (global)
+                        globalLock.writeLock().lock();
+                    try {
+                        db.create(ORDER, key, "{\"domain\":\"domain" + key + ".it\",\"cost\":\"10\"}");
+                    } finally {
+                        if (global)
+                            globalLock.writeLock().unlock();
+                    }
+                    writes.incrementAndGet();
+                }
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            threads.add(new Thread(() -> {
+                await(start);
+                long i = reader;
+                while (!stop.get()) {
+                    String id = Long.toString(i++ % ROWS + 1);
+                    long begin = System.nanoTime();
+                    if (global)
+                        globalLock.readLock().lock();
+                    try {
+                        if (i % 2 == 0) {
+                            db.select(DOMAIN, "*", "name", "e", "domain" + id + ".it");
+                        } else {
+                            db.select(USER, id);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        if (global)
+                            globalLock.readLock().unlock();
+                    }
+                    maxReadNanos[reader] = Math.max(maxReadNanos[reader], System.nanoTime() - begin);
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        Thread.sleep(DURATION_MS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long maxRead = 0;
+        for (long nanos : maxReadNanos) {
+            maxRead = Math.max(maxRead, nanos);
+        }
+        double seconds = DURATION_MS / 1000.0;
+        System.out.printf("%-14s reads/s: %10.0f  writes/s: %8.0f  max read latency: %6.2f ms%n", label,
+                reads.get() / seconds, writes.get() / seconds, maxRead / 1_000_000.0);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package it.unimib.sd2024.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unimib.sd2024.R2dbServices.R2db;
+
+/**
+ * Read latency benchmark of the R2db snapshots.
+ * Readers select a Domain-like table, both a single row and the whole table,
+ * while writers rewrite the rows of the same table, so that its size doesn't
+ * change. The workload is run first without writers, then with them: as the
+ * readers read a snapshot without taking any lock, the percentiles of their
+ * latency should not grow with the writes.
+ * The table is created in a temporary folder, deleted at the end, never in
+ * the data folder of the database.
+ *
+ * Run it from the database folder with:
+ * mvn compile exec:java -Dexec.mainClass=it.unimib.sd2024.benchmarks.SnapshotReadBenchmark
+ */
+public class SnapshotReadBenchmark {
+    private static final String DOMAIN = "Benchsnapshot";
+    private static final int ROWS = 1000;
+    private static final int WRITERS = Integer.getInteger("bench.writers", 4);
+    private static final int READERS = Integer.getInteger("bench.readers", 4);
+    private static final long DURATION_MS = Long.getLong("bench.durationMs", 5000);
+    private static final int SAMPLES = 1 << 18;
+
+    private static R2db db;
+
+    public static void main(String[] args) throws Exception {
+        File dataDir = Files.createTempDirectory("r2db-bench").toFile();
+        System.setProperty("r2db.dataDir", dataDir.getPath());
+        db = R2db.getInstance();
+        try {
+            setUp();
+            run("reads only", 0);
+            run("reads + writes", WRITERS);
+        } finally {
+            tearDown();
+            LockContentionBenchmark.delete(dataDir);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Creates and fills the table used by the benchmark.
+     */
+    private static void setUp() throws Exception {
+        db.create_tab(DOMAIN);
+        for (int i = 1; i <= ROWS; i++) {
+            db.create(DOMAIN, Integer.toString(i),
+                    "{\"name\":\"domain" + i + ".it\",\"owner\":\"user" + i + "@unimib.it\"}");
+        }
+    }
+
+    /**
+     * Deletes the table used by the benchmark.
+     */
+    private static void tearDown() {
+        try {
+            db.delete_tab(DOMAIN);
+        } catch (Exception e) {
+            System.out.println("Failed to delete table " + DOMAIN);
+        }
+    }
+
+    /**
+     * Runs the workload and prints the percentiles of the read latency.
+     *
+     * @param label   Label of the run
+     * @param writers Number of threads rewriting rows
+     */
+    private static void run(String label, int writers) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong writes = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[][] keyNanos = new long[READERS][SAMPLES];
+        long[][] scanNanos = new long[READERS][SAMPLES];
+        int[] keyCount = new int[READERS];
+        int[] scanCount = new int[READERS];
+
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads.add(new Thread(() -> {
+                await(start);
+                long i = writer;
+                while (!stop.get()) {
+                    String id = Long.toString(i++ % ROWS + 1);
+                    try {
+                        db.create(DOMAIN, id, "{\"name\":\"domain" + id + ".it\",\"owner\":\"user" + id
+                                + "@unimib.it\",\"renewed\":\"" + i + "\"}");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    writes.incrementAndGet();
+                }
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            threads.add(new Thread(() -> {
+                await(start);
+                long i = reader;
+                while (!stop.get()) {
+                    boolean scan = i % 64 == 0;
+                    long begin = System.nanoTime();
+                    try {
+                        if (scan) {
+                            db.select(DOMAIN, "*", "owner", "e", "user" + (i % ROWS + 1) + "@unimib.it");
+                        } else {
+                            db.select(DOMAIN, Long.toString(i % ROWS + 1));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    long nanos = System.nanoTime() - begin;
+                    if (scan && scanCount[reader] < SAMPLES) {
+                        scanNanos[reader][scanCount[reader]++] = nanos;
+                    } else if (!scan && keyCount[reader] < SAMPLES) {
+                        keyNanos[reader][keyCount[reader]++] = nanos;
+                    }
+                    i++;
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        Thread.sleep(DURATION_MS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = DURATION_MS / 1000.0;
+        System.out.printf("%-16s writes/s: %8.0f%n", label, writes.get() / seconds);
+        print("  key select", keyNanos, keyCount);
+        print("  table scan", scanNanos, scanCount);
+    }
+
+    /**
+     * Prints the percentiles of the latencies sampled by the readers.
+     */
+    private static void print(String label, long[][] samples, int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int next = 0;
+        for (int r = 0; r < samples.length; r++) {
+            System.arraycopy(samples[r], 0, all, next, counts[r]);
+            next += counts[r];
+        }
+        Arrays.sort(all);
+        if (total == 0) {
+            return;
+        }
+        System.out.printf("%-16s reads: %9d  p50: %8.3f ms  p99: %8.3f ms  max: %8.3f ms%n", label, total,
+                all[total / 2] / 1_000_000.0, all[(int) (total * 0.99)] / 1_000_000.0,
+                all[total - 1] / 1_000_000.0);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package it.unimib.sd2024.communicationServices;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocollo binario del database, negoziato con la richiesta testuale BINARY.
+ * Ogni frame è composto da una lunghezza su 4 byte (big endian), che conta i
+ * byte successivi, da un byte di opcode (richieste) o di stato (risposte) e
+ * dal payload in UTF-8, senza escaping né terminatori.
+ */
+final class BinaryProtocol {
+
+    /**
+     * Opcode of a request carrying a query.
+     */
+    static final byte OP_QUERY = 1;
+
+    /**
+     * Opcode of a health check.
+     */
+    static final byte OP_PING = 2;
+
+    /**
+     * Opcode of the closing of the connection.
+     */
+    static final byte OP_QUIT = 3;
+
+    /**
+     * Maximum length of a frame.
+     */
+    static final int MAX_FRAME = Integer.getInteger("r2db.maxFrame", 64 * 1024 * 1024);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Translates a request frame into the equivalent text request.
+     * @param opcode The opcode of the frame.
+     * @param payload The payload of the frame.
+     * @return The text request, or null if the opcode is unknown.
+     */
+    static String toScript(byte opcode, String payload) {
+        switch (opcode) {
+            case OP_QUERY:
+                return payload;
+            case OP_PING:
+                return "PING";
+            case OP_QUIT:
+                return "QUIT";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads a request frame.
+     * @param input The stream of the connection.
+     * @return The equivalent text request, null if the client closed the
+     * connection, or an empty string if the opcode is unknown.
+     * @throws IOException If the frame is malformed or a socket error occurs.
+     */
+    static String readRequest(DataInputStream input) throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte opcode = input.readByte();
+        byte[] payload = new byte[length - 1];
+        input.readFully(payload);
+        String script = toScript(opcode, new String(payload, StandardCharsets.UTF_8));
+        return script == null ? "" : script;
+    }
+
+    /**
+     * Encodes a request frame carrying a query, as sent by a replica to its
+     * primary ({@link Replica}).
+     * @param script The query.
+     * @return The frame.
+     */
+    static byte[] encodeRequest(String script) {
+        return encode(OP_QUERY, script);
+    }
+
+    /**
+     * Reads a response frame, as received by a replica from its primary.
+     * @param input The stream of the connection.
+     * @return The status and the payload of the response, or null if the
+     * server closed the connection.
+     * @throws IOException If the frame is malformed or a socket error occurs.
+     */
+    static RequestEvaluator.Result readResponse(DataInputStream input) throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        int status = input.readByte();
+        byte[] payload = new byte[length - 1];
+        input.readFully(payload);
+        RequestEvaluator.Status[] statuses = RequestEvaluator.Status.values();
+        return new RequestEvaluator.Result(status >= 0 && status < statuses.length ? statuses[status]
+                : RequestEvaluator.Status.ERROR, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a response frame.
+     * @param result The response to encode.
+     * @return The frame.
+     */
+    static byte[] encode(RequestEvaluator.Result result) {
+        return encode(result.status, result.payload);
+    }
+
+    /**
+     * Encodes a row of a streamed SELECT as a ROW frame, whose payload is the
+     * key and the row separated by a space.
+     * @param key The key of the row.
+     * @param row The row, serialized as JSON.
+     * @return The frame.
+     */
+    static byte[] encodeRow(String key, String row) {
+        return encode(RequestEvaluator.Status.ROW, key + ' ' + row);
+    }
+
+    private static byte[] encode(RequestEvaluator.Status status, String text) {
+        return encode((byte) status.ordinal(), text);
+    }
+
+    private static byte[] encode(byte code, String text) {
+        byte[] payload = text == null ? EMPTY : text.getBytes(StandardCharsets.UTF_8);
+        int length = payload.length + 1;
+        byte[] frame = new byte[length + 4];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = code;
+        System.arraycopy(payload, 0, frame, 5, payload.length);
+        return frame;
+    }
+}
@@ -0,0 +1,151 @@
+package it.unimib.sd2024.communicationServices;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esecutore delle connessioni accettate dal database.
+ * La modalità di esecuzione si sceglie con la proprietà di sistema
+ * {@code r2db.executor}:
+ * <ul>
+ * <li>{@code thread}: un thread di piattaforma per connessione, senza limiti;</li>
+ * <li>{@code virtual} (default): un virtual thread per connessione;</li>
+ * <li>{@code pool}: un pool di {@code r2db.poolSize} thread con una coda di
+ * {@code r2db.queueSize} connessioni in attesa; le connessioni oltre la
+ * coda vengono rifiutate con la risposta {@code BUSY}.</li>
+ * </ul>
+ */
+public class ConnectionExecutor {
+
+    /**
+     * Modalità di esecuzione delle connessioni.
+     */
+    public enum Mode {
+        THREAD,
+        VIRTUAL,
+        POOL
+    }
+
+    private static ConnectionExecutor executor = null;
+
+    private final Mode mode;
+    private final ExecutorService service;
+    private final BlockingQueue<Runnable> queue;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private ConnectionExecutor() {
+        this.mode = Mode.valueOf(System.getProperty("r2db.executor", "virtual").toUpperCase());
+        switch (mode) {
+            case POOL:
+                int poolSize = Integer.getInteger("r2db.poolSize", Runtime.getRuntime().availableProcessors() * 8);
+                this.queue = new ArrayBlockingQueue<>(Integer.getInteger("r2db.queueSize", 1024));
+                this.service = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, queue);
+                break;
+            case VIRTUAL:
+                this.queue = null;
+                this.service = Executors.newVirtualThreadPerTaskExecutor();
+                break;
+            default:
+                this.queue = null;
+                this.service = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+                break;
+        }
+    }
+
+    public synchronized static ConnectionExecutor getInstance() {
+        if (executor == null)
+            executor = new ConnectionExecutor();
+        return executor;
+    }
+
+    /**
+     * Returns the execution mode of the connections.
+     * @return The execution mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Serves a client connection according to the execution mode. If the
+     * connection is rejected, the client receives BUSY and the socket is closed.
+     * @param client The socket representing the client connection.
+     */
+    public void execute(Socket client) {
+        accepted.incrementAndGet();
+        try {
+            Handler handler = new Handler(client);
+            service.execute(() -> {
+                active.incrementAndGet();
+                try {
+                    handler.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            reject(client);
+        } catch (IOException e) {
+            System.out.println("Socket error: " + e.getMessage());
+            close(client);
+        }
+    }
+
+    /**
+     * Returns the counters of the executor.
+     * @return A map with the mode, the connections accepted, rejected, being
+     * served, waiting in the queue and completed.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", mode.toString());
+        stats.put("accepted", accepted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("active", active.get());
+        stats.put("queued", queue == null ? 0 : queue.size());
+        stats.put("completed", completed.get());
+        return stats;
+    }
+
+    /**
+     * Answers BUSY to a rejected connection and closes it.
+     * @param client The socket representing the client connection.
+     */
+    private void reject(Socket client) {
+        try {
+            OutputStream output = client.getOutputStream();
+            output.write("BUSY\n".getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        } catch (IOException e) {
+            System.out.println("Socket error: " + e.getMessage());
+        }
+        close(client);
+    }
+
+    private void close(Socket client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close client socket: " + e.getMessage());
+        }
+    }
+}
@@ -1,22 +1,35 @@
 package it.unimib.sd2024.communicationServices;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-
-import it.unimib.sd2024.R2dbServices.R2Query;
-import it.unimib.sd2024.exceptions.*;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Handler di una connessione del client.
+ * In modalità one-shot la connessione trasporta una sola richiesta, la cui
+ * risposta è seguita dalla chiusura del socket. Se la prima richiesta è
+ * SESSION la connessione diventa persistente: ogni risposta è terminata da un
+ * a capo e il client può inviare più richieste senza attendere le risposte
+ * (pipelining), che vengono restituite nello stesso ordine. Se la prima
+ * richiesta è BINARY la connessione passa al protocollo binario
+ * ({@link BinaryProtocol}). Le righe selezionate da SCAN vengono scritte sul
+ * socket man mano che sono lette, senza costruire l'intera risposta; allo
+ * stesso modo WATCH scrive le modifiche di una tabella man mano che vengono
+ * confermate, occupando la connessione finché non termina.
  */
-public class Handler extends Thread {
+public class Handler implements Runnable {
+    private static final int STREAM_BUFFER_SIZE = 32 * 1024;
+
     private Socket client;
     private final BufferedReader input;
     private final PrintWriter output;
-    private final R2Query r2q;
 
     /**
      * Constructor to initialize the handler with client socket and setup input/output streams.
@@ -27,7 +40,6 @@ public class Handler extends Thread {
         this.client = client;
         this.input = new BufferedReader(new InputStreamReader(this.client.getInputStream()));
         this.output = new PrintWriter(this.client.getOutputStream(), true);
-        this.r2q = R2Query.getInstance();
     }
 
     public void run() {
@@ -35,14 +47,33 @@ public class Handler extends Thread {
 
             // Retrieve script sent by client
             String script = getScript();
+            if (script == null) {
+                return;
+            }
 
-            System.out.println("Processing request");
+            if (script.equalsIgnoreCase("SESSION")) {
+                // Keep the connection open for the following requests
+                serveSession();
+            } else if (script.equalsIgnoreCase("BINARY")) {
+                // Switch the connection to the binary protocol
+                serveBinary();
+            } else {
+                System.out.println("Processing request");
 
-            // Process the script and get response
-            String response = handleEvaluation(script);
+                if (RequestEvaluator.isScan(script)) {
+                    // Stream the rows back to client
+                    streamRows(script);
+                } else if (RequestEvaluator.isWatch(script)) {
+                    // Stream the changes of the table until the watch ends
+                    watchRows(script);
+                } else {
+                    // Process the script and get response
+                    String response = RequestEvaluator.evaluate(script);
 
-             // Send response back to client
-            sendResponseBatch(response);
+                    // Send response back to client
+                    sendResponseBatch(response);
+                }
+            }
 
             System.out.println("Client served"+ Thread.currentThread().getName());
         } catch (IOException e) {
@@ -59,52 +90,165 @@ public class Handler extends Thread {
 
 
     /**
-     * Method to read the script sent by the client.
-     * @return The complete script as a String.
-     * @throws IOException If there is an error reading the script.
+     * Serves the requests of a persistent connection, until the client sends
+     * QUIT or closes the connection. Responses are flushed only when no other
+     * request is already waiting, so pipelined requests are answered in batch.
+     * @throws IOException If there is an error reading or writing on the socket.
      */
-    private String getScript() throws IOException {
-        StringBuilder script = new StringBuilder();
-        String line;
-        while (!(line = input.readLine()).equals("END")) {
-            script.append(line);
+    private void serveSession() throws IOException {
+        System.out.println("Session opened");
+        sendResponseLine("OK!");
+        this.output.flush();
+
+        String script;
+        while ((script = getScript()) != null) {
+            if (script.equalsIgnoreCase("QUIT")) {
+                sendResponseLine("OK!");
+                break;
+            }
+
+            if (RequestEvaluator.isScan(script)) {
+                streamRows(script);
+                continue;
+            }
+            if (RequestEvaluator.isWatch(script)) {
+                watchRows(script);
+                continue;
+            }
+
+            // Process the script and queue the response
+            sendResponseLine(RequestEvaluator.evaluate(script));
+
+            // Flush the responses once every pipelined request has been served
+            if (!this.input.ready()) {
+                this.output.flush();
+            }
         }
-        return script.toString();
+        this.output.flush();
     }
 
+    /**
+     * Serves the requests of a connection switched to the binary protocol,
+     * until the client sends QUIT or closes the connection. The client must
+     * wait for the OK! of the switch before sending the first frame.
+     * @throws IOException If there is an error reading or writing on the socket,
+     * or the client sends a malformed frame.
+     */
+    private void serveBinary() throws IOException {
+        System.out.println("Binary session opened");
+        sendResponseLine("OK!");
+        this.output.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(this.client.getInputStream()));
+        OutputStream out = new BufferedOutputStream(this.client.getOutputStream());
+        String script;
+        while ((script = BinaryProtocol.readRequest(in)) != null) {
+            if (script.equals("QUIT")) {
+                out.write(BinaryProtocol.encode(new RequestEvaluator.Result(RequestEvaluator.Status.OK, "OK!")));
+                break;
+            }
+
+            if (RequestEvaluator.isScan(script)) {
+                // One ROW frame per row, then the frame of the final status
+                RequestEvaluator.Status status = RequestEvaluator.scan(script,
+                        (key, row) -> out.write(BinaryProtocol.encodeRow(key, row)));
+                out.write(BinaryProtocol.encode(new RequestEvaluator.Result(status, null)));
+                out.flush();
+                continue;
+            }
+            if (RequestEvaluator.isWatch(script)) {
+                // One ROW frame per change, flushed in batches, until the watch ends
+                out.flush();
+                RequestEvaluator.Status status = RequestEvaluator.watch(script,
+                        (key, row) -> out.write(BinaryProtocol.encodeRow(key, row)), out);
+                out.write(BinaryProtocol.encode(new RequestEvaluator.Result(status, null)));
+                out.flush();
+                continue;
+            }
+
+            // Process the script and queue the response
+            out.write(BinaryProtocol.encode(RequestEvaluator.execute(script)));
+
+            // Flush the responses once every pipelined request has been served
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
 
     /**
-     * Method to handle evaluation of the script using R2Query.
-     * @param request The script to be evaluated.
-     * @return The response generated from evaluating the script.
+     * Streams the rows selected by a SCAN with the text protocol, one line per
+     * row, as they are read: the rows are written through a buffer that is
+     * flushed whenever it fills up, so the result is never held as a whole.
+     * The rows are followed by an END line, or by the name of the error that
+     * stopped the scan.
+     * @param script The SCAN to be evaluated.
+     * @throws IOException If there is an error writing on the socket.
      */
-    private String handleEvaluation(String request)  {
-        StringBuilder response = new StringBuilder();
-        try {
-            System.out.println("Request: "+request);
-
-            // Execute query using R2Query
-            String jsonResponse = this.r2q.query(request);
-            // Clean the JSON
-            jsonResponse = jsonResponse.substring(1, jsonResponse.length() - 1).replaceAll("\\\\", "");
-            response.append(jsonResponse);
-
-        }catch (R2dbFileNotFoundException e) {
-            response.append("TABLE_NOT_FOUND");
-        } catch (TableIsEmptyException e) {
-            response.append("EMPTY");
-        } catch (UndefinedKeyException e) {
-            response.append("KEY_NOT_FOUND");
-        }catch (FileErrorException | JsonBException | R2dbErrorException e) {
-            response.append("ERROR");
-        } catch (TableAlreadyExistsException e) {
-            response.append("ALREADY_EXISTS");
+    private void streamRows(String script) throws IOException {
+        // Send the responses already queued first
+        this.output.flush();
+
+        OutputStream out = new BufferedOutputStream(this.client.getOutputStream(), STREAM_BUFFER_SIZE);
+        RequestEvaluator.Status status = RequestEvaluator.scan(script,
+                (key, row) -> out.write(RequestEvaluator.textRow(key, row).getBytes(StandardCharsets.UTF_8)));
+        String end = status == RequestEvaluator.Status.OK ? "END" : status.toString();
+        out.write((end + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Streams the changes committed to a table (WATCH) with the text protocol,
+     * one line per change, as SCAN does for the rows; the changes are flushed
+     * in batches, as soon as they are committed. The connection is held until
+     * the watch ends with the name of its final status, or the client closes
+     * it.
+     * @param script The WATCH to be evaluated.
+     * @throws IOException If there is an error writing on the socket.
+     */
+    private void watchRows(String script) throws IOException {
+        // Send the responses already queued first
+        this.output.flush();
+
+        OutputStream out = new BufferedOutputStream(this.client.getOutputStream(), STREAM_BUFFER_SIZE);
+        RequestEvaluator.Status status = RequestEvaluator.watch(script,
+                (key, row) -> out.write(RequestEvaluator.textRow(key, row).getBytes(StandardCharsets.UTF_8)), out);
+        String end = status == RequestEvaluator.Status.OK ? "END" : status.toString();
+        out.write((end + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Method to read the script sent by the client.
+     * @return The complete script as a String, with its lines separated by new lines, or null if the client closed the connection.
+     * @throws IOException If there is an error reading the script.
+     */
+    private String getScript() throws IOException {
+        // Single-line scripts, the common case, are returned without copying them
+        String first = null;
+        StringBuilder script = null;
+        String line;
+        while ((line = input.readLine()) != null) {
+            if (line.equals("END")) {
+                if (script != null) {
+                    return script.toString();
+                }
+                return first == null ? "" : first;
+            }
+            if (first == null) {
+                first = line;
+            } else {
+                if (script == null) {
+                    script = new StringBuilder(first);
+                }
+                script.append('\n').append(line);
+            }
         }
-        
-        // Return final response as String
-        return response.toString();
+        return null;
     }
 
+
     /**
      * Invia la risposta al client.
      * @param response La risposta da inviare
@@ -113,4 +257,13 @@ public class Handler extends Thread {
         this.output.write(response);
         this.output.flush();
     }
+
+    /**
+     * Accoda la risposta di una connessione persistente, terminata da un a capo.
+     * @param response La risposta da inviare
+     */
+    private void sendResponseLine(String response) {
+        this.output.write(response);
+        this.output.write('\n');
+    }
 }
\ No newline at end of file
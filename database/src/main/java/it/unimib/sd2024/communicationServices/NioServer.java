@@ -0,0 +1,612 @@
+package it.unimib.sd2024.communicationServices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Front end non bloccante del database, alternativo a {@link Handler}.
+ * Un unico thread gestisce tutte le connessioni tramite un {@link Selector}:
+ * legge i byte ricevuti in un buffer diretto riutilizzato, ricostruisce le
+ * richieste riconoscendo incrementalmente il terminatore END e affida la loro
+ * esecuzione a un pool di {@code r2db.nio.workers} thread. Una connessione
+ * inattiva non occupa quindi alcun thread.
+ * Il protocollo è lo stesso del front end bloccante, comprese le connessioni
+ * persistenti (SESSION), il protocollo binario (BINARY) e il pipelining: le
+ * richieste di una connessione vengono eseguite una alla volta, nell'ordine di
+ * arrivo. Le righe selezionate da SCAN vengono accodate a blocchi man mano che
+ * sono lette; il worker si sospende finché il client non ha ricevuto i blocchi
+ * già accodati oltre {@code r2db.nio.maxQueuedBytes}. Una WATCH occupa invece
+ * un proprio thread finché non termina, senza sottrarre worker alle altre
+ * connessioni.
+ */
+public class NioServer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Size of the chunks in which the rows of a SCAN are queued.
+     */
+    private static final int STREAM_CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * Bytes of a connection that may wait to be sent before a SCAN producing
+     * them is suspended, so that a slow client can't make the result pile up
+     * in memory.
+     */
+    private static final int MAX_QUEUED_BYTES = Integer.getInteger("r2db.nio.maxQueuedBytes", 1024 * 1024);
+    private static volatile NioServer running = null;
+
+    private final int port;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Queue<Client> writable = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger watching = new AtomicInteger();
+
+    /**
+     * State of a client connection.
+     */
+    private final class Client {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+
+        // Framing state, used only by the selector thread
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        private String firstLine = null;
+        private StringBuilder script = null;
+        private boolean framed = false;
+        private boolean binaryFraming = false;
+        private int frameLength = 0;
+
+        // Requests waiting for execution and responses waiting to be sent, guarded by this
+        private final Queue<String> pending = new ArrayDeque<>();
+        private final Queue<byte[]> responses = new ArrayDeque<>();
+        private int written = 0;
+        private long queuedBytes = 0;
+        private boolean busy = false;
+        private boolean session = false;
+        private boolean binary = false;
+        private boolean first = true;
+        private boolean closing = false;
+        private boolean closed = false;
+
+        private Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Creates the front end listening on the given port.
+     * @param port The port to listen on.
+     * @throws IOException If the selector can't be opened.
+     */
+    public NioServer(int port) throws IOException {
+        this.port = port;
+        this.selector = Selector.open();
+        int size = Integer.getInteger("r2db.nio.workers", Runtime.getRuntime().availableProcessors() * 2);
+        this.workers = Executors.newFixedThreadPool(size);
+    }
+
+    /**
+     * Returns the front end currently serving the connections, if any.
+     * @return The running front end, or null if the blocking front end is used.
+     */
+    static NioServer getRunning() {
+        return running;
+    }
+
+    /**
+     * Accepts and serves the connections until an I/O error occurs on the
+     * listening socket.
+     * @throws IOException If the listening socket can't be opened.
+     */
+    public void serve() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = this;
+
+        System.out.println("Database listening at localhost Port : " + port + " (nio front end)");
+
+        try {
+            while (true) {
+                selector.select();
+
+                // Register the connections that have new responses to send
+                Client ready;
+                while ((ready = writable.poll()) != null) {
+                    if (ready.key.isValid()) {
+                        ready.key.interestOps(ready.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(server);
+                        } else {
+                            if (key.isReadable()) {
+                                read((Client) key.attachment());
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write((Client) key.attachment());
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Socket error: " + e.getMessage());
+                        if (key.attachment() != null) {
+                            close((Client) key.attachment());
+                        }
+                    }
+                }
+            }
+        } finally {
+            running = null;
+            workers.shutdown();
+            server.close();
+            selector.close();
+        }
+    }
+
+    /**
+     * Returns the counters of the front end.
+     * @return A map with the connections accepted and open, the requests
+     * served, those waiting for a worker and the watches in progress.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", "NIO");
+        stats.put("accepted", accepted.get());
+        stats.put("open", open.get());
+        stats.put("requests", requests.get());
+        stats.put("queued", queued.get());
+        stats.put("watching", watching.get());
+        return stats;
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Client(channel, key));
+            accepted.incrementAndGet();
+            open.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the available bytes of a connection and extracts the complete
+     * requests, that is the lines received before each END line.
+     */
+    private void read(Client client) throws IOException {
+        int count;
+        while ((count = client.channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (client.binaryFraming) {
+                    if (!readFrame(client)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Copies the bytes up to the next new line in bulk
+                int start = readBuffer.position();
+                int end = start;
+                int limit = readBuffer.limit();
+                while (end < limit && readBuffer.get(end) != '\n') {
+                    end++;
+                }
+                int chunk = end - start;
+                reserve(client, client.lineLength + chunk);
+                readBuffer.get(client.line, client.lineLength, chunk);
+                client.lineLength += chunk;
+                if (end == limit) {
+                    break;
+                }
+
+                // A line is complete
+                readBuffer.get();
+                int lineLength = client.lineLength;
+                if (lineLength > 0 && client.line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                client.lineLength = 0;
+                if (lineLength == 3 && client.line[0] == 'E' && client.line[1] == 'N' && client.line[2] == 'D') {
+                    String script = client.script != null ? client.script.toString()
+                            : client.firstLine == null ? "" : client.firstLine;
+                    if (!client.framed && script.equalsIgnoreCase("BINARY")) {
+                        // The following bytes are binary frames
+                        client.binaryFraming = true;
+                    }
+                    client.framed = true;
+                    submit(client, script);
+                    client.firstLine = null;
+                    client.script = null;
+                    continue;
+                }
+                String line = new String(client.line, 0, lineLength, StandardCharsets.UTF_8);
+                if (client.firstLine == null) {
+                    // Single-line scripts, the common case, are submitted without copying them
+                    client.firstLine = line;
+                } else {
+                    if (client.script == null) {
+                        client.script = new StringBuilder(client.firstLine);
+                    }
+                    client.script.append('\n').append(line);
+                }
+            }
+            readBuffer.clear();
+        }
+        readBuffer.clear();
+
+        if (count < 0) {
+            // The client closed its side: close once the responses are sent
+            client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_READ);
+            synchronized (client) {
+                client.closing = true;
+                if (client.busy || !client.responses.isEmpty()) {
+                    return;
+                }
+            }
+            close(client);
+        }
+    }
+
+    /**
+     * Reads the available bytes of the frame being received on a connection
+     * switched to the binary protocol, submitting the frame once complete.
+     * @return true if the frame header or the whole frame was completed,
+     * false if more bytes are needed.
+     * @throws IOException If the frame length is invalid.
+     */
+    private boolean readFrame(Client client) throws IOException {
+        int needed = client.lineLength < 4 ? 4 : 4 + client.frameLength;
+        int chunk = Math.min(needed - client.lineLength, readBuffer.remaining());
+        reserve(client, client.lineLength + chunk);
+        readBuffer.get(client.line, client.lineLength, chunk);
+        client.lineLength += chunk;
+        if (client.lineLength < needed) {
+            return false;
+        }
+
+        byte[] frame = client.line;
+        if (needed == 4) {
+            // The header is complete: the body follows
+            int length = ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16) | ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            client.frameLength = length;
+            return true;
+        }
+
+        String script = BinaryProtocol.toScript(frame[4], new String(frame, 5, client.frameLength - 1, StandardCharsets.UTF_8));
+        client.lineLength = 0;
+        submit(client, script == null ? "" : script);
+        return true;
+    }
+
+    /**
+     * Grows the framing buffer of a connection to hold at least the given number of bytes.
+     */
+    private static void reserve(Client client, int size) {
+        if (size > client.line.length) {
+            client.line = Arrays.copyOf(client.line, Math.max(client.line.length * 2, size));
+        }
+    }
+
+    /**
+     * Queues a request of a connection, starting its execution if the
+     * connection has no other request running.
+     */
+    private void submit(Client client, String script) {
+        synchronized (client) {
+            if (client.closing) {
+                return;
+            }
+            client.pending.add(script);
+            queued.incrementAndGet();
+            if (client.busy) {
+                return;
+            }
+            client.busy = true;
+        }
+        workers.execute(() -> process(client));
+    }
+
+    /**
+     * Executes the pending requests of a connection, in order, on a worker.
+     */
+    private void process(Client client) {
+        while (true) {
+            String script;
+            boolean first;
+            synchronized (client) {
+                script = client.pending.poll();
+                first = client.first;
+                client.first = false;
+            }
+            queued.decrementAndGet();
+            requests.incrementAndGet();
+
+            byte[] response;
+            boolean close = false;
+            if (first && script.equalsIgnoreCase("SESSION")) {
+                System.out.println("Session opened");
+                client.session = true;
+                response = text("OK!\n");
+            } else if (first && script.equalsIgnoreCase("BINARY")) {
+                System.out.println("Binary session opened");
+                client.session = true;
+                client.binary = true;
+                response = text("OK!\n");
+            } else if (RequestEvaluator.isWatch(script)) {
+                // A watch holds its connection until it ends: it gets its own thread rather than a worker
+                Thread watcher = new Thread(() -> watch(client, script), "r2db-watch");
+                watcher.setDaemon(true);
+                watcher.start();
+                return;
+            } else if (RequestEvaluator.isScan(script)) {
+                try {
+                    response = stream(client, script);
+                } catch (IOException e) {
+                    // The connection was closed while the rows were being sent
+                    abandon(client);
+                    return;
+                }
+                close = !client.session;
+            } else if (!client.session) {
+                // One-shot connection: the response is followed by the closing of the socket
+                response = text(RequestEvaluator.evaluate(script));
+                close = true;
+            } else if (client.binary) {
+                if (script.equals("QUIT")) {
+                    response = BinaryProtocol.encode(new RequestEvaluator.Result(RequestEvaluator.Status.OK, "OK!"));
+                    close = true;
+                } else {
+                    response = BinaryProtocol.encode(RequestEvaluator.execute(script));
+                }
+            } else if (script.equalsIgnoreCase("QUIT")) {
+                response = text("OK!\n");
+                close = true;
+            } else {
+                response = text(RequestEvaluator.evaluate(script) + "\n");
+            }
+
+            if (respond(client, response, close)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues the response of a request of a connection.
+     * @return true if the connection has no other pending request, and was
+     * released.
+     */
+    private boolean respond(Client client, byte[] response, boolean close) {
+        boolean done;
+        synchronized (client) {
+            client.responses.add(response);
+            client.queuedBytes += response.length;
+            if (close) {
+                client.closing = true;
+                queued.addAndGet(-client.pending.size());
+                client.pending.clear();
+            }
+            done = client.pending.isEmpty();
+            if (done) {
+                client.busy = false;
+            }
+        }
+        writable.add(client);
+        selector.wakeup();
+        return done;
+    }
+
+    /**
+     * Executes a SCAN, queuing the selected rows in chunks as they are read.
+     * @return The last chunk, ending with the final status.
+     * @throws IOException If the connection was closed during the scan.
+     */
+    private byte[] stream(Client client, String script) throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(STREAM_CHUNK_SIZE);
+        RequestEvaluator.Status status = RequestEvaluator.scan(script, (key, row) -> {
+            chunk.write(client.binary ? BinaryProtocol.encodeRow(key, row)
+                    : text(RequestEvaluator.textRow(key, row)));
+            if (chunk.size() >= STREAM_CHUNK_SIZE) {
+                enqueue(client, chunk.toByteArray());
+                chunk.reset();
+            }
+        });
+        return end(client, chunk, status);
+    }
+
+    /**
+     * Serves a WATCH on its own thread, queuing the changes of the table in
+     * chunks as soon as they are committed, then resumes serving the pending
+     * requests of the connection on a worker. A client slower than the
+     * changes fills up its queue and suspends the watch until the feed of the
+     * table overwrites the changes it has yet to receive: the watch then ends
+     * with RESYNC.
+     */
+    private void watch(Client client, String script) {
+        watching.incrementAndGet();
+        byte[] response;
+        try {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(STREAM_CHUNK_SIZE);
+            RequestEvaluator.Status status = RequestEvaluator.watch(script,
+                    (key, row) -> chunk.write(client.binary ? BinaryProtocol.encodeRow(key, row)
+                            : text(RequestEvaluator.textRow(key, row))),
+                    () -> {
+                        synchronized (client) {
+                            if (client.closing) {
+                                throw new IOException("Connection closed");
+                            }
+                        }
+                        enqueue(client, chunk.toByteArray());
+                        chunk.reset();
+                    });
+            response = end(client, chunk, status);
+        } catch (IOException e) {
+            // The connection was closed while the changes were being sent
+            abandon(client);
+            return;
+        } finally {
+            watching.decrementAndGet();
+        }
+        if (!respond(client, response, !client.session)) {
+            workers.execute(() -> process(client));
+        }
+    }
+
+    /**
+     * Appends the final status of a SCAN or of a WATCH to its last chunk.
+     * @return The last chunk.
+     */
+    private static byte[] end(Client client, ByteArrayOutputStream chunk, RequestEvaluator.Status status)
+            throws IOException {
+        if (client.binary) {
+            chunk.write(BinaryProtocol.encode(new RequestEvaluator.Result(status, null)));
+        } else {
+            chunk.write(text((status == RequestEvaluator.Status.OK ? "END" : status.toString()) + "\n"));
+        }
+        return chunk.toByteArray();
+    }
+
+    /**
+     * Queues a chunk of a response, waiting first for the client to receive
+     * the bytes already queued if they are too many.
+     * @throws IOException If the connection is closed.
+     */
+    private void enqueue(Client client, byte[] chunk) throws IOException {
+        synchronized (client) {
+            while (client.queuedBytes > MAX_QUEUED_BYTES && !client.closed) {
+                try {
+                    client.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while streaming rows");
+                }
+            }
+            if (client.closed) {
+                throw new IOException("Connection closed");
+            }
+            client.responses.add(chunk);
+            client.queuedBytes += chunk.length;
+        }
+        writable.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Drops the pending requests of a connection closed while one of them
+     * was running, releasing the worker.
+     */
+    private void abandon(Client client) {
+        synchronized (client) {
+            client.closing = true;
+            client.busy = false;
+            queued.addAndGet(-client.pending.size());
+            client.pending.clear();
+        }
+        writable.add(client);
+        selector.wakeup();
+    }
+
+    private static byte[] text(String response) {
+        return response.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends the queued responses of a connection through the reused direct
+     * buffer, closing the connection once they are sent if it is closing.
+     */
+    private void write(Client client) throws IOException {
+        while (true) {
+            byte[] response;
+            synchronized (client) {
+                response = client.responses.peek();
+                if (response == null) {
+                    client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_WRITE);
+                    if (!client.closing || client.busy) {
+                        return;
+                    }
+                }
+            }
+            if (response == null) {
+                close(client);
+                return;
+            }
+
+            writeBuffer.clear();
+            writeBuffer.put(response, client.written, Math.min(response.length - client.written, writeBuffer.remaining()));
+            writeBuffer.flip();
+            client.written += client.channel.write(writeBuffer);
+            if (client.written == response.length) {
+                synchronized (client) {
+                    client.responses.poll();
+                    client.queuedBytes -= response.length;
+                    // Resumes a SCAN waiting for the queued rows to be sent
+                    client.notifyAll();
+                }
+                client.written = 0;
+            } else if (writeBuffer.hasRemaining()) {
+                // The socket buffer is full: wait for the next OP_WRITE
+                return;
+            }
+        }
+    }
+
+    private void close(Client client) {
+        if (!client.key.isValid()) {
+            return;
+        }
+        client.key.cancel();
+        open.decrementAndGet();
+        synchronized (client) {
+            client.closed = true;
+            client.notifyAll();
+        }
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close client socket: " + e.getMessage());
+        }
+        System.out.println("Client served");
+    }
+}
@@ -0,0 +1,301 @@
+package it.unimib.sd2024.communicationServices;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import it.unimib.sd2024.R2dbServices.R2db;
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Replica del database, attivata con la proprietà di sistema
+ * {@code r2db.role=replica}. Un thread mantiene una connessione binaria con il
+ * primario indicato da {@code r2db.primary} (default localhost:3030), da cui
+ * riceve con REPLICATE le modifiche confermate di ogni tabella, applicandole
+ * al database locale nello stesso ordine. Alla riconnessione la replica
+ * riprende dall'ultima modifica applicata; se il primario non la mantiene più,
+ * invia una copia completa del database. La replica è di sola lettura: le
+ * richieste che modificano il database vengono rifiutate con READ_ONLY.
+ */
+public final class Replica implements Runnable {
+
+    /**
+     * Whether the database is a replica.
+     */
+    static final boolean ENABLED = "replica".equalsIgnoreCase(System.getProperty("r2db.role", "primary"));
+
+    /**
+     * Address of the primary, as host:port.
+     */
+    static final String PRIMARY = System.getProperty("r2db.primary", "localhost:3030");
+
+    /**
+     * Milliseconds waited before connecting again to the primary.
+     */
+    private static final long RETRY = Long.getLong("r2db.replica.retryMs", 1000);
+
+    /**
+     * Milliseconds without messages from the primary after which the
+     * connection is considered lost; the primary sends a SYNC every
+     * {@code r2db.watch.heartbeatMs} milliseconds while idle.
+     */
+    private static final int TIMEOUT = Integer.getInteger("r2db.replica.timeoutMs", 30000);
+
+    private static volatile Replica running = null;
+
+    private final String host;
+    private final int port;
+    private final R2db db = R2db.getInstance();
+    private final Jsonb jsonb = JsonbBuilder.create();
+
+    private volatile Long applied = null;
+    private volatile boolean connected = false;
+    private volatile long lagMillis = 0;
+    private volatile long lastContact = 0;
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * Rows received by the snapshot in progress, by table; null if no
+     * snapshot is in progress. Only the replication thread uses it.
+     */
+    private Map<String, Set<String>> snapshot = null;
+
+    private Replica(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Returns whether the database is a replica.
+     * @return true if the database was started with {@code r2db.role=replica}.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Starts the replication from the primary on a daemon thread.
+     */
+    public static synchronized void start() {
+        if (running != null) {
+            return;
+        }
+        int colon = PRIMARY.lastIndexOf(':');
+        running = new Replica(colon < 0 ? PRIMARY : PRIMARY.substring(0, colon),
+                colon < 0 ? 3030 : Integer.parseInt(PRIMARY.substring(colon + 1)));
+        Thread thread = new Thread(running, "r2db-replica");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Replicating from " + PRIMARY);
+    }
+
+    /**
+     * Returns the running replica.
+     * @return The replica, or null if the database is not a replica.
+     */
+    static Replica getRunning() {
+        return running;
+    }
+
+    /**
+     * Replicates the primary until the database is stopped, connecting again
+     * whenever the connection is lost.
+     */
+    public void run() {
+        while (true) {
+            try {
+                replicate();
+            } catch (IOException e) {
+                System.out.println("Replication from " + PRIMARY + " interrupted: " + e.getMessage());
+            }
+            connected = false;
+            try {
+                Thread.sleep(RETRY);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reconnects.incrementAndGet();
+        }
+    }
+
+    /**
+     * Opens a connection to the primary and applies the changes it streams,
+     * until the stream ends.
+     * @throws IOException If a socket error occurs or a change can't be applied.
+     */
+    private void replicate() throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+
+            // Switch the connection to the binary protocol, which carries the rows unchanged
+            out.write("BINARY\nEND\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String answer = readLine(in);
+            if (!"OK!".equals(answer)) {
+                throw new IOException("The primary refused the binary protocol: " + answer);
+            }
+            out.write(BinaryProtocol.encodeRequest("REPLICATE" + (applied == null ? "" : " FROM " + applied)));
+            out.flush();
+            connected = true;
+
+            // A snapshot interrupted by the previous connection is sent again from the beginning
+            snapshot = null;
+
+            RequestEvaluator.Result result;
+            while ((result = BinaryProtocol.readResponse(in)) != null
+                    && result.status == RequestEvaluator.Status.ROW) {
+                lastContact = System.currentTimeMillis();
+                int space = result.payload.indexOf(' ');
+                long seq = Long.parseLong(result.payload.substring(0, space));
+                try {
+                    apply(seq, jsonb.fromJson(result.payload.substring(space + 1),
+                            new HashMap<String, Object>() {
+                            }.getClass().getGenericSuperclass()));
+                } catch (FileErrorException | TableAlreadyExistsException | TableIsEmptyException
+                        | RuntimeException e) {
+                    // The replica may have diverged: the next connection starts with a snapshot
+                    applied = null;
+                    snapshot = null;
+                    throw new IOException("Error applying change " + seq + ": " + e, e);
+                }
+            }
+            System.out.println("Replication from " + PRIMARY + " ended: "
+                    + (result == null ? "connection closed" : result.status));
+        }
+    }
+
+    /**
+     * Applies a change received from the primary to the local database.
+     * Every change can be applied more than once, as it happens to the
+     * changes committed while a snapshot is taken.
+     * @param seq The sequence number of the change.
+     * @param event The change.
+     */
+    private void apply(long seq, Map<String, Object> event)
+            throws FileErrorException, TableAlreadyExistsException, TableIsEmptyException {
+        String op = (String) event.get("op");
+        String table = (String) event.get("table");
+        String key = (String) event.get("key");
+        Object value = event.get("value");
+        switch (op) {
+            case "SNAPSHOT":
+                snapshot = new HashMap<>();
+                snapshots.incrementAndGet();
+                break;
+            case "CREATE":
+                if (!db.getTableNames().contains(table)) {
+                    db.create_tab(table);
+                }
+                Object indexes = event.get("indexes");
+                if (indexes instanceof Map) {
+                    for (Map.Entry<?, ?> index : ((Map<?, ?>) indexes).entrySet()) {
+                        db.create_index(table, index.getKey().toString(), index.getValue().toString());
+                    }
+                }
+                if (snapshot != null) {
+                    snapshot.put(table, new HashSet<>());
+                }
+                break;
+            case "CREATE_INDEX":
+                db.create_index(table, key, value.toString());
+                break;
+            case "CREATE_KEY":
+            case "MODIFY":
+                db.create(table, key, value);
+                if (snapshot != null && snapshot.containsKey(table)) {
+                    snapshot.get(table).add(key);
+                }
+                break;
+            case "DELETE_KEY":
+                if (db.getTableNames().contains(table)) {
+                    db.delete(table, key);
+                }
+                break;
+            case "DELETE":
+                if (db.getTableNames().contains(table)) {
+                    db.delete_tab(table);
+                }
+                break;
+            case "SYNC":
+                if (snapshot != null) {
+                    // The snapshot is complete: drops the rows and the tables the primary doesn't have
+                    for (String name : db.getTableNames()) {
+                        Set<String> keys = snapshot.get(name);
+                        if (keys == null) {
+                            db.delete_tab(name);
+                        } else {
+                            db.retain(name, keys);
+                        }
+                    }
+                    snapshot = null;
+                }
+                // Every change up to the position of the primary has been applied
+                lagMillis = 0;
+                break;
+            default:
+                throw new R2dbErrorException();
+        }
+        Object time = event.get("time");
+        if (time instanceof Number) {
+            lagMillis = Math.max(0, System.currentTimeMillis() - ((Number) time).longValue());
+        }
+        if (!op.equals("SNAPSHOT") && !op.equals("SYNC")) {
+            changes.incrementAndGet();
+        }
+        if (snapshot == null) {
+            applied = seq;
+        }
+    }
+
+    /**
+     * Returns the statistics of the replica.
+     * @return A map with the address of the primary, whether it is connected,
+     * the sequence number of the last change applied, the replication lag
+     * (the time between the commit of the last change applied on the primary
+     * and its application, 0 once the replica has caught up), the time since
+     * the last message of the primary and the changes, snapshots and
+     * reconnections so far.
+     */
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("role", "replica");
+        stats.put("primary", PRIMARY);
+        stats.put("connected", connected);
+        stats.put("seq", applied);
+        stats.put("lagMillis", lagMillis);
+        stats.put("lastContactMillis", lastContact == 0 ? null : System.currentTimeMillis() - lastContact);
+        stats.put("changes", changes.get());
+        stats.put("snapshots", snapshots.get());
+        stats.put("reconnects", reconnects.get());
+        return stats;
+    }
+
+    /**
+     * Reads a text line, the answer to the switch to the binary protocol.
+     */
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        return b < 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,215 @@
+package it.unimib.sd2024.communicationServices;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+import it.unimib.sd2024.R2dbServices.R2Query;
+import it.unimib.sd2024.R2dbServices.RowConsumer;
+import it.unimib.sd2024.exceptions.*;
+
+/**
+ * Valutazione delle richieste dei client, condivisa dai front end bloccante
+ * ({@link Handler}) e non bloccante ({@link NioServer}) e dai protocolli
+ * testuale e binario ({@link BinaryProtocol}).
+ */
+final class RequestEvaluator {
+    private static final Jsonb jsonb = JsonbBuilder.create();
+
+    /**
+     * Outcome of a request: OK, or the error that prevented it.
+     */
+    enum Status {
+        OK,
+        TABLE_NOT_FOUND,
+        EMPTY,
+        KEY_NOT_FOUND,
+        ERROR,
+        ALREADY_EXISTS,
+        /**
+         * A row of a streamed SELECT, followed by more rows and by the final status.
+         */
+        ROW,
+        /**
+         * The changes a WATCH should resume from are no longer available: the
+         * table must be read again.
+         */
+        RESYNC,
+        /**
+         * The request changes the database, but the database is a read-only
+         * replica ({@link Replica}).
+         */
+        READ_ONLY
+    }
+
+    /**
+     * Response to a request: its status and, if the status is OK, its raw payload.
+     */
+    static final class Result {
+        final Status status;
+        final String payload;
+
+        Result(Status status, String payload) {
+            this.status = status;
+            this.payload = payload;
+        }
+    }
+
+    private RequestEvaluator() {
+    }
+
+    /**
+     * Method to handle evaluation of the script using R2Query, for the text
+     * protocol: errors are returned as their names.
+     * @param request The script to be evaluated.
+     * @return The response generated from evaluating the script.
+     */
+    static String evaluate(String request) {
+        Result result = execute(request);
+        if (result.status != Status.OK) {
+            return result.status.toString();
+        }
+        // The text protocol does not carry backslashes
+        return result.payload.indexOf('\\') < 0 ? result.payload : result.payload.replace("\\", "");
+    }
+
+    /**
+     * Method to handle evaluation of the script using R2Query.
+     * @param request The script to be evaluated.
+     * @return The status of the request and its raw response.
+     */
+    static Result execute(String request) {
+        // Health check of the connection, answered without touching the database
+        if (request.equalsIgnoreCase("PING")) {
+            return new Result(Status.OK, "PONG");
+        }
+
+        // Counters of the front end
+        if (request.equalsIgnoreCase("STATS")) {
+            NioServer nio = NioServer.getRunning();
+            return new Result(Status.OK,
+                    jsonb.toJson(nio != null ? nio.getStats() : ConnectionExecutor.getInstance().getStats()));
+        }
+
+        // Counters of the result cache
+        if (request.equalsIgnoreCase("CACHE_STATS")) {
+            return new Result(Status.OK, jsonb.toJson(R2Query.getInstance().getCacheStats()));
+        }
+
+        // State of the replication: as a replica, or as a primary
+        if (request.equalsIgnoreCase("REPL_STATS")) {
+            Replica replica = Replica.getRunning();
+            return new Result(Status.OK, jsonb.toJson(
+                    replica != null ? replica.getStats() : R2Query.getInstance().getReplicationStats()));
+        }
+
+        // Snapshots of the readers and versions of the rows
+        if (request.equalsIgnoreCase("MVCC_STATS")) {
+            return new Result(Status.OK, jsonb.toJson(R2Query.getInstance().getMvccStats()));
+        }
+
+        // A replica changes only by applying the changes of the primary
+        if (Replica.isEnabled() && R2Query.isWrite(request)) {
+            return new Result(Status.READ_ONLY, null);
+        }
+
+        try {
+            System.out.println("Request: "+request);
+
+            // Execute query using R2Query
+            return new Result(Status.OK, R2Query.getInstance().execute(request));
+        }catch (R2dbFileNotFoundException e) {
+            return new Result(Status.TABLE_NOT_FOUND, null);
+        } catch (TableIsEmptyException e) {
+            return new Result(Status.EMPTY, null);
+        } catch (UndefinedKeyException e) {
+            return new Result(Status.KEY_NOT_FOUND, null);
+        }catch (FileErrorException | JsonBException | R2dbErrorException e) {
+            return new Result(Status.ERROR, null);
+        } catch (TableAlreadyExistsException e) {
+            return new Result(Status.ALREADY_EXISTS, null);
+        }
+    }
+
+    /**
+     * Checks whether a request is a streamed SELECT, to be served with
+     * {@link #scan(String, RowConsumer)}.
+     * @param request The script to be evaluated.
+     * @return true if the request is a SCAN.
+     */
+    static boolean isScan(String request) {
+        return R2Query.isScan(request);
+    }
+
+    /**
+     * Method to handle evaluation of a streamed SELECT using R2Query: the
+     * selected rows are handed to the consumer as they are read, and only the
+     * final status is returned.
+     * @param request The script to be evaluated.
+     * @param consumer The consumer writing the rows to the client.
+     * @return OK if every row was delivered, or the error that stopped the scan.
+     * @throws IOException If a row could not be written to the client.
+     */
+    static Status scan(String request, RowConsumer consumer) throws IOException {
+        try {
+            System.out.println("Request: "+request);
+
+            R2Query.getInstance().scan(request, consumer);
+            return Status.OK;
+        } catch (R2dbFileNotFoundException e) {
+            return Status.TABLE_NOT_FOUND;
+        } catch (JsonBException | R2dbErrorException e) {
+            return Status.ERROR;
+        }
+    }
+
+    /**
+     * Checks whether a request is a WATCH, to be served with
+     * {@link #watch(String, RowConsumer, Flushable)}.
+     * @param request The script to be evaluated.
+     * @return true if the request is a WATCH.
+     */
+    static boolean isWatch(String request) {
+        return R2Query.isWatch(request);
+    }
+
+    /**
+     * Method to handle a WATCH using R2Query: the changes committed to the
+     * table are handed to the consumer as rows, until the WATCH ends, and
+     * only the final status is returned.
+     * @param request The script to be evaluated.
+     * @param consumer The consumer writing the changes to the client.
+     * @param flush Sends the changes written by the consumer.
+     * @return TABLE_NOT_FOUND if the table doesn't exist or was deleted,
+     * RESYNC if the watcher fell behind, or the error that stopped the WATCH.
+     * @throws IOException If a change could not be written to the client.
+     */
+    static Status watch(String request, RowConsumer consumer, Flushable flush) throws IOException {
+        try {
+            System.out.println("Request: "+request);
+
+            R2Query.getInstance().watch(request, consumer, flush);
+            return Status.OK;
+        } catch (R2dbFileNotFoundException e) {
+            return Status.TABLE_NOT_FOUND;
+        } catch (FeedGapException e) {
+            return Status.RESYNC;
+        } catch (JsonBException | R2dbErrorException e) {
+            return Status.ERROR;
+        }
+    }
+
+    /**
+     * Formats a row of a streamed SELECT for the text protocol: the key and
+     * the row, separated by a space, on their own line.
+     * @param key The key of the row.
+     * @param row The row, serialized as JSON.
+     * @return The line of the row.
+     */
+    static String textRow(String key, String row) {
+        // The text protocol does not carry backslashes
+        return key + ' ' + (row.indexOf('\\') < 0 ? row : row.replace("\\", "")) + '\n';
+    }
+}
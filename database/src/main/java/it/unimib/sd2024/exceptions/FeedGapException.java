@@ -0,0 +1,16 @@
+package it.unimib.sd2024.exceptions;
+
+/**
+ * Thrown when the changes of a table following the sequence number a WATCH
+ * resumes from are no longer, or not yet, available: the watcher must read
+ * the table again and watch it from its current sequence number.
+ */
+public class FeedGapException extends RuntimeException {
+    public FeedGapException() {
+        super();
+    }
+
+    public FeedGapException(String message) {
+        super(message);
+    }
+}
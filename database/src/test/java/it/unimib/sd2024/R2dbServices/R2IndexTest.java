@@ -0,0 +1,85 @@
+package it.unimib.sd2024.R2dbServices;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+class R2IndexTest {
+    private static final int THREADS = 4;
+    private static final int KEYS = 64;
+    private static final int ROUNDS = 5000;
+
+    /**
+     * Rows sharing a value are added and removed concurrently, so the entries
+     * of a value keep being emptied and filled again: no row added last may be
+     * missing from the index.
+     */
+    @Test
+    void concurrentAddAndRemoveOnRangeIndex() throws InterruptedException {
+        R2Index index = new R2Index("date", R2Index.Type.RANGE);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                await(start);
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int k = 0; k < KEYS; k++) {
+                        index.add(key(thread, k), row(k));
+                        index.remove(key(thread, k), row(k));
+                    }
+                }
+                for (int k = 0; k < KEYS; k++) {
+                    index.add(key(thread, k), row(k));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int value = 0; value < 2; value++) {
+            Set<String> expected = new HashSet<>();
+            for (int t = 0; t < THREADS; t++) {
+                for (int k = value; k < KEYS; k += 2) {
+                    expected.add(key(t, k));
+                }
+            }
+            assertEquals(expected, new HashSet<>(index.lookup("e", date(value))));
+        }
+        assertEquals(THREADS * KEYS, index.lookup("be", date(0)).size());
+        assertEquals(THREADS * KEYS / 2, index.lookup("b", date(0)).size());
+        assertEquals(THREADS * KEYS / 2, index.lookup("s", date(1)).size());
+    }
+
+    private static String key(int thread, int k) {
+        return thread + "-" + k;
+    }
+
+    private static Map<String, Object> row(int k) {
+        return Map.of("date", date(k % 2));
+    }
+
+    private static String date(int value) {
+        return "2024-01-0" + (value + 1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package it.unimib.sd2024.R2dbServices;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import it.unimib.sd2024.exceptions.FileErrorException;
+
+class R2TransactionTest {
+    private final Jsonb jsonb = JsonbBuilder.create();
+
+    @TempDir
+    Path dir;
+
+    /**
+     * The log of the second table can't be written: the batch is rolled back,
+     * and after a restart neither table recovers any of its mutations, though
+     * the record of the first table is already on disk.
+     */
+    @Test
+    void failedLogWriteIsNotRecovered() throws Exception {
+        R2Mvcc mvcc = new R2Mvcc();
+        R2CommitLog commits = commitLog();
+        Map<String, R2Table> tables = tables(mvcc);
+
+        // A folder in place of the log of the second table makes its write fail
+        File blocked = new File(dir.toFile(), "Order.wal");
+        assertTrue(blocked.mkdir());
+        assertThrows(FileErrorException.class, () -> run(tables, mvcc, commits));
+        assertNull(tables.get("Domain").get("1"));
+        assertNull(tables.get("Order").get("1"));
+        assertTrue(new File(dir.toFile(), "Domain.wal").length() > 0);
+        assertTrue(blocked.delete());
+
+        Map<String, R2Table> restarted = restart();
+        assertNull(restarted.get("Domain").get("1"));
+        assertNull(restarted.get("Order").get("1"));
+    }
+
+    /**
+     * A committed batch spanning two tables is recovered by both of them.
+     */
+    @Test
+    void committedBatchIsRecovered() throws Exception {
+        R2Mvcc mvcc = new R2Mvcc();
+        Map<String, R2Table> tables = tables(mvcc);
+        run(tables, mvcc, commitLog());
+
+        Map<String, R2Table> restarted = restart();
+        assertNotNull(restarted.get("Domain").get("1"));
+        assertEquals("unimib.it", ((Map<?, ?>) restarted.get("Order").get("1")).get("domain"));
+    }
+
+    private R2CommitLog commitLog() {
+        return new R2CommitLog(new File(dir.toFile(), R2db.COMMIT_LOG));
+    }
+
+    /**
+     * Creates the two tables of the batch, sorted by name as R2db does.
+     */
+    private Map<String, R2Table> tables(R2Mvcc mvcc) throws IOException {
+        Map<String, R2Table> tables = new TreeMap<>();
+        for (String name : List.of("Domain", "Order")) {
+            File file = new File(dir.toFile(), name + ".json");
+            file.createNewFile();
+            tables.put(name, new R2Table(name, file, new R2Feed(), mvcc));
+        }
+        return tables;
+    }
+
+    /**
+     * Opens the tables again from their files, as the database does when it
+     * is started.
+     */
+    private Map<String, R2Table> restart() throws Exception {
+        R2Mvcc mvcc = new R2Mvcc();
+        R2CommitLog commits = commitLog();
+        Map<String, R2Table> tables = tables(mvcc);
+        for (R2Table table : tables.values()) {
+            table.lockAll(true);
+            try {
+                table.recover(jsonb, commits);
+            } finally {
+                table.unlockAll(true);
+            }
+        }
+        return tables;
+    }
+
+    private void run(Map<String, R2Table> tables, R2Mvcc mvcc, R2CommitLog commits) throws Exception {
+        for (R2Table table : tables.values()) {
+            table.lockAll(true);
+        }
+        try {
+            new R2Transaction(tables, mvcc, commits, jsonb).run(List.of(
+                    new String[] { "create_key", "Domain", "1", "{\"name\":\"unimib.it\"}" },
+                    new String[] { "create_key", "Order", "1", "{\"domain\":\"unimib.it\"}" }));
+        } finally {
+            for (R2Table table : tables.values()) {
+                table.unlockAll(true);
+            }
+        }
+    }
+}
@@ -10,15 +10,15 @@ import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import it.unimib.sd2024.Entities.Domain;
 import it.unimib.sd2024.Entities.User;
 import it.unimib.sd2024.Utils.DBRequest;
 import it.unimib.sd2024.Utils.DBRequest.ConfrontOperator;
+import it.unimib.sd2024.Utils.DBRequest.Page;
+import it.unimib.sd2024.Utils.DBRequest.Where;
 import jakarta.json.bind.Jsonb;
 import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbException;
@@ -43,10 +43,15 @@ public class DomainResource {
     /**
      * REST API resource that handles the retrieval of all the domains registered in the database
      * @param cookie The authorization cookie of the client; used for authentication purposes
+     * @param limit The maximum number of domains to return; if null, every domain is returned
+     * @param offset The number of domains to skip
+     * @param orderBy The parameter of the domains to order by; if null, the domains are ordered by ID
+     * @param desc Whether the order is descending
      * @return The response to the request:
      * <ul>
      *      <li>200: OK: The request was handles successfully; a JSON object containing all the domains
-     *      was attached to the request</li>
+     *      (or the requested page of domains, in order) was attached to the request</li>
+     *      <li>400: BAD_REQUEST: The pagination parameters aren't valid</li>
      *      <li>401: UNAUTHORIZED: The client isn't authenticated</li>
      *      <li>503: SERVICE_UNAVAILABLE: An error has occurred with the database</li>
      * </ul>
@@ -54,14 +59,24 @@ public class DomainResource {
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getDomains(@CookieParam("userAuth") String cookie) {
+    public Response getDomains(@CookieParam("userAuth") String cookie, @QueryParam("limit") Integer limit,
+                               @QueryParam("offset") Integer offset, @QueryParam("orderBy") String orderBy,
+                               @QueryParam("desc") boolean desc) {
         if(cookie == null)
             return Response.status(Status.UNAUTHORIZED).build();
 
+        Page page;
+        try {
+            page = Page.of(limit, offset, orderBy, desc);
+        } catch(IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+
         try {
             // Send the request to the database and obtain the response:
             DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("Domain", "*");
+            String dbResponse = page == null ? dbRequest.select("Domain", "*")
+                                             : dbRequest.select("Domain", "*", null, page);
 
             // Check for database errors:
             if(dbResponse.equals("TABLE_NOT_FOUND")) {
@@ -109,9 +124,9 @@ public class DomainResource {
         try {
             // Register the domain as "in registration":
             domainsInRegistration.add(domain.getName());
-            // Get the User from the database:
-            DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("User", cookie);
+            // Get the User from the primary database, as the domain is then registered:
+            DBRequest dbRequest = DBRequest.primary();
+            String dbResponse = dbRequest.select("User", cookie, "email");
 
             if(dbResponse.equals("{}")) { // User logged with an invalid cookie
                 System.out.println("Invalid session!");
@@ -129,18 +144,10 @@ public class DomainResource {
             // Set domain owner:
             domain.setOwner(user.getEmail());
 
-            // Register the domain on the database
-            dbResponse = dbRequest.get_last_index("Domain");
-            int id;
-
-            if(dbResponse.equals("EMPTY")) { // No domain previously registered
-                id = 1;
-            } else {
-                id = Integer.parseInt(dbResponse) + 1;
-            }
-            dbResponse = dbRequest.create_key("Domain", Integer.toString(id), jsonb.toJson(domain, Domain.class));
+            // Register the domain on the database:
+            dbResponse = dbRequest.insert("Domain", jsonb.toJson(domain, Domain.class), null);
 
-            if(!dbResponse.equals("OK!")) {
+            if(dbResponse.equals("TABLE_NOT_FOUND") || dbResponse.equals("ERROR")) {
                 System.out.println("DB error: " + dbResponse);
                 return Response.status(Status.SERVICE_UNAVAILABLE).build();
             }
@@ -193,30 +200,88 @@ public class DomainResource {
         try{
             // Preliminary steps
             Jsonb jsonb = JsonbBuilder.create();
-            boolean isAvailable = true ;
-            Domain domain = null;
-            // Check if the domain exists:
+            // Check if a domain with this name exists and hasn't expired yet:
             DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("Domain", "*", "name", domainName, ConfrontOperator.E);
+            String dbResponse = dbRequest.active("Domain", Where.of("name", ConfrontOperator.E, domainName));
 
-            if(!dbResponse.equals("{}")) { // A domain with this name exists;
-                Map<String, Domain> domainMap = jsonb.fromJson(dbResponse, new HashMap<String, Domain>(){}.getClass().getGenericSuperclass());
-                Iterator<Entry<String, Domain>> iterator = domainMap.entrySet().iterator();
-                while(iterator.hasNext()) {
-                    domain = iterator.next().getValue();
-                    LocalDate now = LocalDate.now();
-                    if(!now.isAfter(domain.getExpireDate())) // Domain hasn't expired yet!
-                        isAvailable = false;
-                }
-            } else if (domainName.equals("TABLE_NOT_FOUND") || domainName.equals("PARAM_NOT_FOUND")) { // DB Errors
+            if(dbResponse.equals("{}")) // The domain is available
+                return Response.status(Status.NO_CONTENT).build();
+            else if(dbResponse.equals("TABLE_NOT_FOUND") || dbResponse.equals("ERROR")) { // DB Errors
                 System.out.println("DB Error: " + dbResponse);
                 return Response.status(Status.SERVICE_UNAVAILABLE).build();
             }
 
-            if(isAvailable)
+            // The domain isn't available:
+            Map<String, Domain> domainMap = jsonb.fromJson(dbResponse, new HashMap<String, Domain>(){}.getClass().getGenericSuperclass());
+            Domain domain = domainMap.values().iterator().next();
+            return Response.ok(jsonb.toJson(domain)).build();
+        } catch(JsonbException e) {
+            System.out.println("A JsonB error has occurred!");
+            e.printStackTrace();
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        } catch(IOException e) {
+            System.out.println("Error connecting or interacting with the database!");
+            e.printStackTrace();
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    /**
+     * REST API resource that returns the active registration of a domain together with the public details of its
+     * owner; the domain and its owner are joined by the database in a single query
+     * @param domainName The domain to check
+     * @param cookie The authorization cookie of the client; used for authentication purposes
+     * @return A response to the request:
+     * <ul>
+     *      <li>200: OK: The domain is NOT available; a JSON with the information on the domain and the name, surname
+     *                   and email of its owner has been attached to the body of the response</li>
+     *      <li>204: NO_CONTENT: The domain is available</li>
+     *      <li>400: BAD_REQUEST: The client request contains a null domain</li>
+     *      <li>401: UNAUTHORIZED: The client isn't authenticated</li>
+     *      <li>409: CONFLICT: The domain is currently in registration and thus isn't available</li>
+     *      <li>500: INTERNAL_SERVER_ERROR: A server-side error has occurred</li>
+     *      <li>503: SERVICE_UNAVAILABLE: An error has occurred with the database</li>
+     * </ul>
+     */
+    @Path("/{domain}/owner/")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDomainOwner(@PathParam("domain") String domainName, @CookieParam("userAuth") String cookie) {
+        // Validate user input
+        if(domainName == null)
+            return Response.status(Status.BAD_REQUEST).build();
+        if(cookie == null)
+            return Response.status(Status.UNAUTHORIZED).build();
+        // Check if the domain is in registration:
+        if(domainsInRegistration.contains(domainName))
+            return Response.status(Status.CONFLICT).build();
+
+        try {
+            // Get the domain, if it hasn't expired yet, joined with its owner:
+            DBRequest dbRequest = new DBRequest();
+            String dbResponse = dbRequest.join("Domain", "owner", "User", "email",
+                    Where.of("name", ConfrontOperator.E, domainName).and("expiredate", ConfrontOperator.BE, LocalDate.now().toString()),
+                    "name", "owner", "registrationdate", "expiredate", "user.name", "user.surname", "user.email");
+
+            if(dbResponse.equals("{}")) // The domain is available
                 return Response.status(Status.NO_CONTENT).build();
-            else
-                return Response.ok(jsonb.toJson(domain)).build();
+            else if(dbResponse.equals("TABLE_NOT_FOUND") || dbResponse.equals("ERROR")) { // DB Errors
+                System.out.println("DB Error: " + dbResponse);
+                return Response.status(Status.SERVICE_UNAVAILABLE).build();
+            }
+
+            // Split the joined key in the domain and its owner:
+            Jsonb jsonb = JsonbBuilder.create();
+            Map<String, Map<String, Object>> joinMap = jsonb.fromJson(dbResponse, new HashMap<String, HashMap<String, Object>>(){}.getClass().getGenericSuperclass());
+            Map<String, Object> joined = joinMap.values().iterator().next();
+            Map<?, ?> owners = (Map<?, ?>) joined.remove("user");
+            Domain domain = jsonb.fromJson(jsonb.toJson(joined), Domain.class);
+            User owner = jsonb.fromJson(jsonb.toJson(owners.values().iterator().next()), User.class);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("domain", domain);
+            response.put("owner", owner);
+            return Response.ok(jsonb.toJson(response)).build();
         } catch(JsonbException e) {
             System.out.println("A JsonB error has occurred!");
             e.printStackTrace();
@@ -313,9 +378,9 @@ public class DomainResource {
             return Response.status(Status.UNAUTHORIZED).build();
 
         try {
-            // Get the domain from the database:
-            DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("Domain", "*", "name", domainName, ConfrontOperator.E);
+            // Get the domain from the primary database, as it is then modified:
+            DBRequest dbRequest = DBRequest.primary();
+            String dbResponse = dbRequest.select("Domain", "*", "name", domainName, ConfrontOperator.E, "name");
 
             if(dbResponse.equals("{}")) { // No such domain in the database
                 System.out.println("The specified domain isn't in the database!");
@@ -368,7 +433,7 @@ public class DomainResource {
         try {
             // Get the user from the database:
             DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("User", "*", "id", cookie, ConfrontOperator.E);
+            String dbResponse = dbRequest.select("User", "*", "id", cookie, ConfrontOperator.E, "email");
 
             if(dbResponse.equals("{}")) { // No such user exists!
                 System.out.println("This user doesn't exist");
@@ -384,7 +449,8 @@ public class DomainResource {
             User user = userMap.get(cookie);
 
             // Get the email and send the request:
-            dbResponse = dbRequest.select("Domain", "*", "owner", user.getEmail(), ConfrontOperator.E);
+            dbResponse = dbRequest.select("Domain", "*", "owner", user.getEmail(), ConfrontOperator.E,
+                                          "name", "registrationdate", "expiredate");
 
             if(dbResponse.equals("TABLE_NOT_FOUND") || dbResponse.equals("PARAM_NOT_FOUND")) { // DB Error
                 System.out.println("DB Error " + dbResponse);
@@ -0,0 +1,142 @@
+package it.unimib.sd2024.Resources;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import it.unimib.sd2024.Utils.ConnectionPool;
+import it.unimib.sd2024.Utils.DBRequest;
+import it.unimib.sd2024.Utils.ShardRouter;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+
+@Path("metrics")
+public class MetricsResource {
+    /**
+     * REST API endpoint that returns the metrics of the pool of connections to the database
+     * @return The response to the request:
+     * <ul>
+     *      <li>200: OK: The request was handled successfully; a JSON with the metrics of the pool was attached to the body of the response</li>
+     * </ul>
+     */
+    @GET
+    @Path("dbPool")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDbPoolMetrics() {
+        Jsonb jsonb = JsonbBuilder.create();
+        return Response.ok(jsonb.toJson(ConnectionPool.getInstance().getMetrics())).build();
+    }
+
+    /**
+     * REST API endpoint that returns the counters of the result cache of the database
+     * @return The response to the request:
+     * <ul>
+     *      <li>200: OK: The request was handled successfully; a JSON with the counters of the cache was attached to the body of the response</li>
+     *      <li>503: SERVICE_UNAVAILABLE: An error has occurred with the database</li>
+     * </ul>
+     */
+    @GET
+    @Path("dbCache")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDbCacheMetrics() {
+        try {
+            String dbResponse = new DBRequest().cache_stats();
+            if(!dbResponse.startsWith("{"))
+                return Response.status(Status.SERVICE_UNAVAILABLE).build();
+            return Response.ok(dbResponse).build();
+        } catch(IOException e) {
+            System.out.println("Error connecting or interacting with the database");
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    /**
+     * REST API endpoint that returns the state of the replication of the database: the position of the primary
+     * and, for each replica, its position, its replication lag and the metrics of its pool of connections
+     * @return The response to the request:
+     * <ul>
+     *      <li>200: OK: The request was handled successfully; a JSON with the state of the primary (primary) and of
+     *      each replica, by address (replicas), was attached to the body of the response; an unreachable replica
+     *      has only the metrics of its pool</li>
+     *      <li>503: SERVICE_UNAVAILABLE: An error has occurred with the primary database</li>
+     * </ul>
+     */
+    @GET
+    @Path("dbReplication")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDbReplicationMetrics() {
+        Jsonb jsonb = JsonbBuilder.create();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        try {
+            String dbResponse = new DBRequest().replication_stats();
+            if(!dbResponse.startsWith("{"))
+                return Response.status(Status.SERVICE_UNAVAILABLE).build();
+            metrics.put("primary", jsonb.fromJson(dbResponse, Map.class));
+        } catch(IOException e) {
+            System.out.println("Error connecting or interacting with the database");
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+
+        Map<String, Object> replicas = new LinkedHashMap<>();
+        for(ConnectionPool replica : ConnectionPool.getReplicas()) {
+            Map<String, Object> state = new LinkedHashMap<>();
+            try {
+                String dbResponse = replica.execute("REPL_STATS");
+                if(dbResponse.startsWith("{"))
+                    state.put("replication", jsonb.fromJson(dbResponse, Map.class));
+            } catch(IOException e) {
+                System.out.println("Replica " + replica.getEndpoint() + " unavailable: " + e.getMessage());
+            }
+            state.put("pool", replica.getMetrics());
+            replicas.put(replica.getEndpoint(), state);
+        }
+        metrics.put("replicas", replicas);
+        return Response.ok(jsonb.toJson(metrics)).build();
+    }
+
+    /**
+     * REST API endpoint that returns the state of the partitioning of the tables across the shards: the counters of
+     * the router and, for each shard, the number of keys of each partitioned table and the metrics of its pool
+     * @return The response to the request:
+     * <ul>
+     *      <li>200: OK: The request was handled successfully; a JSON with the state of the router (router) and of
+     *      each shard, by address (shards), was attached to the body of the response; an unreachable shard has only
+     *      the metrics of its pool</li>
+     * </ul>
+     */
+    @GET
+    @Path("dbShards")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDbShardsMetrics() {
+        Jsonb jsonb = JsonbBuilder.create();
+        ShardRouter router = ShardRouter.getInstance();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("router", router.getMetrics());
+
+        Map<String, Object> shards = new LinkedHashMap<>();
+        for(ConnectionPool shard : router.getShards()) {
+            Map<String, Object> state = new LinkedHashMap<>();
+            Map<String, Object> keys = new LinkedHashMap<>();
+            try {
+                for(String tab : router.getPartitionedTables()) {
+                    String dbResponse = shard.execute("AGGREGATE " + tab + " COUNT");
+                    if(dbResponse.startsWith("{"))
+                        keys.put(tab, jsonb.fromJson(dbResponse, Map.class).get("count"));
+                }
+                state.put("keys", keys);
+            } catch(IOException e) {
+                System.out.println("Shard " + shard.getEndpoint() + " unavailable: " + e.getMessage());
+            }
+            state.put("pool", shard.getMetrics());
+            shards.put(shard.getEndpoint(), state);
+        }
+        metrics.put("shards", shards);
+        return Response.ok(jsonb.toJson(metrics)).build();
+    }
+}
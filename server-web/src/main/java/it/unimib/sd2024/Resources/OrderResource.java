@@ -4,6 +4,8 @@ import java.io.IOException;
 import it.unimib.sd2024.Entities.Order;
 import it.unimib.sd2024.Utils.DBRequest;
 import it.unimib.sd2024.Utils.DBRequest.ConfrontOperator;
+import it.unimib.sd2024.Utils.DBRequest.Page;
+import it.unimib.sd2024.Utils.DBRequest.Where;
 import jakarta.json.bind.Jsonb;
 import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbException;
@@ -13,6 +15,7 @@ import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
@@ -22,23 +25,38 @@ public class OrderResource {
     /**
      * REST API endpoint that handles the retrieval of the user's orders from the database
      * @param cookie The user authorization cookie, used only for authorization purposes
+     * @param limit The maximum number of orders to return; if null, every order is returned
+     * @param offset The number of orders to skip
+     * @param orderBy The parameter of the orders to order by (e.g. date for the latest orders); if null, the orders are ordered by ID
+     * @param desc Whether the order is descending
      * @return  The response to the request:
      * <ul>
-     *      <li>200: OK: The request was handled successfully; a JSON with the user's orders was attached to the body of the response</li>
+     *      <li>200: OK: The request was handled successfully; a JSON with the user's orders (or the requested page of orders, in order) was attached to the body of the response</li>
+     *      <li>400: BAD_REQUEST: The pagination parameters aren't valid</li>
      *      <li>401: UNAUTHORIZED: The user isn't authenticated!</li>
      *      <li>503: SERVICE_UNAVAILABLE: An error has occurred with the database</li>
      * </ul>
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getUserOrders(@CookieParam("userAuth") String cookie) {
+    public Response getUserOrders(@CookieParam("userAuth") String cookie, @QueryParam("limit") Integer limit,
+                                  @QueryParam("offset") Integer offset, @QueryParam("orderBy") String orderBy,
+                                  @QueryParam("desc") boolean desc) {
         if(cookie == null)
             return Response.status(Status.UNAUTHORIZED).build();
 
+        Page page;
+        try {
+            page = Page.of(limit, offset, orderBy, desc);
+        } catch(IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+
         try {
             // Get the user's orders from the database:
             DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("Order", "*", "client", cookie, ConfrontOperator.E);
+            String dbResponse = dbRequest.select("Order", "*", Where.of("client", ConfrontOperator.E, cookie), page,
+                                                   "domain", "date", "ordertype", "cost");
 
             if(dbRequest.equals("TABLE_NOT_FOUND") || dbResponse.equals("PARAM_NOT_FOUND")) {
                 System.out.println("DB Error: " + dbResponse);
@@ -82,21 +100,10 @@ public class OrderResource {
 
             // Create the order on the database:
             DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.get_last_index("Order");
-
-            int last_index;
-            if(dbResponse.equals("EMPTY")) { // No previously registered order
-                last_index = 1;
-            } else if(!dbResponse.equals("TABLE_NOT_FOUND")) {
-                last_index = Integer.parseInt(dbResponse) + 1;
-            } else { // DB Error
-                System.out.println("DB Error: " + dbResponse);
-                return Response.status(Status.SERVICE_UNAVAILABLE).build();
-            }
             Jsonb jsonb = JsonbBuilder.create();
-            dbResponse = dbRequest.create_key("Order", Integer.toString(last_index), jsonb.toJson(order));
+            String dbResponse = dbRequest.insert("Order", jsonb.toJson(order), null);
 
-            if(!dbResponse.equals("OK!")) { // DB Error
+            if(dbResponse.equals("TABLE_NOT_FOUND") || dbResponse.equals("ERROR")) { // DB Error
                 System.out.println("DB Error: " + dbResponse);
                 return Response.status(Status.SERVICE_UNAVAILABLE).build();
             }
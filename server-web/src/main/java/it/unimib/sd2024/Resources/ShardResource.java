@@ -0,0 +1,70 @@
+package it.unimib.sd2024.Resources;
+
+import java.io.IOException;
+import java.util.Map;
+
+import it.unimib.sd2024.Utils.ShardRouter;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+
+@Path("shards")
+public class ShardResource {
+    /**
+     * REST API endpoint that adds a shard to the partitioned tables: the shard takes over its part of the keys,
+     * which are moved to it from the other shards before the response is sent
+     * @param node The address of the new shard, as host:port; the database must already be running
+     * @return The response to the request:
+     * <ul>
+     *      <li>200: OK: The shard was added; a JSON with the number of keys moved to it, by table, was attached to
+     *      the body of the response</li>
+     *      <li>400: BAD_REQUEST: The address of the shard isn't valid</li>
+     *      <li>503: SERVICE_UNAVAILABLE: An error has occurred with a shard; the keys not moved yet are moved by
+     *      the next rebalance</li>
+     * </ul>
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response addShard(@QueryParam("node") String node) {
+        if(node == null || !node.matches("[A-Za-z0-9.-]+:[0-9]{1,5}"))
+            return Response.status(Status.BAD_REQUEST).build();
+        try {
+            Map<String, Long> moved = ShardRouter.getInstance().addShard(node);
+            Jsonb jsonb = JsonbBuilder.create();
+            return Response.ok(jsonb.toJson(moved)).build();
+        } catch(IOException e) {
+            System.out.println("Error adding the shard " + node + ": " + e.getMessage());
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    /**
+     * REST API endpoint that moves every key of the partitioned tables that isn't on its shard to its shard, e.g.
+     * after a rebalance interrupted by an error
+     * @return The response to the request:
+     * <ul>
+     *      <li>200: OK: The keys were moved; a JSON with the number of keys moved, by table, was attached to the
+     *      body of the response</li>
+     *      <li>503: SERVICE_UNAVAILABLE: An error has occurred with a shard</li>
+     * </ul>
+     */
+    @POST
+    @Path("rebalance")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response rebalance() {
+        try {
+            Map<String, Long> moved = ShardRouter.getInstance().rebalance();
+            Jsonb jsonb = JsonbBuilder.create();
+            return Response.ok(jsonb.toJson(moved)).build();
+        } catch(IOException e) {
+            System.out.println("Error rebalancing the shards: " + e.getMessage());
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+    }
+}
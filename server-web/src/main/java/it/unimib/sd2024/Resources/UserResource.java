@@ -99,31 +99,21 @@ public class UserResource {
         }
 
         try {
-            // Control if there is already a user with the same e-mail:
-            DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("User", "*", "email", user.getEmail(), ConfrontOperator.E);
+            // Control on the primary database if there is already a user with the same e-mail:
+            DBRequest dbRequest = DBRequest.primary();
+            String dbResponse = dbRequest.select("User", "*", "email", user.getEmail(), ConfrontOperator.E, "id");
             System.out.println("Response arrived: " + dbResponse);
 
             if(dbResponse.equals("{}")) { // User doesn't exists
-                // Get the last index of the table:
-                dbResponse = dbRequest.get_last_index("User");
-                if(dbResponse.equals("EMPTY")) { // No previously registered user
-                    user.setId("1");
-                } else if(!dbResponse.equals("TABLE_NOT_FOUND")) {
-                    int id = Integer.parseInt(dbResponse) + 1;
-                    user.setId(Integer.toString(id));
-                } else { // Table missing
-                    System.out.println("DB Error: " + dbResponse);
-                    return Response.status(Status.SERVICE_UNAVAILABLE).build();
-                }
-                // Serialize to Json and send to the database:
+                // Serialize to Json and send to the database, that allocates the id of the user:
                 Jsonb jsonb = JsonbBuilder.create();
-                dbResponse = dbRequest.create_key("User", user.getId(), jsonb.toJson(user, User.class));
+                dbResponse = dbRequest.insert("User", jsonb.toJson(user, User.class), "id");
                 // Check for positive outcome:
-                if(!dbResponse.equals("OK!")) {
+                if(dbResponse.equals("TABLE_NOT_FOUND") || dbResponse.equals("ERROR")) {
                     System.out.println("Database error: " + dbResponse);
                     return Response.status(Status.SERVICE_UNAVAILABLE).build();
                 }
+                user.setId(dbResponse);
                 return Response.status(Status.CREATED)
                     .cookie(CookieGenerator.generateCookie("userAuth", user.getId()))
                     .build();
@@ -167,7 +157,7 @@ public class UserResource {
         try {
             // Try to get the user from the database:
             DBRequest dbRequest = new DBRequest();
-            String dbResponse = dbRequest.select("User", "*", "email", email, ConfrontOperator.E);
+            String dbResponse = dbRequest.select("User", "*", "email", email, ConfrontOperator.E, "id");
 
             if(dbResponse.equals("{}")) { // User isn't registered
                 System.out.println("User isn't registered");
@@ -5,17 +5,36 @@
 
 package it.unimib.sd2024.Utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 public class Connection {
     // Class attributes
     private Socket connection;
     private PrintWriter inputStream;
     private BufferedReader outputStream;
+
+    // Binary protocol
+    private static final byte OP_QUERY = 1;
+    private static final byte OP_PING = 2;
+    private static final String[] STATUSES = {"OK!", "TABLE_NOT_FOUND", "EMPTY", "KEY_NOT_FOUND", "ERROR", "ALREADY_EXISTS", "ROW", "RESYNC", "READ_ONLY"};
+    private static final int STATUS_ROW = 6;
+    private boolean binary = false;
+    private int frameStatus;
+    private DataInputStream binaryInput;
+    private DataOutputStream binaryOutput;
     // END -- Class attributes
 
     // Class methods
@@ -45,6 +64,188 @@ public class Connection {
         System.out.println("DBRequest: request sent!");
     }
 
+    /**
+     * Turns the connection into a persistent session: the connection is kept open after each response,
+     * so that it can carry many requests
+     * @throws IOException When there's a connection problem with the server or the server refuses the session
+     */
+    public void startSession() throws IOException {
+        send("SESSION");
+        String response = read();
+        if(!"OK!".equals(response))
+            throw new IOException("The server refused the session: " + response);
+    }
+
+    /**
+     * Turns the connection into a persistent session that uses the binary protocol: requests and responses are
+     * exchanged as length-prefixed frames, so responses are returned as they are, without any escaping
+     * @throws IOException When there's a connection problem with the server or the server refuses the protocol
+     */
+    public void startBinary() throws IOException {
+        send("BINARY");
+        String response = read();
+        if(!"OK!".equals(response))
+            throw new IOException("The server refused the binary protocol: " + response);
+        binaryInput = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+        binaryOutput = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        binary = true;
+    }
+
+    /**
+     * Sends a request on a persistent session and reads its response
+     * @param message The request to send
+     * @return The response of the server
+     * @throws IOException When there's a connection problem with the server
+     */
+    public String request(String message) throws IOException {
+        if(binary) {
+            writeFrame(OP_QUERY, message);
+            binaryOutput.flush();
+            return readFrame();
+        }
+        send(message);
+        String response = read();
+        if(response == null)
+            throw new IOException("The server closed the session");
+        return response;
+    }
+
+    /**
+     * Sends many requests on a persistent session without waiting for their responses, then reads
+     * the responses, which are returned in the same order of the requests
+     * @param messages The requests to send
+     * @return The responses of the server
+     * @throws IOException When there's a connection problem with the server
+     */
+    public List<String> pipeline(List<String> messages) throws IOException {
+        if(binary) {
+            for(String message : messages)
+                writeFrame(OP_QUERY, message);
+            binaryOutput.flush();
+
+            List<String> responses = new ArrayList<>();
+            for(int i = 0; i < messages.size(); i++)
+                responses.add(readFrame());
+            return responses;
+        }
+        for(String message : messages) {
+            inputStream.println(message);
+            inputStream.println("END");
+        }
+        inputStream.flush();
+
+        List<String> responses = new ArrayList<>();
+        for(int i = 0; i < messages.size(); i++) {
+            String response = read();
+            if(response == null)
+                throw new IOException("The server closed the session");
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a streamed request (SCAN) on a persistent session and hands each row of its response to the
+     * consumer as soon as it is received, so that the whole response is never held in memory
+     * @param message The request to send
+     * @param rows The consumer of the rows, which receives the key and the JSON of each row
+     * @return "OK!" if every row was received, the name of the error that stopped the request otherwise
+     * @throws IOException When there's a connection problem with the server
+     */
+    public String stream(String message, BiConsumer<String, String> rows) throws IOException {
+        if(binary) {
+            writeFrame(OP_QUERY, message);
+            binaryOutput.flush();
+            while(true) {
+                byte[] payload = readFramePayload();
+                if(frameStatus != STATUS_ROW)
+                    return frameStatus < STATUSES.length ? STATUSES[frameStatus] : "ERROR";
+                deliver(new String(payload, StandardCharsets.UTF_8), rows);
+            }
+        }
+        send(message);
+        String line;
+        while((line = read()) != null) {
+            // Rows carry a key and a JSON separated by a space, the final status has no spaces
+            if(line.indexOf(' ') < 0)
+                return line.equals("END") ? "OK!" : line;
+            deliver(line, rows);
+        }
+        throw new IOException("The server closed the session");
+    }
+
+    /**
+     * Splits a row of a streamed response in its key and its JSON and hands them to the consumer
+     * @param row The row, made of the key and the JSON separated by a space
+     * @param rows The consumer of the rows
+     */
+    private static void deliver(String row, BiConsumer<String, String> rows) {
+        int separator = row.indexOf(' ');
+        rows.accept(row.substring(0, separator), row.substring(separator + 1));
+    }
+
+    /**
+     * Checks that the connection is still alive
+     * @return true if the server answered the health check
+     */
+    public boolean ping() {
+        try {
+            if(binary) {
+                writeFrame(OP_PING, "");
+                binaryOutput.flush();
+                return "PONG".equals(readFrame());
+            }
+            return "PONG".equals(request("PING"));
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a frame of the binary protocol
+     * @param opcode The opcode of the frame
+     * @param message The payload of the frame
+     * @throws IOException When there's a connection problem with the server
+     */
+    private void writeFrame(byte opcode, String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        binaryOutput.writeInt(payload.length + 1);
+        binaryOutput.writeByte(opcode);
+        binaryOutput.write(payload);
+    }
+
+    /**
+     * Reads a frame of the binary protocol
+     * @return The payload of the frame if its status is OK, the name of the status otherwise
+     * @throws IOException When there's a connection problem with the server
+     */
+    private String readFrame() throws IOException {
+        byte[] payload = readFramePayload();
+        if(frameStatus != 0)
+            return frameStatus < STATUSES.length ? STATUSES[frameStatus] : "ERROR";
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a frame of the binary protocol, keeping its status in frameStatus
+     * @return The payload of the frame
+     * @throws IOException When there's a connection problem with the server
+     */
+    private byte[] readFramePayload() throws IOException {
+        int length;
+        try {
+            length = binaryInput.readInt();
+        } catch(EOFException e) {
+            throw new IOException("The server closed the session");
+        }
+        if(length < 1)
+            throw new IOException("Invalid frame length: " + length);
+        frameStatus = binaryInput.readUnsignedByte();
+        byte[] payload = new byte[length - 1];
+        binaryInput.readFully(payload);
+        return payload;
+    }
+
     /**
      * Reads a message from the server.
      * @return The message red
@@ -59,6 +260,10 @@ public class Connection {
      * @throws IOException
      */
     public void close() throws IOException {
+        if(binary) {
+            this.binaryInput.close();
+            this.binaryOutput.close();
+        }
         this.inputStream.close();
         this.outputStream.close();
         this.connection.close();
@@ -0,0 +1,387 @@
+// ConnectionPool.java
+/**
+ * This class handles a bounded pool of long-lived connections to the database R2DB.
+ * The connections are persistent sessions of the R2DB protocol, so each of them can carry many queries.
+ * There is a pool for the primary database, r2db.primary (default localhost:3030), and one for each of its
+ * read-only replicas, r2db.replicas (a comma separated list of host:port, default none), as well as one for each
+ * shard of the partitioned tables (see ShardRouter).
+ */
+
+package it.unimib.sd2024.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+public class ConnectionPool {
+    // Class attributes
+    private static ConnectionPool pool = null;
+    private static List<ConnectionPool> replicas = null;
+    private static final Map<String, ConnectionPool> shards = new LinkedHashMap<>();
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final String address;
+    private final int port;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final boolean binary;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle;
+    private final ScheduledExecutorService evictor;
+
+    // Metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong failedHealthChecks = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicInteger watches = new AtomicInteger();
+
+    /**
+     * A connection of the pool, together with the last time it was used
+     */
+    private static class PooledConnection {
+        private final Connection connection;
+        private long lastUsed;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+    // END -- Class attributes
+
+    // Class methods
+
+    /**
+     * Constructor for the class. The pool is configured through the system properties:
+     * <ul>
+     *      <li>r2db.pool.maxSize: Maximum number of connections (default 16)</li>
+     *      <li>r2db.pool.maxWaitMs: Maximum time waited for a free connection (default 2000)</li>
+     *      <li>r2db.pool.idleTimeoutMs: Time after which an idle connection is closed (default 60000)</li>
+     *      <li>r2db.pool.validationIntervalMs: Idle time after which a connection is checked before use (default 5000)</li>
+     *      <li>r2db.pool.protocol: Protocol of the connections, binary or text (default binary)</li>
+     * </ul>
+     * @param address The address of the database
+     * @param port The port where the database is listening for connections
+     */
+    private ConnectionPool(String address, int port) {
+        this.address = address;
+        this.port = port;
+        this.maxSize = Integer.getInteger("r2db.pool.maxSize", 16);
+        this.maxWaitMillis = Long.getLong("r2db.pool.maxWaitMs", 2000);
+        this.idleTimeoutMillis = Long.getLong("r2db.pool.idleTimeoutMs", 60000);
+        this.validationIntervalMillis = Long.getLong("r2db.pool.validationIntervalMs", 5000);
+        this.binary = !"text".equalsIgnoreCase(System.getProperty("r2db.pool.protocol", "binary"));
+        this.permits = new Semaphore(maxSize, true);
+        this.idle = new LinkedBlockingDeque<>();
+
+        // Periodically close the connections that have been idle for too long:
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "r2db-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeoutMillis / 2, 1000);
+        this.evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the pool of connections to the database
+     * @return The pool of connections
+     */
+    public synchronized static ConnectionPool getInstance() {
+        if(pool == null)
+            pool = of(System.getProperty("r2db.primary", "localhost:3030"));
+        return pool;
+    }
+
+    /**
+     * Returns the pools of connections to the replicas of the database
+     * @return The pools of the replicas, empty if there are none
+     */
+    public synchronized static List<ConnectionPool> getReplicas() {
+        if(replicas == null) {
+            replicas = new ArrayList<>();
+            for(String replica : System.getProperty("r2db.replicas", "").split(","))
+                if(!replica.isBlank())
+                    replicas.add(of(replica.trim()));
+        }
+        return replicas;
+    }
+
+    /**
+     * Returns the pool to send a read to: the replicas take turns, or the primary if there are none
+     * @return The pool of a replica, or of the primary
+     */
+    public static ConnectionPool getReader() {
+        List<ConnectionPool> readers = getReplicas();
+        if(readers.isEmpty())
+            return getInstance();
+        return readers.get(Math.floorMod(nextReplica.getAndIncrement(), readers.size()));
+    }
+
+    /**
+     * Returns the pool of connections to a shard, which is the pool of the primary database or of a replica if the
+     * shard is one of them
+     * @param endpoint The address of the shard, as host:port
+     * @return The pool
+     */
+    synchronized static ConnectionPool forEndpoint(String endpoint) {
+        if(getInstance().getEndpoint().equals(endpoint))
+            return getInstance();
+        for(ConnectionPool replica : getReplicas())
+            if(replica.getEndpoint().equals(endpoint))
+                return replica;
+        return shards.computeIfAbsent(endpoint, ConnectionPool::of);
+    }
+
+    /**
+     * Creates the pool of connections to a database
+     * @param endpoint The address of the database, as host:port
+     * @return The pool
+     */
+    private static ConnectionPool of(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        if(colon < 0)
+            return new ConnectionPool(endpoint, 3030);
+        return new ConnectionPool(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1)));
+    }
+
+    /**
+     * Returns the address of the database of the pool
+     * @return The address, as host:port
+     */
+    public String getEndpoint() {
+        return address + ":" + port;
+    }
+
+    /**
+     * Sends a request to the database on a connection of the pool and returns its response
+     * @param message The request to send
+     * @return The response of the database
+     * @throws IOException If no connection is available within the maximum wait time,
+     * or a connection error with the database occurs
+     */
+    public String execute(String message) throws IOException {
+        PooledConnection pooled = borrow();
+        try {
+            String response = pooled.connection.request(message);
+            release(pooled);
+            return response;
+        } catch(IOException e) {
+            invalidate(pooled);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a streamed request (SCAN) to the database on a connection of the pool, handing each row of
+     * its response to the consumer as soon as it is received. The connection is not returned to the pool
+     * if the consumer fails, as the rest of the response would still be waiting on it
+     * @param message The request to send
+     * @param rows The consumer of the rows, which receives the key and the JSON of each row
+     * @return "OK!" if every row was received, the name of the error that stopped the request otherwise
+     * @throws IOException If no connection is available within the maximum wait time,
+     * or a connection error with the database occurs
+     */
+    public String stream(String message, BiConsumer<String, String> rows) throws IOException {
+        PooledConnection pooled = borrow();
+        try {
+            String status = pooled.connection.stream(message, rows);
+            release(pooled);
+            return status;
+        } catch(IOException | RuntimeException e) {
+            invalidate(pooled);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a WATCH to the database on a dedicated connection, handing each change of the table to the
+     * consumer as soon as it is committed. A watch holds its connection until it ends, so it is opened
+     * outside the pool and closed at the end, without taking a connection from the other requests
+     * @param message The WATCH to send
+     * @param changes The consumer of the changes, which receives the sequence number and the JSON of each change
+     * @return The name of the status that ended the watch
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String watch(String message, BiConsumer<String, String> changes) throws IOException {
+        Connection connection = new Connection(address, port);
+        watches.incrementAndGet();
+        try {
+            if(binary)
+                connection.startBinary();
+            else
+                connection.startSession();
+            return connection.stream(message, changes);
+        } finally {
+            watches.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if no idle connection is available
+     * @return A connection to the database
+     * @throws IOException If no connection is available within the maximum wait time,
+     * or a connection error with the database occurs
+     */
+    private PooledConnection borrow() throws IOException {
+        long start = System.nanoTime();
+        try {
+            if(!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new IOException("Timed out waiting for a database connection");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a database connection");
+        }
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        borrowed.incrementAndGet();
+
+        try {
+            // Reuse the most recently used idle connection, checking it if it has been idle for a while:
+            PooledConnection pooled;
+            while((pooled = idle.pollFirst()) != null) {
+                if(System.currentTimeMillis() - pooled.lastUsed < validationIntervalMillis || isHealthy(pooled)) {
+                    active.incrementAndGet();
+                    return pooled;
+                }
+                failedHealthChecks.incrementAndGet();
+                close(pooled);
+            }
+
+            // Open a new connection:
+            Connection connection = new Connection(address, port);
+            try {
+                if(binary)
+                    connection.startBinary();
+                else
+                    connection.startSession();
+            } catch(IOException e) {
+                connection.close();
+                throw e;
+            }
+            created.incrementAndGet();
+            active.incrementAndGet();
+            return new PooledConnection(connection);
+        } catch(IOException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a healthy connection back to the pool
+     * @param pooled The connection to give back
+     */
+    private void release(PooledConnection pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(pooled);
+        active.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * Discards a broken connection
+     * @param pooled The connection to discard
+     */
+    private void invalidate(PooledConnection pooled) {
+        close(pooled);
+        active.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * Checks that an idle connection is still alive
+     * @param pooled The connection to check
+     * @return true if the database answered the health check
+     */
+    private boolean isHealthy(PooledConnection pooled) {
+        return pooled.connection.ping();
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idle timeout
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+        while(iterator.hasNext()) {
+            PooledConnection pooled = iterator.next();
+            if(now - pooled.lastUsed >= idleTimeoutMillis && idle.removeLastOccurrence(pooled)) {
+                evicted.incrementAndGet();
+                close(pooled);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection, ignoring errors
+     * @param pooled The connection to close
+     */
+    private void close(PooledConnection pooled) {
+        try {
+            pooled.connection.close();
+        } catch(IOException e) {
+            System.out.println("Error closing a database connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the metrics of the pool
+     * @return A map with the current metrics of the pool:
+     * <ul>
+     *      <li>active: Connections currently in use</li>
+     *      <li>idle: Connections currently idle</li>
+     *      <li>maxSize: Maximum number of connections</li>
+     *      <li>borrowed: Total number of connections given out</li>
+     *      <li>created: Total number of connections opened</li>
+     *      <li>evicted: Total number of idle connections closed</li>
+     *      <li>failedHealthChecks: Total number of idle connections found broken</li>
+     *      <li>timeouts: Total number of requests that timed out waiting for a connection</li>
+     *      <li>averageWaitMillis: Average time waited for a connection</li>
+     *      <li>maxWaitMillis: Maximum time waited for a connection</li>
+     *      <li>watches: Connections currently held by a watch, outside the pool</li>
+     * </ul>
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long borrowedCount = borrowed.get();
+        metrics.put("active", active.get());
+        metrics.put("idle", idle.size());
+        metrics.put("maxSize", maxSize);
+        metrics.put("borrowed", borrowedCount);
+        metrics.put("created", created.get());
+        metrics.put("evicted", evicted.get());
+        metrics.put("failedHealthChecks", failedHealthChecks.get());
+        metrics.put("timeouts", timeouts.get());
+        metrics.put("averageWaitMillis", borrowedCount == 0 ? 0.0 : totalWaitNanos.get() / 1e6 / borrowedCount);
+        metrics.put("maxWaitMillis", maxWaitNanos.get() / 1e6);
+        metrics.put("watches", watches.get());
+        return metrics;
+    }
+    // END -- Class methods
+}
+// EOF -- ConnectionPool.java
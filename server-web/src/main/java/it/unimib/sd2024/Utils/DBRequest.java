@@ -1,17 +1,31 @@
 // DBRequest.java
 /**
- * This class handles the sending of queries to the database R2DB and the receiving of their results
+ * This class handles the sending of queries to the database R2DB and the receiving of their results.
+ * Writes are sent to the primary database; reads are sent to its replicas, if any, and to the primary only if
+ * no replica can be reached. Replicas apply the writes of the primary asynchronously, so a read may not see a
+ * write just made: the reads that must see it, e.g. the checks preceding a write, use {@link #primary()}.
+ * The keys of the partitioned tables (see ShardRouter) are read and written on the shards holding them: a query
+ * that fixes the value of the parameter partitioning the table is sent to its shard only, any other query is sent to
+ * every shard and their results are merged. A MULTI or a WATCH can't involve a partitioned table, as a block
+ * of queries is atomic only on a single database and the sequence numbers of the changes belong to a shard
  */
 
 package it.unimib.sd2024.Utils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 public class DBRequest {
     // Class attributes
-    private static final String address = "localhost";
-    private static final int port = 3030;
-    Connection dbConnection;
+    private final ConnectionPool pool = ConnectionPool.getInstance();
+    private final ShardRouter shards = ShardRouter.getInstance();
+    private final boolean primaryReads;
 
     public static enum ConfrontOperator {
         E, // Equals
@@ -20,10 +34,221 @@ public class DBRequest {
         BE, // Bigger or equal
         LE // Less or equal
     }
+
+    public static enum IndexType {
+        HASH, // Equality comparisons
+        RANGE, // Every confront operator
+        EXPIRY // Every confront operator, on the expiry date of the keys
+    }
+
+    /**
+     * A condition on the keys of a table, made of confronts joined by AND and OR. AND binds tighter than OR;
+     * a condition can be nested in another one as a group, e.g.
+     * {@code Where.of("owner", E, email).and(Where.of("expiredate", BE, today).or("renew", E, "true"))}
+     */
+    public static class Where {
+        private final StringBuilder clause = new StringBuilder();
+        private final Map<String, String> equalities = new HashMap<>();
+        private boolean disjunctive = false;
+
+        private Where() {
+        }
+
+        /**
+         * Creates a condition made of a single confront
+         * @param param The parameter of the key to use for the confront
+         * @param confrontOperator The confront operator to use
+         * @param paramValue The value to confront param with
+         * @return The condition
+         */
+        public static Where of(String param, ConfrontOperator confrontOperator, String paramValue) {
+            return new Where().confront(param, confrontOperator, paramValue);
+        }
+
+        /**
+         * Adds a confront that must hold together with the condition
+         * @param param The parameter of the key to use for the confront
+         * @param confrontOperator The confront operator to use
+         * @param paramValue The value to confront param with
+         * @return The condition
+         */
+        public Where and(String param, ConfrontOperator confrontOperator, String paramValue) {
+            clause.append(" AND ");
+            return confront(param, confrontOperator, paramValue);
+        }
+
+        /**
+         * Adds a confront that may hold instead of the condition
+         * @param param The parameter of the key to use for the confront
+         * @param confrontOperator The confront operator to use
+         * @param paramValue The value to confront param with
+         * @return The condition
+         */
+        public Where or(String param, ConfrontOperator confrontOperator, String paramValue) {
+            disjunctive = true;
+            clause.append(" OR ");
+            return confront(param, confrontOperator, paramValue);
+        }
+
+        /**
+         * Adds a group of confronts that must hold together with the condition
+         * @param group The group of confronts
+         * @return The condition
+         */
+        public Where and(Where group) {
+            if(!group.disjunctive)
+                group.equalities.forEach(equalities::putIfAbsent);
+            clause.append(" AND ( ").append(group.clause).append(" )");
+            return this;
+        }
+
+        /**
+         * Adds a group of confronts that may hold instead of the condition
+         * @param group The group of confronts
+         * @return The condition
+         */
+        public Where or(Where group) {
+            disjunctive = true;
+            clause.append(" OR ( ").append(group.clause).append(" )");
+            return this;
+        }
+
+        private Where confront(String param, ConfrontOperator confrontOperator, String paramValue) {
+            clause.append(param).append(' ').append(confrontOperator.toString().toLowerCase()).append(' ').append(paramValue);
+            if(confrontOperator == ConfrontOperator.E)
+                equalities.putIfAbsent(param, paramValue);
+            return this;
+        }
+
+        /**
+         * Returns the value a parameter must equal for the condition to hold
+         * @param param The parameter
+         * @return The value, or null if the condition holds also for other values of the parameter
+         */
+        String equality(String param) {
+            return disjunctive ? null : equalities.get(param);
+        }
+
+        /**
+         * Returns the WHERE clause of the condition
+         * @return The WHERE clause, to append to a query
+         */
+        @Override
+        public String toString() {
+            return " WHERE " + clause;
+        }
+    }
+
+    /**
+     * The order and the range of the keys returned by a query, e.g. the latest 20 orders:
+     * {@code Page.of(20, 0).orderBy("date", true)}. With a limit the database keeps only the first
+     * offset + limit keys while reading the table, so the others are neither sorted nor sent
+     */
+    public static class Page {
+        private final int limit;
+        private final int offset;
+        private String orderBy = null;
+        private boolean descending = false;
+
+        private Page(int limit, int offset) {
+            this.limit = limit;
+            this.offset = offset;
+        }
+
+        /**
+         * Creates a range of keys, ordered by key
+         * @param limit The maximum number of keys to return, or -1 for no limit
+         * @param offset The number of keys to skip
+         * @return The range
+         */
+        public static Page of(int limit, int offset) {
+            return new Page(limit, offset);
+        }
+
+        /**
+         * Creates a range of keys from the pagination parameters of a request
+         * @param limit The maximum number of keys to return, or null for no limit
+         * @param offset The number of keys to skip, or null to skip none
+         * @param orderBy The parameter to order by, or null to order by key
+         * @param descending Whether the order is descending
+         * @return The range, or null if no parameter was given
+         * @throws IllegalArgumentException If a parameter isn't valid
+         */
+        public static Page of(Integer limit, Integer offset, String orderBy, boolean descending) {
+            if(limit == null && offset == null && orderBy == null)
+                return null;
+            if((limit != null && limit < 0) || (offset != null && offset < 0))
+                throw new IllegalArgumentException("limit and offset can't be negative");
+            // The parameter becomes a token of the query
+            if(orderBy != null && !orderBy.matches("[A-Za-z0-9_]+"))
+                throw new IllegalArgumentException("Invalid parameter: " + orderBy);
+            Page page = new Page(limit == null ? -1 : limit, offset == null ? 0 : offset);
+            return orderBy == null ? page : page.orderBy(orderBy, descending);
+        }
+
+        /**
+         * Orders the keys by a parameter; keys without the parameter follow the others
+         * @param param The parameter to order by
+         * @param descending Whether the order is descending
+         * @return The range
+         */
+        public Page orderBy(String param, boolean descending) {
+            this.orderBy = param;
+            this.descending = descending;
+            return this;
+        }
+
+        /**
+         * Returns the range of the first offset + limit keys, in the same order: the keys each shard must return
+         * for the range to be taken from the keys of every shard
+         * @return The range
+         */
+        Page firstKeys() {
+            Page first = new Page(limit < 0 ? -1 : limit + offset, 0);
+            first.orderBy = orderBy;
+            first.descending = descending;
+            return first;
+        }
+
+        /**
+         * Returns the ORDER BY, LIMIT and OFFSET clauses of the range
+         * @return The clauses, to append to a query
+         */
+        @Override
+        public String toString() {
+            StringBuilder clauses = new StringBuilder();
+            if(orderBy != null)
+                clauses.append(" ORDER BY ").append(orderBy).append(descending ? " DESC" : " ASC");
+            if(limit >= 0)
+                clauses.append(" LIMIT ").append(limit);
+            if(offset > 0)
+                clauses.append(" OFFSET ").append(offset);
+            return clauses.toString();
+        }
+    }
     // END -- Class attributes
 
     // Class methods:
 
+    /**
+     * Creates a DBRequest whose reads are sent to the replicas of the database, if any
+     */
+    public DBRequest() {
+        this(false);
+    }
+
+    private DBRequest(boolean primaryReads) {
+        this.primaryReads = primaryReads;
+    }
+
+    /**
+     * Creates a DBRequest whose reads are sent to the primary database, so that they see every write already made
+     * @return The DBRequest
+     */
+    public static DBRequest primary() {
+        return new DBRequest(true);
+    }
+
     /**
      * Creates a new table in the database
      * @param tab_name The table name
@@ -36,19 +261,33 @@ public class DBRequest {
      * @throws IOException If a connection error with the database occurs
      */
     public String create(String tab_name) throws IOException {
-        // Connect to the database:
-        dbConnection = new Connection(address, port);
+        return broadcast(tab_name, "CREATE " + tab_name);
+    }
 
-        // Send request:
-        dbConnection.send("CREATE " + tab_name);
 
-        // Obtain response:
-        String response = dbConnection.read();
-        dbConnection.close();
-        return response;
+    /**
+     * Creates a secondary index on a parameter of the keys of the specified table
+     * @param tab The name of the table
+     * @param param The parameter to index
+     * @param indexType The type of index to create
+     * <ul>
+     *      <li>HASH: Used by the E confront operator</li>
+     *      <li>RANGE: Used by every confront operator</li>
+     *      <li>EXPIRY: Used by every confront operator; the parameter is the expiry date (YYYY-MM-DD) of the keys,
+     *      which are considered expired by ACTIVE once the date has passed. A table can have one EXPIRY index</li>
+     * </ul>
+     * @return The response of the database:
+     * <ul>
+     *      <li>OK!: Query executed</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database</li>
+     *      <li>ERROR: A generic error has occurred</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String create_index(String tab, String param, IndexType indexType) throws IOException {
+        return broadcast(tab, "CREATE_INDEX " + tab + " " + param + " " + indexType.toString());
     }
 
-
     /**
      * Creates a key in the specified table
      * @param tab The name of the table
@@ -63,16 +302,28 @@ public class DBRequest {
      * @throws IOException If a connection error with the database occurs
      */
     public String create_key(String tab, String key, String value) throws IOException {
-        // Connect to the database:
-        dbConnection = new Connection(address, port);
-
-        // Send request:
-        dbConnection.send("CREATE_KEY " + tab + " " + key + " " + value);
+        String document = document(value);
+        String message = "CREATE_KEY " + tab + " " + key + " " + document;
+        return shards.isPartitioned(tab) ? toOwner(tab, document, message) : request(message);
+    }
 
-        // Obtain response:
-        String response = dbConnection.read();
-        dbConnection.close();
-        return response;
+    /**
+     * Inserts a value in the specified table under a key allocated by the database, in a single request
+     * @param tab The name of the table
+     * @param value The value to insert. IT MUST BE WELL-FORMED JSON
+     * @param keyParam The parameter of the value that receives the allocated key, or null
+     * @return The response of the database:
+     * <ul>
+     *      <li>The allocated key</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database</li>
+     *      <li>ERROR: A generic error has occurred</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String insert(String tab, String value, String keyParam) throws IOException {
+        String document = document(value);
+        String message = "INSERT " + tab + " " + document + (keyParam == null ? "" : " " + keyParam);
+        return shards.isPartitioned(tab) ? toOwner(tab, document, message) : request(message);
     }
 
     /**
@@ -89,15 +340,32 @@ public class DBRequest {
      */
 
     public String select(String tab, String key) throws IOException {
-        // Connect to the database:
-        dbConnection = new Connection(address, port);
+        return select(tab, key, new String[0]);
+    }
 
-        // Send request:
-        dbConnection.send("SELECT " + tab + " " + key);
-        // Obtain response:
-        String response = dbConnection.read();
-        dbConnection.close();
-        return response;
+    /**
+     * Returns the specified key in JSON String format, keeping only the requested parameters of the key
+     * @param tab The table from which extract the key
+     * @param key The key to extract
+     * @param fields The parameters of the key to return; if none is given, the whole key is returned
+     * @return The response of the database:
+     * <ul>
+     *      <li>The JSON representation of the requested key (in String format)</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>KEY_NOT_FOUND: The key wasn't found in the table </li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String select(String tab, String key, String... fields) throws IOException {
+        if(!key.equals("*")) {
+            String message = "SELECT " + tab + " " + key + fields(fields);
+            return shards.isPartitioned(tab) ? findKey(message) : read(message);
+        }
+
+        // Every key: the rows are streamed and collected as they arrive
+        String response = shards.isPartitioned(tab) ? select(tab, key, null, null, fields)
+                                                    : collect("SCAN " + tab + " *" + fields(fields));
+        return response.equals("{}") ? "KEY_NOT_FOUND" : response;
     }
 
     /**
@@ -125,17 +393,264 @@ public class DBRequest {
      */
 
     public String select(String tab, String key, String param, String paramValue, ConfrontOperator confrontOperator) throws IOException {
-        // Connect to the database:
-        dbConnection = new Connection(address, port);
+        return select(tab, key, param, paramValue, confrontOperator, new String[0]);
+    }
+
+    /**
+     * Returns the specified key in JSON String format, keeping only the requested parameters of the key
+     * @param tab The table from which extract the key
+     * @param key The key to extract
+     * @param param The parameter of the key to use for the confront
+     * @param paramValue The value to confront param with
+     * @param confrontOperator The confront operator to use
+     * @param fields The parameters of the key to return; if none is given, the whole key is returned
+     * @return The response of the database:
+     * <ul>
+     *      <li>The JSON representation of the requested key (in String format)</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>KEY_NOT_FOUND: The key wasn't found in the table </li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String select(String tab, String key, String param, String paramValue, ConfrontOperator confrontOperator, String... fields) throws IOException {
+        return select(tab, key, Where.of(param, confrontOperator, paramValue), fields);
+    }
+
+    /**
+     * Returns the keys that satisfy a condition in JSON String format; the condition is evaluated by the database
+     * in a single pass over the table, or by intersecting its indexes
+     * @param tab The table from which extract the keys
+     * @param key The key to extract, or "*" for every key
+     * @param where The condition the keys must satisfy
+     * @param fields The parameters of the keys to return; if none is given, the whole keys are returned
+     * @return The response of the database:
+     * <ul>
+     *      <li>The JSON representation of the keys that satisfy the condition (in String format)</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>ERROR: The condition is malformed</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String select(String tab, String key, Where where, String... fields) throws IOException {
+        return select(tab, key, where, null, fields);
+    }
+
+    /**
+     * Returns a range of the keys that satisfy a condition in JSON String format, in the requested order
+     * @param tab The table from which extract the keys
+     * @param key The key to extract, or "*" for every key
+     * @param where The condition the keys must satisfy, or null to return every key
+     * @param page The order and the range of the keys to return, or null to return every key in no particular order
+     * @param fields The parameters of the keys to return; if none is given, the whole keys are returned
+     * @return The response of the database:
+     * <ul>
+     *      <li>The JSON representation of the keys in the range (in String format), in order</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>ERROR: The condition or the range are malformed</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String select(String tab, String key, Where where, Page page, String... fields) throws IOException {
+        if(shards.isPartitioned(tab))
+            return selectShards(tab, key, where, page, fields);
+
+        String clauses = " " + key + fields(fields) + (where == null ? "" : where) + (page == null ? "" : page);
+        // Conditions usually select a few keys, whose responses are cached by the database; every other key is streamed
+        if(where != null)
+            return read("SELECT " + tab + clauses);
+        return collect("SCAN " + tab + clauses);
+    }
+
+    /**
+     * Returns the keys of a table that satisfy a condition and haven't expired yet, according to the EXPIRY index
+     * of the table
+     * @param tab The table from which extract the keys
+     * @param where The condition the keys must satisfy, or null to return every active key
+     * @param fields The parameters of the keys to return; if none is given, the whole keys are returned
+     * @return The response of the database:
+     * <ul>
+     *      <li>The JSON representation of the active keys that satisfy the condition (in String format)</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>ERROR: The condition is malformed, or the table has no EXPIRY index</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String active(String tab, Where where, String... fields) throws IOException {
+        String message = "ACTIVE " + tab + " *" + fields(fields) + (where == null ? "" : where);
+        if(!shards.isPartitioned(tab))
+            return read(message);
+        ConnectionPool shard = shards.route(tab, where);
+        if(shard != null)
+            return shard.execute(message);
+        return ShardRouter.mergeRows(shards.gather(message), null, false, -1, 0, false);
+    }
+
+    /**
+     * Returns the keys of a table that satisfy a condition, each joined with the keys of a second table whose
+     * parameter equals a parameter of its own, e.g. the domains with their owners:
+     * {@code join("Domain", "owner", "User", "email", where, "name", "user.name")}
+     * @param tab The table from which extract the keys
+     * @param param The parameter of the keys of tab to join
+     * @param otherTab The table to join with
+     * @param otherParam The parameter of the keys of otherTab equal to param
+     * @param where The condition the keys of tab must satisfy, or null to join every key
+     * @param fields The parameters of the keys to return, prefixing the ones of otherTab with its name in lowercase
+     *               (e.g. user.name); if a table has none, its whole keys are returned
+     * @return The response of the database:
+     * <ul>
+     *      <li>The JSON representation of the joined keys (in String format): each key has a parameter, named as
+     *      otherTab in lowercase, containing its matching keys; keys without a match are omitted</li>
+     *      <li>TABLE_NOT_FOUND: A table wasn't found in the database </li>
+     *      <li>ERROR: The condition is malformed</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String join(String tab, String param, String otherTab, String otherParam, Where where, String... fields) throws IOException {
+        if(shards.isPartitioned(tab) || shards.isPartitioned(otherTab))
+            return joinShards(tab, param, otherTab, otherParam, where, fields);
+        return read("JOIN " + tab + " * " + otherTab + " ON " + param + " " + otherParam + fields(fields)
+                + (where == null ? "" : where));
+    }
+
+    /**
+     * Returns the counters of the result cache of the database
+     * @return The response of the database: a JSON object with the cached responses (entries) and their size
+     * (bytes), the hits and misses, the responses evicted to make room (evictions) and the ones dropped because
+     * their tables changed (invalidations)
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String cache_stats() throws IOException {
+        return request("CACHE_STATS");
+    }
+
+    /**
+     * Returns the state of the replication of the primary database
+     * @return The response of the database: a JSON object with the sequence number of the last change committed
+     * (seq) and, for each replica connected, the sequence number of the last change sent to it (seq) and how many
+     * changes it is behind (behind)
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String replication_stats() throws IOException {
+        return request("REPL_STATS");
+    }
+
+    /**
+     * Watches the changes committed to a table, so that the data kept from it can be updated without querying
+     * it again. The changes are handed to the consumer in the order they were committed, as soon as they are,
+     * as JSON objects: {"seq":n,"op":"CREATE_KEY|MODIFY|DELETE_KEY","key":..,"value":..}, where value is missing
+     * for DELETE_KEY. A change with op SYNC, sent first and whenever the table doesn't change for a while, carries
+     * the sequence number of the last change sent. This method returns only when the watch ends, on a dedicated
+     * connection: to resume it, call it again with the sequence number of the last change received
+     * @param tab The table to watch
+     * @param fromSeq The sequence number of the last change received, or null to receive only the changes
+     *                committed from now on
+     * @param changes The consumer of the changes, which receives the sequence number and the JSON of each change
+     * @return The status that ended the watch:
+     * <ul>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database, or it was deleted</li>
+     *      <li>RESYNC: The changes following fromSeq are no longer available, or the consumer fell too far behind:
+     *      the table must be read again and watched from the sequence number of the first SYNC</li>
+     *      <li>ERROR: A generic error has occurred</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String watch(String tab, Long fromSeq, BiConsumer<String, String> changes) throws IOException {
+        if(shards.isPartitioned(tab)) {
+            System.out.println("WATCH isn't supported on the partitioned table " + tab);
+            return "ERROR";
+        }
+        return pool.watch("WATCH " + tab + (fromSeq == null ? "" : " FROM " + fromSeq), changes);
+    }
+
+    /**
+     * Computes aggregates over the keys of a table that satisfy a condition; the aggregates are computed by the
+     * database while it reads the table, so only their values are sent, e.g. the revenue per TLD:
+     * {@code aggregate("Order", null, "tld(domain)", "sum:cost")}
+     * @param tab The table to aggregate
+     * @param where The condition the keys must satisfy, or null to aggregate every key
+     * @param groupBy The parameter to group the keys by, also as tld(param), month(param) or year(param);
+     *                if null, the keys are aggregated as a whole
+     * @param aggregates The aggregates to compute:
+     * <ul>
+     *      <li>count: The number of keys (count:param counts the keys with the parameter)</li>
+     *      <li>sum:param: The sum of the numeric values of the parameter</li>
+     *      <li>min:param: The smallest value of the parameter</li>
+     *      <li>max:param: The largest value of the parameter</li>
+     * </ul>
+     * @return The response of the database:
+     * <ul>
+     *      <li>A JSON object with the value of each aggregate or, with groupBy, a JSON object with the aggregates
+     *      of each group (in String format)</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>ERROR: The aggregates or the condition are malformed</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String aggregate(String tab, Where where, String groupBy, String... aggregates) throws IOException {
+        String message = "AGGREGATE " + tab + " " + String.join(",", aggregates) + (where == null ? "" : where)
+                + (groupBy == null ? "" : " GROUP BY " + groupBy);
+        if(!shards.isPartitioned(tab))
+            return read(message);
+        ConnectionPool shard = shards.route(tab, where);
+        if(shard != null)
+            return shard.execute(message);
+        return ShardRouter.mergeAggregates(shards.gather(message), groupBy != null);
+    }
 
-        // Send request:
-        dbConnection.send("SELECT " + tab + " " + key + " WHERE " + param + " " + confrontOperator.toString().toLowerCase() + " " + paramValue);
+    /**
+     * Streams every key of the specified table: each key is handed to the consumer as soon as it is received,
+     * without waiting for the whole table to be read
+     * @param tab The table from which extract the keys
+     * @param rows The consumer of the keys, which receives the name of each key and its JSON representation
+     * @return The response of the database:
+     * <ul>
+     *      <li>OK!: Every key was received</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>ERROR: A generic error has occurred</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String scan(String tab, BiConsumer<String, String> rows) throws IOException {
+        return shards.isPartitioned(tab) ? streamShards(tab, null, "SCAN " + tab + " *", rows) : stream("SCAN " + tab + " *", rows);
+    }
 
-        // Obtain response:
-        String response = dbConnection.read();
+    /**
+     * Streams the keys of the specified table that satisfy a confront: each key is handed to the consumer as
+     * soon as it is received, without waiting for the whole table to be read
+     * @param tab The table from which extract the keys
+     * @param param The parameter of the key to use for the confront
+     * @param paramValue The value to confront param with
+     * @param confrontOperator The confront operator to use
+     * @param rows The consumer of the keys, which receives the name of each key and its JSON representation
+     * @return The response of the database:
+     * <ul>
+     *      <li>OK!: Every key was received</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>ERROR: A generic error has occurred</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String scan(String tab, String param, String paramValue, ConfrontOperator confrontOperator, BiConsumer<String, String> rows) throws IOException {
+        return scan(tab, Where.of(param, confrontOperator, paramValue), rows);
+    }
 
-        dbConnection.close();
-        return response;
+    /**
+     * Streams the keys of the specified table that satisfy a condition: each key is handed to the consumer as
+     * soon as it is received, without waiting for the whole table to be read
+     * @param tab The table from which extract the keys
+     * @param where The condition the keys must satisfy
+     * @param rows The consumer of the keys, which receives the name of each key and its JSON representation
+     * @return The response of the database:
+     * <ul>
+     *      <li>OK!: Every key was received</li>
+     *      <li>TABLE_NOT_FOUND: The table wasn't found in the database </li>
+     *      <li>ERROR: A generic error has occurred</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String scan(String tab, Where where, BiConsumer<String, String> rows) throws IOException {
+        String message = "SCAN " + tab + " *" + where;
+        return shards.isPartitioned(tab) ? streamShards(tab, where, message, rows) : stream(message, rows);
     }
 
     /**
@@ -154,15 +669,21 @@ public class DBRequest {
      * @throws IOException If a connection error with the database occurs
      */
     public String modify(String tab, String key, String param, String newValue) throws IOException {
-         // Connect to the database:
-         dbConnection = new Connection(address, port);
-
-         // Send request:
-         dbConnection.send("MODIFY " + tab + " " + key + " " + param + " " + newValue);
-         // Obtain response:
-         String response = dbConnection.read();
-         dbConnection.close();
-         return response;
+        String message = "MODIFY " + tab + " " + key + " " + param + " " + document(newValue);
+        if(!shards.isPartitioned(tab))
+            return request(message);
+
+        // The key is on a single shard; it moves to another one if its partitioning parameter changes
+        List<ConnectionPool> pools = shards.getShards();
+        List<String> responses = shards.gather(pools, shard -> shard.execute(message));
+        for(int i = 0; i < responses.size(); i++) {
+            if(!isNotFound(responses.get(i))) {
+                if(responses.get(i).equals("OK!") && param.equals(shards.getPartitionParam(tab)))
+                    shards.relocate(tab, key, pools.get(i));
+                return responses.get(i);
+            }
+        }
+        return notFound(responses);
     }
 
     /**
@@ -178,15 +699,7 @@ public class DBRequest {
      */
 
     public String delete(String tab) throws IOException {
-         // Connect to the database:
-         dbConnection = new Connection(address, port);
-
-         // Send request:
-         dbConnection.send("DELETE " + tab);
-         // Obtain response:
-         String response = dbConnection.read();
-         dbConnection.close();
-         return response;
+        return broadcast(tab, "DELETE " + tab);
     }
 
     /**
@@ -203,29 +716,300 @@ public class DBRequest {
      * @throws IOException
      */
     public String delete_key(String tab, String key) throws IOException {
-        // Connect to the database:
-        dbConnection = new Connection(address, port);
-
-        // Send request:
-        dbConnection.send("DELETE_KEY " + tab + " " + key);
-        // Obtain response:
-        String response = dbConnection.read();
-        dbConnection.close();
-        return response;
+        String message = "DELETE_KEY " + tab + " " + key;
+        return shards.isPartitioned(tab) ? findKey(message) : request(message);
     }
 
 
     public String get_last_index(String tab) throws IOException {
-        // Connect to the database:
-        dbConnection = new Connection(address, port);
+        String message = "GET_LAST_INDEX " + tab;
+        return shards.isPartitioned(tab) ? ShardRouter.lastKey(shards.gather(message)) : request(message);
+    }
 
-        // Send request:
-        dbConnection.send("GET_LAST_INDEX " + tab);
 
-        // Obtain response:
-        String response = dbConnection.read();
-        dbConnection.close();
-        return response;
+    /**
+     * Executes many queries atomically, in a single request: either every query takes effect or, if one of them
+     * fails, none does. Only CREATE_KEY, INSERT, MODIFY, DELETE_KEY, SELECT and GET_LAST_INDEX are allowed
+     * @param queries The queries to execute, in order
+     * @return The response of the database:
+     * <ul>
+     *      <li>A JSON array with the result of each query</li>
+     *      <li>TABLE_NOT_FOUND: A table wasn't found in the database</li>
+     *      <li>KEY_NOT_FOUND: A SELECT didn't find its key</li>
+     *      <li>EMPTY: A query needs a non-empty table</li>
+     *      <li>ERROR: A generic error has occurred</li>
+     * </ul>
+     * @throws IOException If a connection error with the database occurs
+     */
+    public String multi(List<String> queries) throws IOException {
+        for(String query : queries) {
+            String[] tokens = query.trim().split("\\s+", 3);
+            if(tokens.length > 1 && shards.isPartitioned(tokens[1])) {
+                System.out.println("MULTI isn't supported on the partitioned table " + tokens[1]);
+                return "ERROR";
+            }
+        }
+        return request("MULTI\n" + document(String.join("\n", queries)) + "\nEXEC");
+    }
+
+    /**
+     * Prepares a JSON document for the database, which keeps the documents as written but lowercases the other
+     * arguments of the commands, such as the values compared by WHERE: the fields and the values of the documents
+     * are lowercased, as the ones already stored, so that the queries find them
+     * @param value The document
+     * @return The lowercased document
+     */
+    private static String document(String value) {
+        return value.toLowerCase();
+    }
+
+    /**
+     * Builds the FIELDS clause of a query
+     * @param fields The parameters to return
+     * @return The FIELDS clause, or an empty string if there are no parameters
+     */
+    private static String fields(String[] fields) {
+        return fields.length == 0 ? "" : " FIELDS " + String.join(",", fields);
+    }
+
+    /**
+     * Sends a streamed request to the database and collects its rows in a JSON object, key by key as they arrive
+     * @param message The request to send
+     * @return The JSON object of the rows, or the error of the database
+     * @throws IOException If no connection is available or a connection error with the database occurs
+     */
+    private String collect(String message) throws IOException {
+        return collect(message, this::stream);
+    }
+
+    /**
+     * Sends a streamed request to a shard and collects its rows in a JSON object, key by key as they arrive
+     * @param shard The shard
+     * @param message The request to send
+     * @return The JSON object of the rows, or the error of the shard
+     * @throws IOException If no connection is available or a connection error with the shard occurs
+     */
+    private static String collect(ConnectionPool shard, String message) throws IOException {
+        return collect(message, shard::stream);
+    }
+
+    /**
+     * A sender of streamed requests
+     */
+    @FunctionalInterface
+    private interface Streamer {
+        String stream(String message, BiConsumer<String, String> rows) throws IOException;
+    }
+
+    private static String collect(String message, Streamer streamer) throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        String status = streamer.stream(message, (key, row) -> {
+            if(json.length() > 1)
+                json.append(',');
+            json.append('"').append(key).append("\":").append(row);
+        });
+        if(!status.equals("OK!"))
+            return status;
+        return json.append('}').toString();
+    }
+
+    /**
+     * Sends a request to the database on a pooled connection
+     * @param message The request to send
+     * @return The response of the database
+     * @throws IOException If no connection is available or a connection error with the database occurs
+     */
+    private String request(String message) throws IOException {
+        return pool.execute(message);
+    }
+
+    /**
+     * Sends a read to a replica of the database, or to the primary if this DBRequest reads from the primary, there
+     * are no replicas or the replica can't be reached
+     * @param message The request to send
+     * @return The response of the database
+     * @throws IOException If no connection is available or a connection error with the database occurs
+     */
+    private String read(String message) throws IOException {
+        ConnectionPool reader = primaryReads ? pool : ConnectionPool.getReader();
+        if(reader != pool) {
+            try {
+                return reader.execute(message);
+            } catch(IOException e) {
+                System.out.println("Replica " + reader.getEndpoint() + " unavailable, reading from the primary: " + e.getMessage());
+            }
+        }
+        return pool.execute(message);
+    }
+
+    /**
+     * Sends a streamed read to a replica of the database as {@link #read(String)} does; it falls back to the
+     * primary only if no row was received from the replica, so that no row is handed to the consumer twice
+     * @param message The request to send
+     * @param rows The consumer of the rows, which receives the key and the JSON of each row
+     * @return "OK!" if every row was received, the name of the error that stopped the request otherwise
+     * @throws IOException If no connection is available or a connection error with the database occurs
+     */
+    private String stream(String message, BiConsumer<String, String> rows) throws IOException {
+        ConnectionPool reader = primaryReads ? pool : ConnectionPool.getReader();
+        if(reader != pool) {
+            boolean[] received = {false};
+            try {
+                return reader.stream(message, (key, row) -> {
+                    received[0] = true;
+                    rows.accept(key, row);
+                });
+            } catch(IOException e) {
+                if(received[0])
+                    throw e;
+                System.out.println("Replica " + reader.getEndpoint() + " unavailable, reading from the primary: " + e.getMessage());
+            }
+        }
+        return pool.stream(message, rows);
+    }
+
+    /**
+     * Sends a request on a partitioned table to every shard, e.g. the creation of the table
+     * @param tab The table
+     * @param message The request to send
+     * @return OK! if every shard executed it, the first error of the shards otherwise
+     * @throws IOException If no connection is available or a connection error with a shard occurs
+     */
+    private String broadcast(String tab, String message) throws IOException {
+        if(!shards.isPartitioned(tab))
+            return request(message);
+        for(String response : shards.gather(message))
+            if(!response.equals("OK!"))
+                return response;
+        return "OK!";
+    }
+
+    /**
+     * Sends a request writing a key of a partitioned table to the shard that must hold the key
+     * @param tab The table
+     * @param value The JSON value of the key
+     * @param message The request to send
+     * @return The response of the shard, or ERROR if the key hasn't the parameter partitioning the table
+     * @throws IOException If no connection is available or a connection error with the shard occurs
+     */
+    private String toOwner(String tab, String value, String message) throws IOException {
+        ConnectionPool shard = shards.owner(tab, value);
+        if(shard == null) {
+            System.out.println("The key hasn't the parameter " + shards.getPartitionParam(tab) + " partitioning " + tab);
+            return "ERROR";
+        }
+        return shard.execute(message);
+    }
+
+    /**
+     * Sends a request on a key of a partitioned table, identified only by its name, to every shard
+     * @param message The request to send
+     * @return The response of the shard holding the key, or KEY_NOT_FOUND (TABLE_NOT_FOUND) if no shard has it
+     * @throws IOException If no connection is available or a connection error with a shard occurs
+     */
+    private String findKey(String message) throws IOException {
+        List<String> responses = shards.gather(message);
+        for(String response : responses)
+            if(!isNotFound(response))
+                return response;
+        return notFound(responses);
+    }
+
+    private static boolean isNotFound(String response) {
+        return response.equals("KEY_NOT_FOUND") || response.equals("TABLE_NOT_FOUND");
+    }
+
+    private static String notFound(List<String> responses) {
+        return responses.contains("KEY_NOT_FOUND") ? "KEY_NOT_FOUND" : "TABLE_NOT_FOUND";
+    }
+
+    /**
+     * Selects a range of the keys of a partitioned table from its shards. Each shard returns its first
+     * offset + limit keys, which are merged in order before taking the range
+     */
+    private String selectShards(String tab, String key, Where where, Page page, String... fields) throws IOException {
+        String clauses = " " + key + fields(fields) + (where == null ? "" : where);
+        if(!key.equals("*"))
+            return findKey("SELECT " + tab + clauses + (page == null ? "" : page));
+
+        ConnectionPool shard = shards.route(tab, where);
+        if(shard != null)
+            return shard.execute("SELECT " + tab + clauses + (page == null ? "" : page));
+
+        // Conditions are selected on each shard, every other key is streamed
+        String message = (where != null ? "SELECT " : "SCAN ") + tab + clauses + (page == null ? "" : page.firstKeys());
+        List<String> responses = shards.gather(shards.getShards(),
+                pool -> where != null ? pool.execute(message) : collect(pool, message));
+        if(page == null)
+            return ShardRouter.mergeRows(responses, null, false, -1, 0, false);
+        return ShardRouter.mergeRows(responses, page.orderBy, page.descending, page.limit, page.offset, true);
+    }
+
+    /**
+     * Streams the keys of a partitioned table from its shard or, if the condition doesn't fix it, from every shard
+     * in turn
+     */
+    private String streamShards(String tab, Where where, String message, BiConsumer<String, String> rows) throws IOException {
+        ConnectionPool shard = shards.route(tab, where);
+        if(shard != null)
+            return shard.stream(message, rows);
+
+        // A key being moved may be on two shards
+        Set<String> keys = shards.isRebalancing() ? new HashSet<>() : null;
+        BiConsumer<String, String> consumer = keys == null ? rows : (key, row) -> {
+            if(keys.add(key))
+                rows.accept(key, row);
+        };
+        List<String> statuses = new ArrayList<>();
+        for(ConnectionPool pool : shards.getShards()) {
+            String status = pool.stream(message, consumer);
+            if(!status.equals("OK!") && !status.equals("TABLE_NOT_FOUND"))
+                return status;
+            statuses.add(status);
+        }
+        return statuses.contains("OK!") ? "OK!" : "TABLE_NOT_FOUND";
+    }
+
+    /**
+     * Joins a table with another one when at least one of them is partitioned, so that their keys are on different
+     * databases: the selected keys are read first, then the keys of the second table matching any of them are read
+     * with a single condition, and the two are joined here
+     */
+    private String joinShards(String tab, String param, String otherTab, String otherParam, Where where, String... fields) throws IOException {
+        String prefix = otherTab.toLowerCase() + ".";
+        List<String> leftFields = new ArrayList<>();
+        List<String> rightFields = new ArrayList<>();
+        for(String field : fields) {
+            if(field.startsWith(prefix) && field.length() > prefix.length())
+                rightFields.add(field.substring(prefix.length()));
+            else
+                leftFields.add(field);
+        }
+
+        // The joined parameters are read even if they aren't returned
+        List<String> leftRead = new ArrayList<>(leftFields);
+        if(!leftRead.isEmpty() && !leftRead.contains(param))
+            leftRead.add(param);
+        List<String> rightRead = new ArrayList<>(rightFields);
+        if(!rightRead.isEmpty() && !rightRead.contains(otherParam))
+            rightRead.add(otherParam);
+
+        String rows = select(tab, "*", where, null, leftRead.toArray(new String[0]));
+        if(rows.equals("KEY_NOT_FOUND"))
+            return "{}";
+        if(!rows.startsWith("{"))
+            return rows;
+
+        Where matching = null;
+        for(String value : ShardRouter.values(rows, param))
+            matching = matching == null ? Where.of(otherParam, ConfrontOperator.E, value)
+                                        : matching.or(otherParam, ConfrontOperator.E, value);
+        if(matching == null)
+            return "{}";
+        String matches = select(otherTab, "*", matching, null, rightRead.toArray(new String[0]));
+        if(!matches.startsWith("{"))
+            return matches;
+        return ShardRouter.join(rows, matches, param, otherParam, leftFields, rightFields, otherTab.toLowerCase());
     }
 
 }
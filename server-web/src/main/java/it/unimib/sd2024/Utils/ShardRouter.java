@@ -0,0 +1,684 @@
+// ShardRouter.java
+/**
+ * This class routes the queries on the partitioned tables to the databases R2DB (shards) holding their keys.
+ * The tables listed in r2db.shard.tables (a comma separated list of table:parameter, default Domain:name,Order:client)
+ * are partitioned by the value of a parameter of their keys across the databases listed in r2db.shards (a comma
+ * separated list of host:port, default none: no table is partitioned); the other tables stay on the primary
+ * database. Each shard is placed on a ring of hashes at r2db.shard.virtualNodes points (default 128), and a key
+ * belongs to the first shard following the hash of its parameter on the ring (consistent hashing): adding a shard
+ * moves to it only the keys it takes over, about one in every N + 1, without moving keys between the other shards.
+ * The queries that fix the value of the parameter are sent to its shard only; the others are sent to every shard
+ * at once, and their results are merged (scatter-gather).
+ * The keys must be unique across the shards, as they are moved from one to another: the databases are started with
+ * the same r2db.keys.stride, at least the number of shards, and a different r2db.keys.offset
+ */
+
+package it.unimib.sd2024.Utils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonNumber;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonObjectBuilder;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+
+public class ShardRouter {
+    // Class attributes
+    private static ShardRouter router = null;
+
+    private final Map<String, String> partitions;
+    private final int virtualNodes;
+    private final ExecutorService scatter = Executors.newVirtualThreadPerTaskExecutor();
+
+    private volatile List<ConnectionPool> shards;
+    private volatile TreeMap<Long, ConnectionPool> ring;
+    private volatile boolean rebalancing = false;
+
+    // Metrics
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong scattered = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong rebalances = new AtomicLong();
+    private volatile String lastRebalanceError = null;
+
+    /**
+     * Orders the keys as the database does: numeric keys by value, before the others, which are ordered as strings
+     */
+    private static final Comparator<String> KEYS = (a, b) -> {
+        boolean x = a.matches("[0-9]{1,18}");
+        boolean y = b.matches("[0-9]{1,18}");
+        if(x && y)
+            return Long.compare(Long.parseLong(a), Long.parseLong(b));
+        if(x || y)
+            return x ? -1 : 1;
+        return a.compareTo(b);
+    };
+    // END -- Class attributes
+
+    // Class methods
+
+    /**
+     * Constructor for the class
+     * @param endpoints The addresses of the shards, as host:port
+     * @param partitions The partitioned tables, in lowercase, with the parameter partitioning each of them
+     */
+    private ShardRouter(List<String> endpoints, Map<String, String> partitions) {
+        this.partitions = partitions;
+        this.virtualNodes = Math.max(Integer.getInteger("r2db.shard.virtualNodes", 128), 1);
+        List<ConnectionPool> pools = new ArrayList<>();
+        for(String endpoint : endpoints)
+            pools.add(ConnectionPool.forEndpoint(endpoint));
+        this.shards = pools;
+        this.ring = ring(pools);
+    }
+
+    /**
+     * Returns the router of the partitioned tables. When there are shards, the keys left on the wrong shard by a
+     * previous configuration are moved in the background, as after the addition of a shard
+     * @return The router
+     */
+    public synchronized static ShardRouter getInstance() {
+        if(router == null) {
+            List<String> endpoints = new ArrayList<>();
+            for(String endpoint : System.getProperty("r2db.shards", "").split(","))
+                if(!endpoint.isBlank() && !endpoints.contains(endpoint.trim()))
+                    endpoints.add(endpoint.trim());
+            Map<String, String> partitions = new LinkedHashMap<>();
+            for(String table : System.getProperty("r2db.shard.tables", "Domain:name,Order:client").split(",")) {
+                int colon = table.indexOf(':');
+                if(colon > 0)
+                    partitions.put(table.substring(0, colon).trim().toLowerCase(), table.substring(colon + 1).trim());
+            }
+            router = new ShardRouter(endpoints, partitions);
+
+            if(!endpoints.isEmpty()) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        router.rebalance();
+                    } catch(IOException e) {
+                        System.out.println("Error rebalancing the shards: " + e.getMessage());
+                    }
+                }, "r2db-shard-rebalancer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return router;
+    }
+
+    /**
+     * Returns whether a table is partitioned across the shards
+     * @param tab The table
+     * @return true if the table is partitioned, false if it is on the primary database
+     */
+    public boolean isPartitioned(String tab) {
+        return !shards.isEmpty() && partitions.containsKey(tab.toLowerCase());
+    }
+
+    /**
+     * Returns the partitioned tables
+     * @return The names of the tables, in lowercase; none if there are no shards
+     */
+    public Set<String> getPartitionedTables() {
+        return shards.isEmpty() ? Set.of() : partitions.keySet();
+    }
+
+    /**
+     * Returns the parameter partitioning a table
+     * @param tab The partitioned table
+     * @return The parameter
+     */
+    public String getPartitionParam(String tab) {
+        return partitions.get(tab.toLowerCase());
+    }
+
+    /**
+     * Returns the shards
+     * @return The pools of connections to the shards, in the order they were added
+     */
+    public List<ConnectionPool> getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns whether the keys of the partitioned tables are being moved between the shards
+     * @return true while a rebalance is in progress
+     */
+    public boolean isRebalancing() {
+        return rebalancing;
+    }
+
+    /**
+     * Returns the shard holding the keys of a partitioned table with the given value of its parameter
+     * @param value The value of the parameter
+     * @return The shard
+     */
+    public ConnectionPool route(String value) {
+        TreeMap<Long, ConnectionPool> points = ring;
+        Map.Entry<Long, ConnectionPool> point = points.ceilingEntry(hash(value.toLowerCase()));
+        return (point == null ? points.firstEntry() : point).getValue();
+    }
+
+    /**
+     * Returns the only shard that can hold the keys satisfying a condition on a partitioned table
+     * @param tab The partitioned table
+     * @param where The condition, or null
+     * @return The shard, or null if the condition doesn't fix the value of the parameter partitioning the table, or
+     * the keys are being moved, so that the query must be sent to every shard
+     */
+    ConnectionPool route(String tab, DBRequest.Where where) {
+        String value = where == null || rebalancing ? null : where.equality(getPartitionParam(tab));
+        if(value == null) {
+            scattered.incrementAndGet();
+            return null;
+        }
+        routed.incrementAndGet();
+        return route(value);
+    }
+
+    /**
+     * Returns the shard that must hold a key of a partitioned table
+     * @param tab The partitioned table
+     * @param value The JSON value of the key
+     * @return The shard, or null if the key hasn't the parameter partitioning the table
+     */
+    ConnectionPool owner(String tab, String value) {
+        try {
+            JsonObject row = parse(value);
+            JsonValue param = row.get(getPartitionParam(tab));
+            if(param == null || param.getValueType() == JsonValue.ValueType.NULL)
+                return null;
+            routed.incrementAndGet();
+            return route(text(param));
+        } catch(JsonException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request to every shard at once
+     * @param message The request to send
+     * @return The response of each shard, in the order of the shards
+     * @throws IOException If a connection error with a shard occurs
+     */
+    List<String> gather(String message) throws IOException {
+        return gather(shards, pool -> pool.execute(message));
+    }
+
+    /**
+     * Sends a request to some shards at once
+     * @param pools The shards
+     * @param request The request to send to a shard, which returns its response
+     * @return The response of each shard, in the order of the shards
+     * @throws IOException If a connection error with a shard occurs
+     */
+    List<String> gather(List<ConnectionPool> pools, ShardRequest request) throws IOException {
+        List<Future<String>> futures = new ArrayList<>();
+        for(ConnectionPool pool : pools)
+            futures.add(scatter.submit(() -> request.send(pool)));
+        List<String> responses = new ArrayList<>();
+        try {
+            for(Future<String> future : futures)
+                responses.add(future.get());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the shards");
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Error querying a shard: " + e.getCause(), e.getCause());
+        }
+        return responses;
+    }
+
+    /**
+     * A request sent to a shard
+     */
+    @FunctionalInterface
+    interface ShardRequest {
+        String send(ConnectionPool pool) throws IOException;
+    }
+
+    /**
+     * Adds a shard to the ring and moves to it the keys it takes over from the other shards
+     * @param endpoint The address of the new shard, as host:port
+     * @return The number of keys moved, by table
+     * @throws IOException If a connection error with a shard occurs
+     */
+    public synchronized Map<String, Long> addShard(String endpoint) throws IOException {
+        for(ConnectionPool shard : shards)
+            if(shard.getEndpoint().equals(endpoint))
+                return rebalance();
+        List<ConnectionPool> pools = new ArrayList<>(shards);
+        pools.add(ConnectionPool.forEndpoint(endpoint));
+
+        // The keys are read from every shard until they have been moved
+        rebalancing = true;
+        ring = ring(pools);
+        shards = pools;
+        return rebalance();
+    }
+
+    /**
+     * Moves every key of the partitioned tables that isn't on its shard to its shard, creating the tables and
+     * their indexes on the shards that haven't them. While the keys are moved the queries are sent to every shard.
+     * A key is first copied to its shard, then deleted from the old one together with a read of its last value,
+     * which is copied again if it changed in between, so that it is never missing from both
+     * @return The number of keys moved, by table
+     * @throws IOException If a connection error with a shard occurs
+     */
+    public synchronized Map<String, Long> rebalance() throws IOException {
+        rebalancing = true;
+        Map<String, Long> result = new LinkedHashMap<>();
+        try {
+            for(String tab : partitions.keySet()) {
+                String table = Character.toUpperCase(tab.charAt(0)) + tab.substring(1);
+                if(!createTable(table))
+                    continue;
+
+                long count = 0;
+                for(ConnectionPool shard : shards) {
+                    List<String[]> rows = new ArrayList<>();
+                    String status = shard.stream("SCAN " + table + " *", (key, row) -> rows.add(new String[] {key, row}));
+                    if(!status.equals("OK!"))
+                        continue;
+                    for(String[] row : rows) {
+                        ConnectionPool target = owner(table, row[1]);
+                        if(target != null && target != shard && move(table, row[0], row[1], shard, target))
+                            count++;
+                    }
+                }
+                moved.addAndGet(count);
+                result.put(table, count);
+            }
+            lastRebalanceError = null;
+            rebalances.incrementAndGet();
+            return result;
+        } catch(IOException e) {
+            lastRebalanceError = e.getMessage();
+            throw e;
+        } finally {
+            rebalancing = false;
+        }
+    }
+
+    /**
+     * Creates a partitioned table, with the same indexes, on the shards that haven't it
+     * @param table The table
+     * @return false if no shard has the table
+     * @throws IOException If a connection error with a shard occurs
+     */
+    private boolean createTable(String table) throws IOException {
+        List<String> schemas = gather("INDEXES " + table);
+        String schema = null;
+        for(String response : schemas)
+            if(response.startsWith("{"))
+                schema = response;
+        if(schema == null)
+            return false;
+
+        JsonObject indexes = parse(schema);
+        for(int i = 0; i < shards.size(); i++) {
+            if(schemas.get(i).startsWith("{"))
+                continue;
+            ConnectionPool shard = shards.get(i);
+            shard.execute("CREATE " + table);
+            for(Map.Entry<String, JsonValue> index : indexes.entrySet())
+                shard.execute("CREATE_INDEX " + table + " " + index.getKey() + " " + text(index.getValue()).toUpperCase());
+        }
+        return true;
+    }
+
+    /**
+     * Moves a key to its shard after a change of the parameter partitioning its table
+     * @param table The partitioned table
+     * @param key The key
+     * @param from The shard holding the key
+     * @throws IOException If a connection error with a shard occurs
+     */
+    void relocate(String table, String key, ConnectionPool from) throws IOException {
+        String response = from.execute("SELECT " + table + " " + key);
+        JsonValue row = response.startsWith("{") ? field(parse(response), key) : null;
+        if(row == null)
+            return;
+        String value = row.toString();
+        ConnectionPool target = owner(table, value);
+        if(target != null && target != from) {
+            move(table, key, value, from, target);
+            moved.incrementAndGet();
+        }
+    }
+
+    /**
+     * Moves a key from a shard to another one
+     * @param table The table of the key
+     * @param key The key
+     * @param value The JSON value of the key read from its shard
+     * @param from The shard holding the key
+     * @param to The shard that must hold the key
+     * @return true if the key was moved, false if it was deleted in the meantime
+     * @throws IOException If a connection error with a shard occurs
+     */
+    private boolean move(String table, String key, String value, ConnectionPool from, ConnectionPool to) throws IOException {
+        put(table, key, value, to);
+
+        // Delete the key together with a read of its last value:
+        String response = from.execute("MULTI\nSELECT " + table + " " + key + "\nDELETE_KEY " + table + " " + key + "\nEXEC");
+        if(!response.startsWith("[")) {
+            // The key was deleted after it was read
+            to.execute("DELETE_KEY " + table + " " + key);
+            return false;
+        }
+        JsonValue last = field(Json.createReader(new StringReader(response)).readArray().get(0), key);
+        if(last != null && !last.equals(parse(value)))
+            put(table, key, last.toString(), to);
+        return true;
+    }
+
+    /**
+     * Writes a key on a shard, replacing its value if the shard already has it
+     * @param table The table of the key
+     * @param key The key
+     * @param value The JSON value of the key
+     * @param shard The shard
+     * @throws IOException If a connection error with the shard occurs or the key can't be written
+     */
+    private void put(String table, String key, String value, ConnectionPool shard) throws IOException {
+        String response = shard.execute("CREATE_KEY " + table + " " + key + " " + value);
+        if(response.startsWith("ALREADY_EXISTS"))
+            response = shard.execute("MULTI\nDELETE_KEY " + table + " " + key + "\nCREATE_KEY " + table + " " + key + " " + value + "\nEXEC");
+        if(!response.equals("OK!") && !response.startsWith("["))
+            throw new IOException("Error moving key " + key + " of " + table + " to " + shard.getEndpoint() + ": " + response);
+    }
+
+    /**
+     * Returns the metrics of the router
+     * @return A map with the shards, the partitioned tables and the counters of the queries routed to a single
+     * shard, of the queries sent to every shard and of the keys moved
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        List<String> endpoints = new ArrayList<>();
+        for(ConnectionPool shard : shards)
+            endpoints.add(shard.getEndpoint());
+        metrics.put("shards", endpoints);
+        metrics.put("tables", partitions);
+        metrics.put("virtualNodes", virtualNodes);
+        metrics.put("routed", routed.get());
+        metrics.put("scattered", scattered.get());
+        metrics.put("rebalancing", rebalancing);
+        metrics.put("rebalances", rebalances.get());
+        metrics.put("moved", moved.get());
+        metrics.put("lastRebalanceError", lastRebalanceError);
+        return metrics;
+    }
+
+    /**
+     * Builds the ring of the shards
+     * @param pools The shards
+     * @return The ring, from the hash of each point to its shard
+     */
+    private TreeMap<Long, ConnectionPool> ring(List<ConnectionPool> pools) {
+        TreeMap<Long, ConnectionPool> points = new TreeMap<>();
+        for(ConnectionPool pool : pools)
+            for(int i = 0; i < virtualNodes; i++)
+                points.put(hash(pool.getEndpoint() + "#" + i), pool);
+        return points;
+    }
+
+    /**
+     * Hashes a value on the ring
+     * @param value The value
+     * @return The first 8 bytes of the MD5 digest of the value
+     */
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for(int i = 0; i < 8; i++)
+                hash = (hash << 8) | (digest[i] & 0xff);
+            return hash;
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Merges the keys returned by the shards, keeping a range of them in order
+     * @param responses The responses of the shards
+     * @param orderBy The parameter to order by, or null to order by key
+     * @param descending Whether the order is descending
+     * @param limit The maximum number of keys to keep, or -1 for no limit
+     * @param offset The number of keys to skip
+     * @param ordered Whether the keys must be ordered; if not, they are merged in the order of the shards
+     * @return The JSON object of the keys, or the error of the shards
+     */
+    static String mergeRows(List<String> responses, String orderBy, boolean descending, int limit, int offset, boolean ordered) {
+        // A key being moved may be returned by two shards
+        Map<String, JsonValue> keys = new LinkedHashMap<>();
+        String error = merge(responses, result -> result.forEach(keys::putIfAbsent));
+        if(error != null)
+            return error;
+
+        List<Map.Entry<String, JsonValue>> rows = new ArrayList<>(keys.entrySet());
+        if(ordered) {
+            Comparator<Map.Entry<String, JsonValue>> byKey = (a, b) -> KEYS.compare(a.getKey(), b.getKey());
+            rows.sort(orderBy == null ? byKey : ((Comparator<Map.Entry<String, JsonValue>>) (a, b) ->
+                    compare(field(a.getValue(), orderBy), field(b.getValue(), orderBy), descending)).thenComparing(byKey));
+        }
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        int end = limit < 0 ? rows.size() : (int) Math.min(rows.size(), (long) offset + limit);
+        for(int i = offset; i < end; i++)
+            result.add(rows.get(i).getKey(), rows.get(i).getValue());
+        return result.build().toString();
+    }
+
+    /**
+     * Returns the greatest key returned by the shards for GET_LAST_INDEX
+     * @param responses The responses of the shards
+     * @return The greatest key, EMPTY if every shard has the table but no key, or the error of the shards
+     */
+    static String lastKey(List<String> responses) {
+        String last = null;
+        for(String response : responses) {
+            if(response.equals("ERROR"))
+                return response;
+            if(!response.equals("EMPTY") && !response.equals("TABLE_NOT_FOUND") && (last == null || KEYS.compare(response, last) > 0))
+                last = response;
+        }
+        if(last != null)
+            return last;
+        return responses.contains("EMPTY") ? "EMPTY" : "TABLE_NOT_FOUND";
+    }
+
+    /**
+     * Returns the distinct values of a parameter of the keys returned by a query
+     * @param rows The JSON object of the keys
+     * @param param The parameter
+     * @return The values, in order of key
+     */
+    static List<String> values(String rows, String param) {
+        List<String> values = new ArrayList<>();
+        for(JsonValue row : parse(rows).values()) {
+            JsonValue value = field(row, param);
+            if(value != null && value.getValueType() != JsonValue.ValueType.NULL && !values.contains(text(value)))
+                values.add(text(value));
+        }
+        return values;
+    }
+
+    /**
+     * Merges the aggregates computed by the shards: counts and sums are added, minimums and maximums compared
+     * @param responses The responses of the shards
+     * @param grouped Whether the aggregates are grouped
+     * @return The JSON object of the aggregates, or of the aggregates of each group in order of group, or the
+     * error of the shards
+     */
+    static String mergeAggregates(List<String> responses, boolean grouped) {
+        Map<String, Map<String, JsonValue>> groups = new TreeMap<>();
+        String error = merge(responses, result -> {
+            if(!grouped) {
+                mergeAggregates(groups.computeIfAbsent("", g -> new LinkedHashMap<>()), result);
+                return;
+            }
+            for(Map.Entry<String, JsonValue> group : result.entrySet())
+                mergeAggregates(groups.computeIfAbsent(group.getKey(), g -> new LinkedHashMap<>()), group.getValue().asJsonObject());
+        });
+        if(error != null)
+            return error;
+
+        if(!grouped)
+            return object(groups.getOrDefault("", Map.of())).build().toString();
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for(Map.Entry<String, Map<String, JsonValue>> group : groups.entrySet())
+            result.add(group.getKey(), object(group.getValue()));
+        return result.build().toString();
+    }
+
+    private static void mergeAggregates(Map<String, JsonValue> merged, JsonObject aggregates) {
+        for(Map.Entry<String, JsonValue> aggregate : aggregates.entrySet()) {
+            String name = aggregate.getKey();
+            JsonValue value = aggregate.getValue();
+            JsonValue previous = merged.get(name);
+            if(previous == null) {
+                merged.put(name, value);
+            } else if(name.startsWith("count") || name.startsWith("sum")) {
+                BigDecimal sum = ((JsonNumber) previous).bigDecimalValue().add(((JsonNumber) value).bigDecimalValue());
+                merged.put(name, Json.createValue(sum));
+            } else if(name.startsWith("min")) {
+                merged.put(name, compare(value, previous, false) < 0 ? value : previous);
+            } else if(name.startsWith("max")) {
+                merged.put(name, compare(value, previous, false) > 0 ? value : previous);
+            }
+        }
+    }
+
+    /**
+     * Joins the keys of a table with the matching keys of a second table, read from different databases, as the
+     * database does with JOIN
+     * @param rows The JSON object of the keys of the first table
+     * @param matches The JSON object of the keys of the second table that may match them
+     * @param param The parameter of the keys of the first table to join
+     * @param otherParam The parameter of the keys of the second table equal to param
+     * @param fields The parameters of the keys of the first table to return, or none for the whole keys
+     * @param otherFields The parameters of the keys of the second table to return, or none for the whole keys
+     * @param nested The name of the parameter holding the matching keys
+     * @return The JSON object of the joined keys; keys without a match are omitted
+     */
+    static String join(String rows, String matches, String param, String otherParam, List<String> fields,
+                       List<String> otherFields, String nested) {
+        Map<String, JsonObjectBuilder> byValue = new LinkedHashMap<>();
+        for(Map.Entry<String, JsonValue> match : parse(matches).entrySet()) {
+            JsonValue value = field(match.getValue(), otherParam);
+            if(value != null)
+                byValue.computeIfAbsent(text(value), v -> Json.createObjectBuilder())
+                       .add(match.getKey(), project(match.getValue(), otherFields));
+        }
+
+        Map<String, JsonObject> joinedMatches = new LinkedHashMap<>();
+        for(Map.Entry<String, JsonObjectBuilder> match : byValue.entrySet())
+            joinedMatches.put(match.getKey(), match.getValue().build());
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for(Map.Entry<String, JsonValue> row : parse(rows).entrySet()) {
+            JsonValue value = field(row.getValue(), param);
+            JsonObject match = value == null ? null : joinedMatches.get(text(value));
+            if(match != null && !match.isEmpty())
+                result.add(row.getKey(), Json.createObjectBuilder(project(row.getValue(), fields).asJsonObject()).add(nested, match));
+        }
+        return result.build().toString();
+    }
+
+    /**
+     * Collects the JSON objects returned by the shards. The shards without the table, or without the key, are
+     * skipped; any other error is returned
+     * @param responses The responses of the shards
+     * @param consumer The consumer of the JSON objects
+     * @return null if at least a shard returned a JSON object, the error of the shards otherwise
+     */
+    private static String merge(List<String> responses, Consumer<JsonObject> consumer) {
+        String error = null;
+        boolean found = false;
+        for(String response : responses) {
+            if(response.startsWith("{")) {
+                consumer.accept(parse(response));
+                found = true;
+            } else if(response.equals("ERROR")) {
+                return response;
+            } else if(error == null || error.equals("TABLE_NOT_FOUND")) {
+                error = response;
+            }
+        }
+        return found ? null : error;
+    }
+
+    /**
+     * Keeps only some parameters of a key
+     */
+    private static JsonValue project(JsonValue row, List<String> fields) {
+        if(fields.isEmpty() || row.getValueType() != JsonValue.ValueType.OBJECT)
+            return row;
+        JsonObjectBuilder projected = Json.createObjectBuilder();
+        for(String field : fields) {
+            JsonValue value = row.asJsonObject().get(field);
+            if(value != null)
+                projected.add(field, value);
+        }
+        return projected.build();
+    }
+
+    /**
+     * Compares two values as the database does in ORDER BY: numbers by value, every other value as a string, and
+     * missing values after the others in both directions
+     */
+    private static int compare(JsonValue x, JsonValue y, boolean descending) {
+        if(x == null || y == null)
+            return x == null ? (y == null ? 0 : 1) : -1;
+        int result;
+        if(x instanceof JsonNumber && y instanceof JsonNumber)
+            result = ((JsonNumber) x).bigDecimalValue().compareTo(((JsonNumber) y).bigDecimalValue());
+        else
+            result = text(x).compareTo(text(y));
+        return descending ? -result : result;
+    }
+
+    private static JsonValue field(JsonValue row, String param) {
+        return row.getValueType() == JsonValue.ValueType.OBJECT ? row.asJsonObject().get(param) : null;
+    }
+
+    private static String text(JsonValue value) {
+        return value instanceof JsonString ? ((JsonString) value).getString() : value.toString();
+    }
+
+    private static JsonObjectBuilder object(Map<String, JsonValue> values) {
+        JsonObjectBuilder object = Json.createObjectBuilder();
+        values.forEach(object::add);
+        return object;
+    }
+
+    private static JsonObject parse(String json) {
+        return Json.createReader(new StringReader(json)).readObject();
+    }
+    // END -- Class methods
+}
+// EOF -- ShardRouter.java